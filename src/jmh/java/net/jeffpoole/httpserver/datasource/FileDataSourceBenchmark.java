@@ -0,0 +1,98 @@
+package net.jeffpoole.httpserver.datasource;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+
+
+/**
+ * Resolving a request path against the filesystem, without any caching in front: a file, a
+ * directory (which builds a listing of 100 entries), and a path that doesn't exist.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileDataSourceBenchmark
+{
+  Path root;
+  FileDataSource dataSource;
+
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    root = Files.createTempDirectory("webserver-benchmark");
+    Files.write(root.resolve("index.html"), "<html></html>\n".getBytes(Charsets.UTF_8));
+    final Path directory = Files.createDirectory(root.resolve("directory"));
+    for (int i = 0; i < 100; i++)
+    {
+      Files.write(directory.resolve("file" + i + ".txt"), new byte[i]);
+    }
+    dataSource = new FileDataSource(root);
+  }
+
+
+  @TearDown
+  public void tearDown() throws IOException
+  {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+    {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+      {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException
+      {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+
+  @Benchmark
+  public DataResource file()
+  {
+    return dataSource.get("/index.html");
+  }
+
+
+  @Benchmark
+  public DataResource directory()
+  {
+    return dataSource.get("/directory/");
+  }
+
+
+  @Benchmark
+  public DataResource miss()
+  {
+    return dataSource.get("/no/such/file.html");
+  }
+}
@@ -0,0 +1,238 @@
+package net.jeffpoole.httpserver.loadtest;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.HttpResponseDecoder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import ch.qos.logback.classic.Level;
+import net.jeffpoole.httpserver.NettyWebserverMain;
+import net.jeffpoole.httpserver.ServerConfig;
+
+
+/**
+ * An end-to-end load test: generates a document tree of files in the configured sizes, starts the
+ * server on an ephemeral loopback port, drives it with a Netty client for the warm-up and measurement
+ * periods, and prints throughput and latency percentiles as JSON.
+ *
+ * Each connection only sends a new request when one completes (a closed loop), so latencies are
+ * those seen at the throughput the server managed, not at a fixed offered rate.
+ *
+ * Run it with: mvn -Pbenchmarks test-compile exec:exec@load-test
+ */
+public class LoadGenerator
+{
+  final LoadTestConfig config;
+  final InetSocketAddress server;
+  // Requests to pick from at random, each path repeated according to the weight of its size
+  final ByteBuf[] requests;
+
+  final Recorder latencies = new Recorder(TimeUnit.MINUTES.toNanos(1), 3);
+  final LongAdder errors = new LongAdder();
+  final LongAdder bytes = new LongAdder();
+  volatile boolean running;
+
+  Bootstrap bootstrap;
+
+
+  public LoadGenerator(LoadTestConfig config, InetSocketAddress server, Map<String, Integer> paths)
+  {
+    this.config = config;
+    this.server = server;
+    final List<ByteBuf> requests = new ArrayList<>();
+    for (Map.Entry<String, Integer> path : paths.entrySet())
+    {
+      final ByteBuf request = Unpooled.unreleasableBuffer(Unpooled.directBuffer().writeBytes(
+          ("GET " + path.getKey() + " HTTP/1.1\r\n" +
+              "Host: " + server.getHostString() + ":" + server.getPort() + "\r\n" +
+              (config.isKeepAlive() ? "" : "Connection: close\r\n") +
+              "\r\n").getBytes(Charsets.ISO_8859_1)));
+      for (int i = 0; i < path.getValue(); i++)
+      {
+        requests.add(request);
+      }
+    }
+    this.requests = requests.toArray(new ByteBuf[requests.size()]);
+  }
+
+
+  public LoadTestResult run() throws InterruptedException
+  {
+    final EventLoopGroup group = new NioEventLoopGroup(config.getClientThreads());
+    try
+    {
+      bootstrap = new Bootstrap()
+          .group(group)
+          .channel(NioSocketChannel.class)
+          .option(ChannelOption.TCP_NODELAY, true)
+          .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+          .handler(new ChannelInitializer<SocketChannel>()
+          {
+            @Override
+            protected void initChannel(SocketChannel ch)
+            {
+              ch.pipeline()
+                  .addLast(new HttpResponseDecoder())
+                  .addLast(new LoadTestConnection(LoadGenerator.this, System.nanoTime()));
+            }
+          });
+      running = true;
+      for (int i = 0; i < config.getConnections(); i++)
+      {
+        connect();
+      }
+
+      Thread.sleep(TimeUnit.SECONDS.toMillis(config.getWarmupSeconds()));
+      latencies.getIntervalHistogram();
+      errors.reset();
+      bytes.reset();
+      final long started = System.nanoTime();
+
+      Thread.sleep(TimeUnit.SECONDS.toMillis(config.getDurationSeconds()));
+      final Histogram histogram = latencies.getIntervalHistogram();
+      final long elapsed = System.nanoTime() - started;
+      running = false;
+      return new LoadTestResult(config, elapsed, histogram, errors.sum(), bytes.sum());
+    }
+    finally
+    {
+      running = false;
+      group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+  }
+
+
+  void connect()
+  {
+    bootstrap.connect(server).addListener(future -> {
+      if (!future.isSuccess() && running)
+      {
+        errors.increment();
+        // don't spin if the server is refusing connections
+        bootstrap.group().schedule(this::connect, 10, TimeUnit.MILLISECONDS);
+      }
+    });
+  }
+
+
+  ByteBuf nextRequest()
+  {
+    return requests[ThreadLocalRandom.current().nextInt(requests.length)].duplicate();
+  }
+
+
+  void recordLatency(long nanos)
+  {
+    latencies.recordValue(Math.min(nanos, TimeUnit.MINUTES.toNanos(1)));
+  }
+
+
+  // Writes filesPerSize files of random bytes for each size, returning their paths and weights
+  static Map<String, Integer> generateTree(Path root, LoadTestConfig config) throws IOException
+  {
+    final Map<String, Integer> paths = new LinkedHashMap<>();
+    for (Map.Entry<Integer, Integer> size : config.getSizeMix().entrySet())
+    {
+      final Path directory = Files.createDirectory(root.resolve(String.valueOf(size.getKey())));
+      for (int i = 0; i < config.getFilesPerSize(); i++)
+      {
+        final byte[] content = new byte[size.getKey()];
+        ThreadLocalRandom.current().nextBytes(content);
+        Files.write(directory.resolve("file" + i + ".bin"), content);
+        paths.put("/" + size.getKey() + "/file" + i + ".bin", size.getValue());
+      }
+    }
+    return paths;
+  }
+
+
+  static void deleteTree(Path root) throws IOException
+  {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+    {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+      {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException
+      {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+
+  public static void main(String[] args) throws Exception
+  {
+    NettyWebserverMain.setLoggingLevel(Level.WARN);
+    final LoadTestConfig config = LoadTestConfig.fromSystemProperties();
+    final Path root = Files.createTempDirectory("webserver-loadtest");
+    try
+    {
+      final Map<String, Integer> paths = generateTree(root, config);
+      final NettyWebserverMain serverMain = new NettyWebserverMain(ServerConfig.fromSystemProperties()
+          .port(0)
+          .bindAddresses(ImmutableList.of("127.0.0.1"))
+          .build(), root);
+      serverMain.bind();
+      final LoadTestResult result;
+      try
+      {
+        System.err.println(String.format("Running against port [%d] with %s", serverMain.getPort(),
+            config));
+        result = new LoadGenerator(config,
+            new InetSocketAddress("127.0.0.1", serverMain.getPort()), paths).run();
+      }
+      finally
+      {
+        serverMain.stop();
+      }
+
+      final String json = result.toJson();
+      System.out.println(json);
+      if (!config.getOutput().isEmpty())
+      {
+        Files.write(Paths.get(config.getOutput()), json.getBytes(Charsets.UTF_8));
+      }
+    }
+    finally
+    {
+      deleteTree(root);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package net.jeffpoole.httpserver.loadtest;
+
+import java.util.Map;
+
+import lombok.Value;
+import lombok.experimental.Builder;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+
+
+/**
+ * Settings for a load test run, read from system properties (-Dloadtest.*) by fromSystemProperties().
+ * The server under test is configured from the usual -Dwebserver.* properties.
+ */
+@Value
+@Builder
+public class LoadTestConfig
+{
+  int connections;
+  // Requests kept outstanding on each connection; only used with keep-alive
+  int pipelineDepth;
+  // Otherwise every request asks for Connection: close and is sent on a new connection
+  boolean keepAlive;
+  // File size in bytes -> relative weight of requests for files of that size
+  Map<Integer, Integer> sizeMix;
+  // Files generated for each size, so requests don't all hit the same path
+  int filesPerSize;
+  int warmupSeconds;
+  int durationSeconds;
+  int clientThreads;
+  // Where the JSON results are written, in addition to standard out; empty for none
+  String output;
+
+
+  public static class LoadTestConfigBuilder
+  {
+    private int connections = 16;
+    private int pipelineDepth = 1;
+    private boolean keepAlive = true;
+    // the sizes of the wwwroot fixtures
+    private Map<Integer, Integer> sizeMix = ImmutableMap.of(16, 1, 1024, 1, 102400, 1);
+    private int filesPerSize = 10;
+    private int warmupSeconds = 5;
+    private int durationSeconds = 15;
+    private int clientThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private String output = "target/loadtest-result.json";
+  }
+
+
+  public static LoadTestConfig fromSystemProperties()
+  {
+    final LoadTestConfig defaults = builder().build();
+    final String sizeMix = System.getProperty("loadtest.sizeMix");
+    return builder()
+        .connections(Integer.getInteger("loadtest.connections", defaults.connections))
+        .pipelineDepth(Integer.getInteger("loadtest.pipelineDepth", defaults.pipelineDepth))
+        .keepAlive(Boolean.parseBoolean(
+            System.getProperty("loadtest.keepAlive", String.valueOf(defaults.keepAlive))))
+        .sizeMix(sizeMix == null ? defaults.sizeMix : parseSizeMix(sizeMix))
+        .filesPerSize(Integer.getInteger("loadtest.filesPerSize", defaults.filesPerSize))
+        .warmupSeconds(Integer.getInteger("loadtest.warmupSeconds", defaults.warmupSeconds))
+        .durationSeconds(Integer.getInteger("loadtest.durationSeconds", defaults.durationSeconds))
+        .clientThreads(Integer.getInteger("loadtest.clientThreads", defaults.clientThreads))
+        .output(System.getProperty("loadtest.output", defaults.output))
+        .build();
+  }
+
+
+  // "16:4,1024:4,102400:1" means 16 and 1KB files are each requested four times as often as 100KB
+  static Map<Integer, Integer> parseSizeMix(String sizeMix)
+  {
+    final ImmutableMap.Builder<Integer, Integer> mix = ImmutableMap.builder();
+    for (Map.Entry<String, String> entry : Splitter.on(',').trimResults().omitEmptyStrings()
+        .withKeyValueSeparator(':').split(sizeMix).entrySet())
+    {
+      mix.put(Integer.valueOf(entry.getKey().trim()), Integer.valueOf(entry.getValue().trim()));
+    }
+    return mix.build();
+  }
+}
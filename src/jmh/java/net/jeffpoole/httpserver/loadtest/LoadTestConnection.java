@@ -0,0 +1,103 @@
+package net.jeffpoole.httpserver.loadtest;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.util.ArrayDeque;
+
+import lombok.RequiredArgsConstructor;
+
+
+/**
+ * Drives requests over one client connection, and records how long each response took from writing
+ * the request (or starting to connect, when every request gets its own connection) to reading the end
+ * of the response.  With keep-alive, pipelineDepth requests are kept outstanding; otherwise each
+ * connection is closed after one response and LoadGenerator opens another.
+ */
+@RequiredArgsConstructor
+class LoadTestConnection extends SimpleChannelInboundHandler<HttpObject>
+{
+  final LoadGenerator generator;
+  final long connectStarted;
+  // When each outstanding request was sent, oldest first.  Only used on the channel's event loop.
+  final ArrayDeque<Long> sent = new ArrayDeque<>();
+
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx)
+  {
+    if (generator.config.isKeepAlive())
+    {
+      for (int i = 0; i < generator.config.getPipelineDepth(); i++)
+      {
+        send(ctx, System.nanoTime());
+      }
+    }
+    else
+    {
+      send(ctx, connectStarted);
+    }
+    ctx.flush();
+  }
+
+
+  @Override
+  protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg)
+  {
+    if (msg instanceof HttpResponse && ((HttpResponse) msg).getStatus().code() >= 400)
+    {
+      generator.errors.increment();
+    }
+    if (msg instanceof HttpContent)
+    {
+      generator.bytes.add(((HttpContent) msg).content().readableBytes());
+    }
+    if (msg instanceof LastHttpContent)
+    {
+      generator.recordLatency(System.nanoTime() - sent.remove());
+      if (!generator.config.isKeepAlive())
+      {
+        ctx.close();
+      }
+      else if (generator.running)
+      {
+        send(ctx, System.nanoTime());
+        ctx.flush();
+      }
+    }
+  }
+
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx)
+  {
+    if (generator.running)
+    {
+      if (generator.config.isKeepAlive() || !sent.isEmpty())
+      {
+        // the server shouldn't be closing connections on us, or before answering
+        generator.errors.increment();
+      }
+      generator.connect();
+    }
+  }
+
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+  {
+    generator.errors.increment();
+    ctx.close();
+  }
+
+
+  private void send(ChannelHandlerContext ctx, long started)
+  {
+    sent.add(started);
+    ctx.write(generator.nextRequest());
+  }
+}
@@ -0,0 +1,76 @@
+package net.jeffpoole.httpserver.loadtest;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Value;
+
+import org.HdrHistogram.Histogram;
+
+
+/**
+ * The outcome of a load test run.  toJson() gives the machine-readable form, with latencies in
+ * microseconds.
+ */
+@Value
+public class LoadTestResult
+{
+  LoadTestConfig config;
+  long elapsedNanos;
+  Histogram latencies;
+  long errors;
+  long bytes;
+
+
+  public double getRequestsPerSecond()
+  {
+    return latencies.getTotalCount() / seconds();
+  }
+
+
+  public String toJson()
+  {
+    final StringBuilder sizeMix = new StringBuilder();
+    for (Map.Entry<Integer, Integer> entry : config.getSizeMix().entrySet())
+    {
+      sizeMix.append(sizeMix.length() == 0 ? "" : ", ")
+          .append('"').append(entry.getKey()).append("\": ").append(entry.getValue());
+    }
+    return String.format(Locale.ROOT, "{\n" +
+            "  \"connections\": %d,\n" +
+            "  \"pipelineDepth\": %d,\n" +
+            "  \"keepAlive\": %b,\n" +
+            "  \"sizeMix\": {%s},\n" +
+            "  \"durationSeconds\": %.3f,\n" +
+            "  \"requests\": %d,\n" +
+            "  \"errors\": %d,\n" +
+            "  \"requestsPerSecond\": %.1f,\n" +
+            "  \"bytesPerSecond\": %.1f,\n" +
+            "  \"latencyMicros\": {\n" +
+            "    \"mean\": %.1f,\n" +
+            "    \"p50\": %.1f,\n" +
+            "    \"p90\": %.1f,\n" +
+            "    \"p99\": %.1f,\n" +
+            "    \"p999\": %.1f,\n" +
+            "    \"max\": %.1f\n" +
+            "  }\n" +
+            "}",
+        config.getConnections(), config.getPipelineDepth(), config.isKeepAlive(), sizeMix,
+        seconds(), latencies.getTotalCount(), errors, getRequestsPerSecond(), bytes / seconds(),
+        latencies.getMean() / 1000, micros(50), micros(90), micros(99), micros(99.9),
+        latencies.getMaxValue() / 1000.0);
+  }
+
+
+  private double seconds()
+  {
+    return elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+  }
+
+
+  private double micros(double percentile)
+  {
+    return latencies.getValueAtPercentile(percentile) / 1000.0;
+  }
+}
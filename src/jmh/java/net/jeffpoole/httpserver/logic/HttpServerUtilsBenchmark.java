@@ -0,0 +1,43 @@
+package net.jeffpoole.httpserver.logic;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Formatting HTTP dates, against the cached Date header value most responses use instead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpServerUtilsBenchmark
+{
+  Instant instant = Instant.parse("2015-09-06T10:15:30.00Z");
+
+
+  @Benchmark
+  public String instantToHttpDate()
+  {
+    return HttpServerUtils.instantToHttpDate(instant);
+  }
+
+
+  @Benchmark
+  public String currentHttpDate()
+  {
+    return HttpServerUtils.currentHttpDate();
+  }
+}
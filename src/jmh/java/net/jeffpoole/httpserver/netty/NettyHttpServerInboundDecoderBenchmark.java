@@ -0,0 +1,109 @@
+package net.jeffpoole.httpserver.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+
+/**
+ * The decoder as it sits in the pipeline: a batch of pipelined requests arriving in one read, and
+ * the same bytes arriving in small fragments (as from a slow client or a small receive window).
+ * Scores are per batch of requests.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NettyHttpServerInboundDecoderBenchmark
+{
+  static final String REQUEST = "GET /1kbyte HTTP/1.1\r\n" +
+      "Host: localhost:8080\r\n" +
+      "User-Agent: webserver-benchmark\r\n" +
+      "Accept: */*\r\n" +
+      "\r\n";
+
+  @Param({ "1", "16" })
+  int pipelineDepth;
+
+  @Param({ "16" })
+  int fragmentSize;
+
+  EmbeddedChannel channel;
+  ByteBuf pipelined;
+  ByteBuf[] fragments;
+
+
+  @Setup
+  public void setUp()
+  {
+    channel = new EmbeddedChannel(new NettyHttpServerInboundDecoder());
+    pipelined = Unpooled.directBuffer().writeBytes(
+        Strings.repeat(REQUEST, pipelineDepth).getBytes(Charsets.ISO_8859_1));
+    final int count = (pipelined.readableBytes() + fragmentSize - 1) / fragmentSize;
+    fragments = new ByteBuf[count];
+    for (int i = 0; i < count; i++)
+    {
+      final int index = i * fragmentSize;
+      fragments[i] = pipelined.slice(index, Math.min(fragmentSize, pipelined.readableBytes() - index));
+    }
+  }
+
+
+  @TearDown
+  public void tearDown()
+  {
+    channel.finish();
+    pipelined.release();
+  }
+
+
+  @Benchmark
+  public void pipelined(Blackhole blackhole)
+  {
+    // the decoder releases what it reads, so hand it a retained view each time
+    channel.writeInbound(pipelined.duplicate().retain());
+    drain(blackhole);
+  }
+
+
+  @Benchmark
+  public void fragmented(Blackhole blackhole)
+  {
+    for (ByteBuf fragment : fragments)
+    {
+      channel.writeInbound(fragment.duplicate().retain());
+    }
+    drain(blackhole);
+  }
+
+
+  private void drain(Blackhole blackhole)
+  {
+    Object request;
+    while ((request = channel.readInbound()) != null)
+    {
+      blackhole.consume(request);
+    }
+  }
+}
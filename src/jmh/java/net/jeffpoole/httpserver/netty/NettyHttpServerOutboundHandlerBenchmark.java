@@ -0,0 +1,101 @@
+package net.jeffpoole.httpserver.netty;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.jeffpoole.httpserver.data.FileBlob;
+import net.jeffpoole.httpserver.datasource.DataResource;
+import net.jeffpoole.httpserver.logic.HttpServer;
+import net.jeffpoole.httpserver.parsing.HttpRequest;
+import net.jeffpoole.httpserver.parsing.HttpResponse;
+
+
+/**
+ * Encoding a 200 response for a file, across file sizes on both sides of
+ * MINIMUM_SIZE_FOR_ZERO_COPY_SEND, with and without the content cache.  Only the handler is measured;
+ * the written messages are released rather than sent, so zero-copy sends look cheaper here than they
+ * are on a real socket (the loopback load generator covers that).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NettyHttpServerOutboundHandlerBenchmark
+{
+  @Param({ "16", "1024", "4095", "4096", "65536", "1048576" })
+  int size;
+
+  @Param({ "false", "true" })
+  boolean contentCache;
+
+  Path file;
+  EmbeddedChannel channel;
+  HttpResponse response;
+
+
+  @Setup
+  public void setUp() throws Exception
+  {
+    file = Files.createTempFile("webserver-benchmark", ".bin");
+    Files.write(file, new byte[size]);
+    final File asFile = file.toFile();
+    final DataResource resource = new DataResource(
+        "/file.bin",
+        true,
+        "etag" + size,
+        Instant.ofEpochMilli(asFile.lastModified()),
+        "application/octet-stream",
+        Optional.of((long) size),
+        new FileBlob(asFile));
+    final HttpServer server = new HttpServer(path -> resource);
+    response = server.respond(HttpRequest.parse("GET /file.bin HTTP/1.1\r\n\r\n"));
+    channel = new EmbeddedChannel(new NettyHttpServerOutboundHandler(contentCache
+        ? new ContentCache(PooledByteBufAllocator.DEFAULT, 64 * 1024 * 1024, 1024 * 1024)
+        : null));
+    channel.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+  }
+
+
+  @TearDown
+  public void tearDown() throws IOException
+  {
+    channel.finish();
+    Files.delete(file);
+  }
+
+
+  @Benchmark
+  public void write()
+  {
+    channel.writeOutbound(response);
+    Object written;
+    while ((written = channel.readOutbound()) != null)
+    {
+      ReferenceCountUtil.release(written);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package net.jeffpoole.httpserver.parsing;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+
+
+/**
+ * Parsing a complete request head from a buffer, for a minimal request and one with the headers a
+ * browser would send.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpRequestParseBenchmark
+{
+  static final String CURL = "GET /1kbyte HTTP/1.1\r\n" +
+      "User-Agent: curl/7.43.0\r\n" +
+      "Host: localhost:8080\r\n" +
+      "Accept: */*\r\n" +
+      "\r\n";
+
+  static final String BROWSER = "GET /static/js/app.js?v=12 HTTP/1.1\r\n" +
+      "Host: www.example.com\r\n" +
+      "Connection: keep-alive\r\n" +
+      "Accept: application/javascript, */*;q=0.8\r\n" +
+      "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11) AppleWebKit/537.36 (KHTML, " +
+      "like Gecko) Chrome/45.0.2454.85 Safari/537.36\r\n" +
+      "Referer: http://www.example.com/index.html\r\n" +
+      "Accept-Encoding: gzip, deflate, sdch\r\n" +
+      "Accept-Language: en-US,en;q=0.8\r\n" +
+      "Cookie: session=0123456789abcdef0123456789abcdef; theme=dark\r\n" +
+      "If-None-Match: \"ee07d9055040af31cbc9538985fbed9ee65f61ac\"\r\n" +
+      "If-Modified-Since: Tue, 15 Sep 2015 17:00:47 GMT\r\n" +
+      "\r\n";
+
+  @Param({ "curl", "browser" })
+  String request;
+
+  ByteBuf buf;
+
+
+  @Setup
+  public void setUp()
+  {
+    buf = Unpooled.directBuffer().writeBytes(
+        ("curl".equals(request) ? CURL : BROWSER).getBytes(Charsets.ISO_8859_1));
+  }
+
+
+  @TearDown
+  public void tearDown()
+  {
+    buf.release();
+  }
+
+
+  @Benchmark
+  public HttpRequest parse() throws Exception
+  {
+    buf.readerIndex(0);
+    return HttpRequest.parse(buf);
+  }
+}
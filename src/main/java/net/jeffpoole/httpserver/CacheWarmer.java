@@ -0,0 +1,242 @@
+package net.jeffpoole.httpserver;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import net.jeffpoole.httpserver.data.Blob;
+import net.jeffpoole.httpserver.datasource.DataResource;
+import net.jeffpoole.httpserver.datasource.DataSource;
+import net.jeffpoole.httpserver.netty.ContentCache;
+
+
+/**
+ * Gets the server ready for the requests it is likely to see first, before it starts taking them.
+ * The paths come from a file that is either a plain list of paths or an access log (common or
+ * combined format), and are warmed most frequent first.  Each one is looked up through the
+ * DataSource (so its metadata is cached), and its contents are loaded into the ContentCache if it
+ * fits there, or read once so the OS has it in the page cache otherwise.
+ *
+ * Warming stops once the byte budget is used up or the time limit is reached, whichever is first.
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class CacheWarmer
+{
+  // The request and (optionally) the status out of an access log line
+  static final Pattern LOG_REQUEST =
+      Pattern.compile("\"(?:GET|HEAD) (\\S+)[^\"]*\"(?: (\\d{3}))?");
+  static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  final DataSource dataSource;
+  // null if there is no content cache
+  final ContentCache contentCache;
+  final long maximumBytes;
+  final long timeLimitMillis;
+  final int threads;
+
+
+  /**
+   * The paths in a hot list or access log, most requested first (ties keep the order they first
+   * appear in).  Access log requests that didn't succeed aren't counted.
+   */
+  static List<String> readPaths(Path file) throws IOException
+  {
+    final Map<String, Integer> counts = new LinkedHashMap<>();
+    for (String line : Files.readAllLines(file, Charsets.UTF_8))
+    {
+      line = line.trim();
+      String path = null;
+      if (line.startsWith("/"))
+      {
+        path = line.split("\\s", 2)[0];
+      }
+      else
+      {
+        final Matcher matcher = LOG_REQUEST.matcher(line);
+        if (matcher.find() && (matcher.group(2) == null || matcher.group(2).startsWith("2")
+            || matcher.group(2).equals("304")))
+        {
+          path = matcher.group(1);
+        }
+      }
+      if (path != null)
+      {
+        counts.merge(path, 1, Integer::sum);
+      }
+    }
+    final List<String> paths = new ArrayList<>(counts.keySet());
+    // a stable sort, so ties stay in order
+    Collections.sort(paths, (a, b) -> counts.get(b) - counts.get(a));
+    return paths;
+  }
+
+
+  // Returns the number of bytes of content warmed
+  public long warm(Path pathsFile) throws IOException, InterruptedException
+  {
+    return warm(readPaths(pathsFile));
+  }
+
+
+  public long warm(List<String> paths) throws InterruptedException
+  {
+    final long start = System.nanoTime();
+    final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeLimitMillis);
+    final AtomicLong warmed = new AtomicLong();
+    final ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("cache-warmer-%d").setDaemon(true).build());
+    try
+    {
+      for (String path : paths)
+      {
+        executor.execute(() -> {
+          if (System.nanoTime() - deadline < 0 && warmed.get() < maximumBytes)
+          {
+            warm(path, warmed);
+          }
+        });
+      }
+      executor.shutdown();
+      if (!executor.awaitTermination(timeLimitMillis, TimeUnit.MILLISECONDS))
+      {
+        log.warn("Cache warm-up ran out of time after {}ms", timeLimitMillis);
+      }
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+    log.info("Warmed {} bytes for {} paths in {}ms", warmed.get(), paths.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return warmed.get();
+  }
+
+
+  void warm(String path, AtomicLong warmed)
+  {
+    try
+    {
+      final DataResource resource = dataSource.get(path);
+      if (!resource.isPresent() || resource.getData() == null)
+      {
+        return;
+      }
+      final long size = resource.getSize().orElse(-1L);
+      // claimed up front, so threads don't all overshoot the budget together
+      if (size < 0 || warmed.addAndGet(size) > maximumBytes)
+      {
+        if (size >= 0)
+        {
+          warmed.addAndGet(-size);
+        }
+        return;
+      }
+      final long modifiedMillis = resource.getModifiedTimestamp() != null
+          ? resource.getModifiedTimestamp().toEpochMilli() : -1;
+      resource.getData().accept(new Loader(modifiedMillis));
+    }
+    catch (IOException | RuntimeException e)
+    {
+      log.debug("Could not warm [{}]", path, e);
+    }
+  }
+
+
+  // Pulls a resource's contents into memory, however they are held
+  @RequiredArgsConstructor
+  class Loader implements Blob.Visitor<Void>
+  {
+    final long modifiedMillis;
+
+
+    @Override
+    public Void bytes(byte[] bytes)
+    {
+      // already in memory
+      return null;
+    }
+
+
+    @Override
+    public Void file(File file, long position, long length) throws IOException
+    {
+      final long fileLength = file.length();
+      if (contentCache != null && modifiedMillis >= 0
+          && fileLength <= contentCache.getMaximumEntrySize())
+      {
+        ByteBuf content = contentCache.get(file, modifiedMillis);
+        if (content == null)
+        {
+          content = contentCache.load(file, modifiedMillis, fileLength);
+        }
+        if (content != null)
+        {
+          content.release();
+        }
+        return null;
+      }
+
+      // too big for the content cache, so just get it into the page cache
+      final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+      try (FileChannel channel = FileChannel.open(file.toPath()))
+      {
+        channel.position(position);
+        long remaining = length < 0 ? Long.MAX_VALUE : length;
+        while (remaining > 0)
+        {
+          buffer.clear();
+          buffer.limit((int) Math.min(buffer.capacity(), remaining));
+          final int read = channel.read(buffer);
+          if (read < 0)
+          {
+            break;
+          }
+          remaining -= read;
+        }
+      }
+      return null;
+    }
+
+
+    @Override
+    public Void composite(List<Blob> parts) throws IOException
+    {
+      for (Blob part : parts)
+      {
+        part.accept(this);
+      }
+      return null;
+    }
+
+
+    @Override
+    public Void stream(Blob blob)
+    {
+      // generated as it's sent (e.g. huge directory listings), so there's nothing to load
+      return null;
+    }
+  }
+}
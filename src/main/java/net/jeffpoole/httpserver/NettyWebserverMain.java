@@ -1,85 +1,370 @@
 package net.jeffpoole.httpserver;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateHandler;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
+import com.google.common.collect.Iterables;
+import net.jeffpoole.httpserver.datasource.CachingDataSource;
+import net.jeffpoole.httpserver.datasource.DataSource;
 import net.jeffpoole.httpserver.datasource.FileDataSource;
+import net.jeffpoole.httpserver.logic.CompressedVariants;
 import net.jeffpoole.httpserver.logic.HttpServer;
+import net.jeffpoole.httpserver.logic.VirtualHostServer;
+import net.jeffpoole.httpserver.metrics.AccessLog;
+import net.jeffpoole.httpserver.metrics.MetricsEndpoint;
+import net.jeffpoole.httpserver.metrics.ServerMetrics;
+import net.jeffpoole.httpserver.metrics.TimedDataSource;
+import net.jeffpoole.httpserver.netty.ConnectionLimiter;
+import net.jeffpoole.httpserver.netty.ContentCache;
+import net.jeffpoole.httpserver.netty.Http2ConnectionHandler;
 import net.jeffpoole.httpserver.netty.NettyHttpServerInboundDecoder;
 import net.jeffpoole.httpserver.netty.NettyHttpServerInboundHandler;
 import net.jeffpoole.httpserver.netty.NettyHttpServerOutboundHandler;
+import net.jeffpoole.httpserver.netty.RequestExecutors;
+import net.jeffpoole.httpserver.netty.TlsContext;
+import net.jeffpoole.httpserver.parsing.HttpRequest;
 
 
 /**
  * This is the main entrypoint of the server.
- * The start() method sets up a Netty NioServerSocketChannel, listening on the provided port.
+ * The start() method sets up Netty server channels (NIO, or native epoll if configured) listening on
+ * the configured port and addresses, plus HTTPS listeners on the TLS port if there is one.
  * Incoming requests go through the pipeline as follows:
  *  NettyHttpServerInboundDecoder -> NettyHttpServerInboundHandler
  *  (which then passes
  * Outgoing requests just go through NettyHttpServerOutboundEncoder then straight to the network.
+ * With TLS, an SslHandler and ChunkedWriteHandler sit in front of all of that.  A cleartext
+ * connection that turns out to be HTTP/2 has all of that replaced by an Http2ConnectionHandler.
  *
+ * pathToServe is the default site.  With virtual hosts configured, each of them gets its own
+ * FileDataSource and caches, and requests are routed between them (and the default) by their Host
+ * header.  They all share the listeners, event loops, content cache and access log.
  */
 @RequiredArgsConstructor
 @ToString
 @Slf4j
 public class NettyWebserverMain
 {
-  final int listenPort;
+  final ServerConfig config;
   final Path pathToServe;
 
 
+  @Getter
+  final ServerMetrics metrics = new ServerMetrics();
+  // Set up by bind(), and released by stop()
+  CachingDataSource dataSource;
+  // Those of the virtual hosts, if there are any
+  final List<CachingDataSource> hostDataSources = new ArrayList<>();
+  ContentCache contentCache;
+  AccessLog accessLog;
+  RequestExecutors requestExecutors;
+  EventLoopGroup bossGroup;
+  EventLoopGroup workerGroup;
+  final List<Channel> listeners = new ArrayList<>();
+  final List<Channel> tlsListeners = new ArrayList<>();
+
+
+  // Binds the listeners, then blocks until they are all closed
   public void start() throws Exception
   {
-    final HttpServer httpServer = new HttpServer(new FileDataSource(pathToServe));
-    EventLoopGroup group = new NioEventLoopGroup();
+    bind();
     try
     {
-      // TODO: support setting specific interfaces / addresses to listen on
-      InetSocketAddress isa = new InetSocketAddress(listenPort);
+      // This blocks on the channels getting closed
+      for (Channel listener : Iterables.concat(listeners, tlsListeners))
+      {
+        listener.closeFuture().sync();
+      }
+    }
+    finally
+    {
+      stop();
+    }
+  }
+
+
+  /**
+   * Binds all the listeners and returns once they are accepting connections.  With port 0, the first
+   * listener gets an ephemeral port and any others (other addresses, or SO_REUSEPORT listeners) use
+   * the same one; getPort() (or getTlsPort()) says which it is.
+   */
+  public synchronized void bind() throws Exception
+  {
+    // Loaded first, so a bad key store fails before anything else is set up
+    final TlsContext tls = config.getTlsPort() > 0 ? TlsContext.load(
+        Paths.get(config.getTlsKeyStore()), config.getTlsKeyStoreType(),
+        config.getTlsKeyStorePassword().toCharArray(), config.getTlsSessionCacheSize(),
+        config.getTlsSessionTimeoutSeconds()) : null;
+
+    dataSource = new CachingDataSource(newFileDataSource(pathToServe), pathToServe,
+        config.getResourceCacheSize());
+    HttpServer httpServer = newHttpServer(dataSource, config.getCompressionCacheBytes());
+    if (!config.getVirtualHosts().isEmpty())
+    {
+      final Map<String, HttpServer> hosts = new LinkedHashMap<>();
+      for (VirtualHost host : VirtualHost.read(Paths.get(config.getVirtualHosts()), config))
+      {
+        final CachingDataSource hostDataSource = new CachingDataSource(
+            newFileDataSource(host.getRoot()), host.getRoot(), host.getResourceCacheSize());
+        hostDataSources.add(hostDataSource);
+        final HttpServer hostServer =
+            newHttpServer(hostDataSource, host.getCompressionCacheBytes());
+        for (String name : host.getNames())
+        {
+          hosts.put(name, hostServer);
+        }
+        log.info("Serving [{}] for {}", host.getRoot(), host.getNames());
+      }
+      httpServer = new VirtualHostServer(hosts, httpServer);
+    }
+    final MetricsEndpoint metricsEndpoint = config.getMetricsPath().isEmpty() ? null
+        : new MetricsEndpoint(config.getMetricsPath(), metrics);
+    requestExecutors = new RequestExecutors(config.getExecutionMode());
+    accessLog = config.getAccessLog().isEmpty() ? null
+        : new AccessLog(Paths.get(config.getAccessLog()), config.getAccessLogBufferSize(),
+            config.getAccessLogMaximumBytes(), config.getAccessLogFiles(), metrics);
+    contentCache = config.getContentCacheBytes() > 0
+        ? new ContentCache(PooledByteBufAllocator.DEFAULT, config.getContentCacheBytes(),
+            config.getContentCacheMaximumEntrySize())
+        : null;
+    if (!config.getWarmupPaths().isEmpty())
+    {
+      // Before anything is listening, so the first requests find everything ready
+      try
+      {
+        new CacheWarmer(dataSource, contentCache, config.getWarmupBytes(),
+            TimeUnit.SECONDS.toMillis(config.getWarmupSeconds()), config.getWarmupThreads())
+            .warm(Paths.get(config.getWarmupPaths()));
+      }
+      catch (IOException e)
+      {
+        log.warn("Could not read the paths to warm up from [{}]", config.getWarmupPaths(), e);
+      }
+    }
+
+    boolean epoll = config.getTransport() == ServerConfig.Transport.EPOLL;
+    if (epoll && !Epoll.isAvailable())
+    {
+      log.warn("Native epoll transport unavailable, falling back to NIO", Epoll.unavailabilityCause());
+      epoll = false;
+    }
+    int listenersPerAddress = config.getListenersPerAddress();
+    if (!epoll && listenersPerAddress > 1)
+    {
+      log.warn("SO_REUSEPORT needs the epoll transport, so only one listener per address is used");
+      listenersPerAddress = 1;
+    }
 
+    bossGroup = epoll ? new EpollEventLoopGroup(config.getBossThreads())
+        : new NioEventLoopGroup(config.getBossThreads());
+    workerGroup = epoll ? new EpollEventLoopGroup(config.getWorkerThreads())
+        : new NioEventLoopGroup(config.getWorkerThreads());
+    try
+    {
       ServerBootstrap bootstrap = new ServerBootstrap();
-      bootstrap.group(group)
-          .channel(NioServerSocketChannel.class)
-          .localAddress(isa)
-          .childHandler(new ChannelInitializer<SocketChannel>()
-          {
-            @Override
-            public void initChannel(SocketChannel ch)
-            {
-              ch.pipeline()
-                  .addLast(new NettyHttpServerInboundDecoder())
-                  .addLast(new NettyHttpServerInboundHandler(httpServer))
-                  .addLast(new NettyHttpServerOutboundHandler());
-            }
-          });
-      log.info("Binding to port [{}]", this.listenPort);
-
-      // This will bind and wait for it to complete
-      ChannelFuture channelFuture = bootstrap.bind().sync();
-
-      // This blocks on the channel getting closed
-      channelFuture.channel().closeFuture().sync();
+      bootstrap.group(bossGroup, workerGroup)
+          .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+          .option(ChannelOption.SO_BACKLOG, config.getBacklog())
+          .childOption(ChannelOption.TCP_NODELAY, config.isTcpNoDelay())
+          // The high mark is set first, as the low mark can't be set above it
+          .childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK,
+              config.getWriteBufferHighWaterMark())
+          .childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK,
+              config.getWriteBufferLowWaterMark())
+          // Response heads are written into pooled buffers rather than allocating each time
+          .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+          .childHandler(newInitializer(httpServer, metricsEndpoint, null));
+      if (config.getMaximumConnections() > 0)
+      {
+        // Shared by every listener, so the cap is for the whole server
+        bootstrap.handler(new ConnectionLimiter(config.getMaximumConnections(), metrics));
+      }
+      if (listenersPerAddress > 1)
+      {
+        bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+      }
+
+      bindListeners(bootstrap, config.getPort(), listenersPerAddress, listeners);
+      if (tls != null)
+      {
+        final ServerBootstrap tlsBootstrap = bootstrap.clone()
+            .childHandler(newInitializer(httpServer, metricsEndpoint, tls));
+        bindListeners(tlsBootstrap, config.getTlsPort(), listenersPerAddress, tlsListeners);
+      }
     }
-    finally
+    catch (Exception e)
+    {
+      stop();
+      throw e;
+    }
+  }
+
+
+  private FileDataSource newFileDataSource(Path root)
+  {
+    return new FileDataSource(root, config.getDetectedContentTypeCacheSize(),
+        config.getDirectoryListingMaximumCachedSize(), config.getDirectoryListingCacheBytes(),
+        config.getNotFoundCacheSize(), config.getNotFoundCacheSeconds());
+  }
+
+
+  private HttpServer newHttpServer(DataSource dataSource, long compressionCacheBytes)
+  {
+    return new HttpServer(new TimedDataSource(dataSource, metrics), compressionCacheBytes > 0
+        ? new CompressedVariants(compressionCacheBytes, config.getCompressionMaximumSize()) : null);
+  }
+
+
+  // The port the listeners are bound to
+  private void bindListeners(final ServerBootstrap bootstrap, int port,
+      final int listenersPerAddress, final List<Channel> bound) throws InterruptedException
+  {
+    final List<String> bindAddresses = config.getBindAddresses().isEmpty()
+        ? Collections.singletonList(null) : config.getBindAddresses();
+    for (String bindAddress : bindAddresses)
     {
-      group.shutdownGracefully().sync();
+      for (int i = 0; i < listenersPerAddress; i++)
+      {
+        final InetSocketAddress address = bindAddress == null ? new InetSocketAddress(port)
+            : new InetSocketAddress(bindAddress, port);
+        if (i == 0)
+        {
+          log.info("Binding {} listener(s) to [{}]", listenersPerAddress, address);
+        }
+        // This will bind the listener and wait for it to complete
+        bound.add(bootstrap.bind(address).sync().channel());
+        port = ((InetSocketAddress) bound.get(0).localAddress()).getPort();
+      }
     }
+  }
+
+
+  // Sets up the pipeline for each new connection; tls is null for plain HTTP
+  private ChannelInitializer<SocketChannel> newInitializer(final HttpServer httpServer,
+      final MetricsEndpoint metricsEndpoint, final TlsContext tls)
+  {
+    final int maximumRequests = config.getMaximumRequestsPerConnection() > 0
+        ? config.getMaximumRequestsPerConnection() : Integer.MAX_VALUE;
+    final boolean idleTimeouts =
+        config.getReadIdleTimeoutSeconds() > 0 || config.getWriteIdleTimeoutSeconds() > 0;
+    return new ChannelInitializer<SocketChannel>()
+    {
+      @Override
+      public void initChannel(SocketChannel ch)
+      {
+        if (tls != null)
+        {
+          ch.pipeline()
+              .addLast(tls.newHandler())
+              .addLast(new ChunkedWriteHandler());
+        }
+        if (idleTimeouts)
+        {
+          ch.pipeline().addLast(new IdleStateHandler(config.getReadIdleTimeoutSeconds(),
+              config.getWriteIdleTimeoutSeconds(), 0, TimeUnit.SECONDS));
+        }
+        // HTTP/2 is only offered in cleartext, where it doesn't need ALPN
+        final Function<HttpRequest, Http2ConnectionHandler> http2 = tls == null && config.isHttp2()
+            ? upgrade -> new Http2ConnectionHandler(httpServer, metrics, metricsEndpoint,
+                accessLog, contentCache, requestExecutors.concurrentExecutor(),
+                config.getHttp2MaximumConcurrentStreams(), maximumRequests, upgrade)
+            : null;
+        ch.pipeline()
+            .addLast(new NettyHttpServerInboundDecoder(metrics, http2))
+            .addLast(new NettyHttpServerInboundHandler(httpServer, metrics, metricsEndpoint,
+                accessLog, requestExecutors.newSerialExecutor(), config.getMaximumPipelinedRequests(),
+                maximumRequests))
+            .addLast(new NettyHttpServerOutboundHandler(contentCache, metrics, tls == null));
+      }
+    };
+  }
+
+
+  public int getPort()
+  {
+    return ((InetSocketAddress) listeners.get(0).localAddress()).getPort();
+  }
+
+
+  public int getTlsPort()
+  {
+    return ((InetSocketAddress) tlsListeners.get(0).localAddress()).getPort();
+  }
+
 
+  // Closes the listeners and releases everything bind() set up
+  public synchronized void stop() throws InterruptedException, IOException
+  {
+    for (Channel listener : Iterables.concat(listeners, tlsListeners))
+    {
+      listener.close().sync();
+    }
+    listeners.clear();
+    tlsListeners.clear();
+    if (bossGroup != null)
+    {
+      bossGroup.shutdownGracefully();
+      workerGroup.shutdownGracefully().sync();
+      bossGroup = null;
+      workerGroup = null;
+    }
+    if (requestExecutors != null)
+    {
+      requestExecutors.close();
+      requestExecutors = null;
+    }
+    if (dataSource != null)
+    {
+      dataSource.close();
+      dataSource = null;
+    }
+    for (CachingDataSource hostDataSource : hostDataSources)
+    {
+      hostDataSource.close();
+    }
+    hostDataSources.clear();
+    if (contentCache != null)
+    {
+      contentCache.invalidateAll();
+      contentCache = null;
+    }
+    if (accessLog != null)
+    {
+      accessLog.close();
+      accessLog = null;
+    }
   }
 
   public static void setLoggingLevel(Level level) {
@@ -111,7 +396,8 @@ public class NettyWebserverMain
 
     System.out.println(String.format("Server starting on port [%d] serving path [%s]...", port, path));
 
-    NettyWebserverMain serverMain = new NettyWebserverMain(port, Paths.get(path));
+    final ServerConfig config = ServerConfig.fromSystemProperties().port(port).build();
+    NettyWebserverMain serverMain = new NettyWebserverMain(config, Paths.get(path));
     serverMain.start();
   }
 }
@@ -0,0 +1,242 @@
+package net.jeffpoole.httpserver;
+
+import java.util.List;
+
+import lombok.ToString;
+import lombok.Value;
+import lombok.experimental.Builder;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+
+/**
+ * Settings for the server, normally read from system properties (-Dwebserver.*) by
+ * fromSystemProperties().  Anything not set keeps the default given in the builder.
+ */
+@Value
+@Builder
+@ToString(exclude = "tlsKeyStorePassword")
+public class ServerConfig
+{
+  public enum Transport
+  {
+    NIO,
+    // Linux only; falls back to NIO if the native library can't be loaded
+    EPOLL
+  }
+
+  // What requests are handled on, once decoded (see RequestExecutors)
+  public enum ExecutionMode
+  {
+    HAWTDISPATCH,
+    // Java 21+; falls back to a cached thread pool on older JVMs
+    VIRTUAL_THREADS
+  }
+
+  int port;
+  // Addresses to listen on; empty means the wildcard address
+  List<String> bindAddresses;
+  Transport transport;
+  int bossThreads;
+  // 0 means Netty's default (twice the number of cores)
+  int workerThreads;
+  // With the epoll transport, this many sockets are bound to each address with SO_REUSEPORT, so the
+  // kernel spreads incoming connections (and the accept work) across them
+  int listenersPerAddress;
+  int backlog;
+  boolean tcpNoDelay;
+  // Port for HTTPS listeners (on the same addresses); 0 for none
+  int tlsPort;
+  // Key store holding the server's key and certificate chain, with the key under the same password
+  String tlsKeyStore;
+  String tlsKeyStoreType;
+  String tlsKeyStorePassword;
+  // TLS sessions kept for resumption, and for how long
+  int tlsSessionCacheSize;
+  int tlsSessionTimeoutSeconds;
+  // Bytes queued for a connection before it stops reading requests, and the level it resumes at
+  int writeBufferHighWaterMark;
+  int writeBufferLowWaterMark;
+  // Requests read from a connection but not yet answered before it stops reading more
+  int maximumPipelinedRequests;
+  // Requests answered on a connection before closing it; 0 for no limit
+  int maximumRequestsPerConnection;
+  // Whether cleartext connections can use HTTP/2 (with prior knowledge, or by upgrading to h2c)
+  boolean http2;
+  // Streams a client can have open at once on an HTTP/2 connection
+  int http2MaximumConcurrentStreams;
+  // Open connections before new ones are refused; 0 for no limit
+  int maximumConnections;
+  // Idle connections (nothing being read or answered) are closed after this long; 0 for never
+  int readIdleTimeoutSeconds;
+  // Connections that haven't taken any of their responses for this long are closed; 0 for never
+  int writeIdleTimeoutSeconds;
+  ExecutionMode executionMode;
+  // File listing the sites served by name-based virtual hosting (see VirtualHost); empty for none
+  String virtualHosts;
+  // Maximum number of resources whose metadata is kept in memory (for each site)
+  long resourceCacheSize;
+  // Maximum number of files whose sniffed content type is kept (for each site)
+  long detectedContentTypeCacheSize;
+  // Directory listings longer than this many characters are streamed rather than kept
+  int directoryListingMaximumCachedSize;
+  // Total bytes of rendered directory listings kept in memory (for each site)
+  long directoryListingCacheBytes;
+  // Maximum number of paths remembered as not found (for each site)
+  long notFoundCacheSize;
+  // Longest a path is remembered as not found, for changes the file watcher misses
+  long notFoundCacheSeconds;
+  // Hot list or access log of the paths to warm up before listening; empty for none
+  String warmupPaths;
+  // Most bytes of content warm-up will load
+  long warmupBytes;
+  // Longest warm-up can delay listening
+  int warmupSeconds;
+  int warmupThreads;
+  // Total bytes of file contents kept in direct memory; 0 turns the content cache off
+  long contentCacheBytes;
+  // Files bigger than this are never put in the content cache
+  long contentCacheMaximumEntrySize;
+  // Total bytes of gzipped responses kept in memory (for each site); 0 turns compression off
+  long compressionCacheBytes;
+  // Resources bigger than this are never compressed on the fly (.gz sidecars are still used)
+  long compressionMaximumSize;
+  // File requests are logged to (in the common log format); empty for none
+  String accessLog;
+  // Requests the access log can hold before its writer catches up; more than that are dropped
+  int accessLogBufferSize;
+  // The access log is rotated at this size (0 for never), keeping this many old ones
+  long accessLogMaximumBytes;
+  int accessLogFiles;
+  // Reserved path answered with metrics in the Prometheus text format; empty for none
+  String metricsPath;
+
+
+  public static class ServerConfigBuilder
+  {
+    private int port = 8080;
+    private List<String> bindAddresses = ImmutableList.of();
+    private Transport transport = Transport.NIO;
+    private int bossThreads = 1;
+    private int workerThreads = 0;
+    private int listenersPerAddress = 1;
+    private int backlog = 1024;
+    private boolean tcpNoDelay = true;
+    private int tlsPort = 0;
+    private String tlsKeyStore = "";
+    private String tlsKeyStoreType = "PKCS12";
+    private String tlsKeyStorePassword = "";
+    private int tlsSessionCacheSize = 10000;
+    private int tlsSessionTimeoutSeconds = 3600;
+    private int writeBufferHighWaterMark = 64 * 1024;
+    private int writeBufferLowWaterMark = 32 * 1024;
+    private int maximumPipelinedRequests = 64;
+    private int maximumRequestsPerConnection = 0;
+    private boolean http2 = true;
+    private int http2MaximumConcurrentStreams = 100;
+    private int maximumConnections = 0;
+    private int readIdleTimeoutSeconds = 60;
+    private int writeIdleTimeoutSeconds = 60;
+    private ExecutionMode executionMode = ExecutionMode.HAWTDISPATCH;
+    private String virtualHosts = "";
+    private long resourceCacheSize = 10000;
+    private long detectedContentTypeCacheSize = 10000;
+    private int directoryListingMaximumCachedSize = 1024 * 1024;
+    private long directoryListingCacheBytes = 16 * 1024 * 1024;
+    private long notFoundCacheSize = 10000;
+    private long notFoundCacheSeconds = 5;
+    private String warmupPaths = "";
+    private long warmupBytes = 256 * 1024 * 1024;
+    private int warmupSeconds = 30;
+    private int warmupThreads = Runtime.getRuntime().availableProcessors();
+    private long contentCacheBytes = 64 * 1024 * 1024;
+    private long contentCacheMaximumEntrySize = 1024 * 1024;
+    private long compressionCacheBytes = 32 * 1024 * 1024;
+    private long compressionMaximumSize = 8 * 1024 * 1024;
+    private String accessLog = "";
+    private int accessLogBufferSize = 64 * 1024;
+    private long accessLogMaximumBytes = 100 * 1024 * 1024;
+    private int accessLogFiles = 5;
+    private String metricsPath = "/_metrics";
+  }
+
+
+  public static ServerConfigBuilder fromSystemProperties()
+  {
+    final ServerConfig defaults = builder().build();
+    final int listenersPerAddress =
+        Integer.getInteger("webserver.listenersPerAddress", defaults.listenersPerAddress);
+    return builder()
+        .bindAddresses(ImmutableList.copyOf(Splitter.on(',').trimResults().omitEmptyStrings()
+            .split(System.getProperty("webserver.bindAddresses", ""))))
+        .transport(Transport.valueOf(
+            System.getProperty("webserver.transport", defaults.transport.name()).toUpperCase()))
+        // one acceptor thread per listening socket, unless told otherwise
+        .bossThreads(Integer.getInteger("webserver.bossThreads", listenersPerAddress))
+        .workerThreads(Integer.getInteger("webserver.workerThreads", defaults.workerThreads))
+        .listenersPerAddress(listenersPerAddress)
+        .backlog(Integer.getInteger("webserver.backlog", defaults.backlog))
+        .tcpNoDelay(Boolean.parseBoolean(
+            System.getProperty("webserver.tcpNoDelay", String.valueOf(defaults.tcpNoDelay))))
+        .tlsPort(Integer.getInteger("webserver.tlsPort", defaults.tlsPort))
+        .tlsKeyStore(System.getProperty("webserver.tlsKeyStore", defaults.tlsKeyStore))
+        .tlsKeyStoreType(System.getProperty("webserver.tlsKeyStoreType", defaults.tlsKeyStoreType))
+        .tlsKeyStorePassword(
+            System.getProperty("webserver.tlsKeyStorePassword", defaults.tlsKeyStorePassword))
+        .tlsSessionCacheSize(
+            Integer.getInteger("webserver.tlsSessionCacheSize", defaults.tlsSessionCacheSize))
+        .tlsSessionTimeoutSeconds(Integer.getInteger("webserver.tlsSessionTimeoutSeconds",
+            defaults.tlsSessionTimeoutSeconds))
+        .writeBufferHighWaterMark(Integer.getInteger("webserver.writeBufferHighWaterMark",
+            defaults.writeBufferHighWaterMark))
+        .writeBufferLowWaterMark(Integer.getInteger("webserver.writeBufferLowWaterMark",
+            defaults.writeBufferLowWaterMark))
+        .maximumPipelinedRequests(Integer.getInteger("webserver.maximumPipelinedRequests",
+            defaults.maximumPipelinedRequests))
+        .maximumRequestsPerConnection(Integer.getInteger("webserver.maximumRequestsPerConnection",
+            defaults.maximumRequestsPerConnection))
+        .http2(Boolean.parseBoolean(
+            System.getProperty("webserver.http2", String.valueOf(defaults.http2))))
+        .http2MaximumConcurrentStreams(Integer.getInteger("webserver.http2MaximumConcurrentStreams",
+            defaults.http2MaximumConcurrentStreams))
+        .maximumConnections(
+            Integer.getInteger("webserver.maximumConnections", defaults.maximumConnections))
+        .readIdleTimeoutSeconds(Integer.getInteger("webserver.readIdleTimeoutSeconds",
+            defaults.readIdleTimeoutSeconds))
+        .writeIdleTimeoutSeconds(Integer.getInteger("webserver.writeIdleTimeoutSeconds",
+            defaults.writeIdleTimeoutSeconds))
+        .executionMode(ExecutionMode.valueOf(System.getProperty("webserver.executionMode",
+            defaults.executionMode.name()).toUpperCase()))
+        .virtualHosts(System.getProperty("webserver.virtualHosts", defaults.virtualHosts))
+        .resourceCacheSize(Long.getLong("webserver.resourceCacheSize", defaults.resourceCacheSize))
+        .detectedContentTypeCacheSize(Long.getLong("webserver.detectedContentTypeCacheSize",
+            defaults.detectedContentTypeCacheSize))
+        .directoryListingMaximumCachedSize(Integer.getInteger(
+            "webserver.directoryListingMaximumCachedSize",
+            defaults.directoryListingMaximumCachedSize))
+        .directoryListingCacheBytes(Long.getLong("webserver.directoryListingCacheBytes",
+            defaults.directoryListingCacheBytes))
+        .notFoundCacheSize(Long.getLong("webserver.notFoundCacheSize", defaults.notFoundCacheSize))
+        .notFoundCacheSeconds(Long.getLong("webserver.notFoundCacheSeconds",
+            defaults.notFoundCacheSeconds))
+        .warmupPaths(System.getProperty("webserver.warmupPaths", defaults.warmupPaths))
+        .warmupBytes(Long.getLong("webserver.warmupBytes", defaults.warmupBytes))
+        .warmupSeconds(Integer.getInteger("webserver.warmupSeconds", defaults.warmupSeconds))
+        .warmupThreads(Integer.getInteger("webserver.warmupThreads", defaults.warmupThreads))
+        .contentCacheBytes(Long.getLong("webserver.contentCacheBytes", defaults.contentCacheBytes))
+        .contentCacheMaximumEntrySize(Long.getLong("webserver.contentCacheMaximumEntrySize",
+            defaults.contentCacheMaximumEntrySize))
+        .compressionCacheBytes(
+            Long.getLong("webserver.compressionCacheBytes", defaults.compressionCacheBytes))
+        .compressionMaximumSize(
+            Long.getLong("webserver.compressionMaximumSize", defaults.compressionMaximumSize))
+        .accessLog(System.getProperty("webserver.accessLog", defaults.accessLog))
+        .accessLogBufferSize(
+            Integer.getInteger("webserver.accessLogBufferSize", defaults.accessLogBufferSize))
+        .accessLogMaximumBytes(
+            Long.getLong("webserver.accessLogMaximumBytes", defaults.accessLogMaximumBytes))
+        .accessLogFiles(Integer.getInteger("webserver.accessLogFiles", defaults.accessLogFiles))
+        .metricsPath(System.getProperty("webserver.metricsPath", defaults.metricsPath));
+  }
+}
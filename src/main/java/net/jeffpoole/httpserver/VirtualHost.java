@@ -0,0 +1,80 @@
+package net.jeffpoole.httpserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Value;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+
+/**
+ * One site served by name-based virtual hosting, with the budgets for its own caches.  Sites are
+ * read from a file (-Dwebserver.virtualHosts) with one per line: the names it answers to (separated
+ * by commas; see VirtualHostServer for wildcards), the directory to serve, and optionally its own
+ * cache sizes, which otherwise come from the server-wide settings:
+ *
+ *   # names                        root            settings
+ *   example.com,www.example.com    /srv/example    resourceCacheSize=2000
+ *   *.blog.example.org             /srv/blogs      compressionCacheBytes=4194304
+ *
+ * The content cache isn't split up: it is keyed by file, and sits in the connection pipeline that
+ * every site shares.
+ */
+@Value
+public class VirtualHost
+{
+  List<String> names;
+  Path root;
+  // Maximum number of resources whose metadata is kept in memory
+  long resourceCacheSize;
+  // Total bytes of gzipped responses kept in memory; 0 turns compression off
+  long compressionCacheBytes;
+
+
+  static List<VirtualHost> read(Path file, ServerConfig config) throws IOException
+  {
+    final List<VirtualHost> hosts = new ArrayList<>();
+    for (String line : Files.readAllLines(file, Charsets.UTF_8))
+    {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#"))
+        continue;
+      final List<String> fields = Splitter.onPattern("\\s+").splitToList(line);
+      if (fields.size() < 2)
+        throw new IOException("Expected names and a root in [" + line + "]");
+      long resourceCacheSize = config.getResourceCacheSize();
+      long compressionCacheBytes = config.getCompressionCacheBytes();
+      for (String setting : fields.subList(2, fields.size()))
+      {
+        final int equals = setting.indexOf('=');
+        try
+        {
+          final String name = equals < 0 ? setting : setting.substring(0, equals);
+          final long value = Long.parseLong(setting.substring(equals + 1));
+          if (name.equals("resourceCacheSize"))
+            resourceCacheSize = value;
+          else if (name.equals("compressionCacheBytes"))
+            compressionCacheBytes = value;
+          else
+            throw new IOException("Unknown setting [" + setting + "] in [" + line + "]");
+        }
+        catch (NumberFormatException e)
+        {
+          throw new IOException("Invalid setting [" + setting + "] in [" + line + "]");
+        }
+      }
+      final List<String> names = ImmutableList.copyOf(
+          Splitter.on(',').trimResults().omitEmptyStrings().split(fields.get(0)));
+      // a relative root is relative to the file
+      hosts.add(new VirtualHost(names, file.resolveSibling(fields.get(1)), resourceCacheSize,
+          compressionCacheBytes));
+    }
+    return hosts;
+  }
+}
@@ -1,9 +1,61 @@
 package net.jeffpoole.httpserver.data;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+
+
 /**
- * Abstraction for a source of data.
+ * Abstraction for a source of data.  Besides getBytes(), which reads it all into memory, the data
+ * can be read as a stream with open(), and accept() tells a Visitor how the data is actually held,
+ * so it can be sent the cheapest way (e.g. zero-copy for files).
  */
 public interface Blob
 {
   byte[] getBytes();
+
+  // Used for range requests.  Implementations that can avoid materializing the data should.
+  default Blob slice(long position, long length)
+  {
+    return new ByteArrayBlob(Arrays.copyOfRange(getBytes(), (int) position, (int) (position + length)));
+  }
+
+  // The number of bytes, or -1 if that isn't known until they've all been read
+  default long length()
+  {
+    return -1;
+  }
+
+  // Opens the data for reading from the start.  The caller closes the channel.
+  default ReadableByteChannel open() throws IOException
+  {
+    final byte[] bytes = getBytes();
+    if (bytes == null)
+      throw new IOException("Could not read " + this);
+    return Channels.newChannel(new ByteArrayInputStream(bytes));
+  }
+
+  // Anything that isn't in memory or a file is a stream
+  default <R> R accept(Visitor<R> visitor) throws IOException
+  {
+    return visitor.stream(this);
+  }
+
+
+  interface Visitor<R>
+  {
+    R bytes(byte[] bytes) throws IOException;
+
+    // Part of a file, which can be sent without copying.  A length of -1 means the rest of the file.
+    R file(File file, long position, long length) throws IOException;
+
+    R composite(List<Blob> parts) throws IOException;
+
+    // Read with open(), with length() bytes if known
+    R stream(Blob blob) throws IOException;
+  }
 }
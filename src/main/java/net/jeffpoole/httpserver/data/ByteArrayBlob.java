@@ -1,5 +1,7 @@
 package net.jeffpoole.httpserver.data;
 
+import java.io.IOException;
+
 import lombok.Value;
 
 
@@ -11,4 +13,18 @@ import lombok.Value;
 public class ByteArrayBlob implements Blob
 {
   byte[] bytes;
+
+
+  @Override
+  public long length()
+  {
+    return bytes.length;
+  }
+
+
+  @Override
+  public <R> R accept(Visitor<R> visitor) throws IOException
+  {
+    return visitor.bytes(bytes);
+  }
 }
@@ -0,0 +1,102 @@
+package net.jeffpoole.httpserver.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+
+import lombok.Value;
+
+
+/**
+ * A Blob made of several others sent one after another (used for multipart/byteranges responses),
+ * so file parts can still be sent with zero-copy transfers.
+ */
+@Value
+public class CompositeBlob implements Blob
+{
+  List<Blob> parts;
+
+
+  @Override
+  public byte[] getBytes()
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (Blob part : parts)
+    {
+      byte[] bytes = part.getBytes();
+      out.write(bytes, 0, bytes.length);
+    }
+    return out.toByteArray();
+  }
+
+
+  // -1 if any part's length isn't known
+  @Override
+  public long length()
+  {
+    long length = 0;
+    for (Blob part : parts)
+    {
+      if (part.length() < 0)
+        return -1;
+      length += part.length();
+    }
+    return length;
+  }
+
+
+  // Opens each part in turn, as the previous one runs out
+  @Override
+  public ReadableByteChannel open() throws IOException
+  {
+    final Iterator<Blob> remaining = parts.iterator();
+    return new ReadableByteChannel()
+    {
+      ReadableByteChannel current;
+      boolean open = true;
+
+      @Override
+      public int read(ByteBuffer dst) throws IOException
+      {
+        while (true)
+        {
+          if (current == null)
+          {
+            if (!remaining.hasNext())
+              return -1;
+            current = remaining.next().open();
+          }
+          final int read = current.read(dst);
+          if (read >= 0)
+            return read;
+          current.close();
+          current = null;
+        }
+      }
+
+      @Override
+      public boolean isOpen()
+      {
+        return open;
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+        open = false;
+        if (current != null)
+          current.close();
+      }
+    };
+  }
+
+
+  @Override
+  public <R> R accept(Visitor<R> visitor) throws IOException
+  {
+    return visitor.composite(parts);
+  }
+}
@@ -0,0 +1,197 @@
+package net.jeffpoole.httpserver.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.base.Charsets;
+
+
+/**
+ * A Blob for an HTML listing of a directory that is too big to build in memory, so it is rendered a
+ * piece at a time as it is read (see open(), or cursor() for the text).  Its length isn't known up
+ * front, so it goes out with chunked transfer encoding.
+ */
+@Value
+@Slf4j
+public class DirectoryListingBlob implements Blob
+{
+  static final int RENDER_SIZE = 8192;
+
+  Path directory;
+  // The path the listing was requested as, which the links are relative to
+  String requestPath;
+
+
+  @Override
+  public byte[] getBytes()
+  {
+    final StringBuilder sb = new StringBuilder();
+    try (Cursor cursor = cursor())
+    {
+      // with no limit, it's all rendered at once
+      cursor.next(sb, Integer.MAX_VALUE);
+    }
+    catch (IOException e)
+    {
+      log.error("Error getting directory listing", e);
+      return null;
+    }
+    return sb.toString().getBytes(Charsets.UTF_8);
+  }
+
+
+  public Cursor cursor() throws IOException
+  {
+    return new Cursor(directory, requestPath);
+  }
+
+
+  // The UTF-8 encoded listing, rendered RENDER_SIZE characters at a time as it's read
+  @Override
+  public ReadableByteChannel open() throws IOException
+  {
+    final Cursor cursor = cursor();
+    return new ReadableByteChannel()
+    {
+      final StringBuilder sb = new StringBuilder(RENDER_SIZE + 1024);
+      ByteBuffer rendered = ByteBuffer.allocate(0);
+      boolean open = true;
+
+      @Override
+      public int read(ByteBuffer dst) throws IOException
+      {
+        while (!rendered.hasRemaining())
+        {
+          sb.setLength(0);
+          if (!cursor.next(sb, RENDER_SIZE))
+            return -1;
+          rendered = ByteBuffer.wrap(sb.toString().getBytes(Charsets.UTF_8));
+        }
+        final int length = Math.min(dst.remaining(), rendered.remaining());
+        final ByteBuffer part = rendered.duplicate();
+        part.limit(part.position() + length);
+        dst.put(part);
+        rendered.position(rendered.position() + length);
+        return length;
+      }
+
+      @Override
+      public boolean isOpen()
+      {
+        return open;
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+        open = false;
+        cursor.close();
+      }
+    };
+  }
+
+
+  /**
+   * Renders the listing a few entries at a time.  The header is rendered by the first call to next(),
+   * and the footer by the last.
+   */
+  public static class Cursor implements Closeable
+  {
+    final Path directory;
+    final String requestPath;
+    final DirectoryStream<Path> stream;
+    final Iterator<Path> entries;
+    boolean started;
+    boolean finished;
+
+
+    Cursor(Path directory, String requestPath) throws IOException
+    {
+      this.directory = directory;
+      this.requestPath = requestPath;
+      this.stream = Files.newDirectoryStream(directory);
+      this.entries = stream.iterator();
+    }
+
+
+    /**
+     * Appends the next part of the listing, stopping once at least the given number of characters
+     * have been appended.  Returns false (appending nothing) once the whole listing has been.
+     */
+    public boolean next(StringBuilder out, int maximumChars)
+    {
+      if (finished)
+      {
+        return false;
+      }
+      final int start = out.length();
+      if (!started)
+      {
+        appendHeader(out, directory);
+        started = true;
+      }
+      while (out.length() - start < maximumChars)
+      {
+        if (!entries.hasNext())
+        {
+          appendFooter(out);
+          finished = true;
+          break;
+        }
+        appendEntry(out, requestPath, entries.next());
+      }
+      return true;
+    }
+
+
+    public boolean isFinished()
+    {
+      return finished;
+    }
+
+
+    @Override
+    public void close() throws IOException
+    {
+      stream.close();
+    }
+  }
+
+
+  public static void appendHeader(StringBuilder out, Path directory)
+  {
+    out.append("<!DOCTYPE html><meta charset=\"UTF-8\">"
+        + "<html><head><title>Directory Listing for ")
+        .append(directory.getFileName().toString())
+        .append("</title></head><body><ul>");
+  }
+
+
+  // Skips unix-style hidden files
+  public static void appendEntry(StringBuilder out, String requestPath, Path file)
+  {
+    final String name = file.getFileName().toString();
+    if (name.startsWith("."))
+    {
+      return;
+    }
+    final String href = requestPath + (requestPath.endsWith("/") ? "" : "/") + name
+        + (Files.isDirectory(file) ? "/" : "");
+    out.append("<li><a href=\"").append(href).append("\">").append(href).append("</a></li>");
+  }
+
+
+  public static void appendFooter(StringBuilder out)
+  {
+    out.append("</ul></body></html>");
+  }
+}
@@ -2,6 +2,8 @@ package net.jeffpoole.httpserver.data;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 
 import lombok.Value;
@@ -31,4 +33,32 @@ public class FileBlob implements Blob
       return null;
     }
   }
+
+
+  @Override
+  public Blob slice(long position, long length)
+  {
+    return new FileRangeBlob(file, position, length);
+  }
+
+
+  @Override
+  public long length()
+  {
+    return file.length();
+  }
+
+
+  @Override
+  public ReadableByteChannel open() throws IOException
+  {
+    return FileChannel.open(file.toPath());
+  }
+
+
+  @Override
+  public <R> R accept(Visitor<R> visitor) throws IOException
+  {
+    return visitor.file(file, 0, -1);
+  }
 }
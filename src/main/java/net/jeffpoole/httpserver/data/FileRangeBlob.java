@@ -0,0 +1,75 @@
+package net.jeffpoole.httpserver.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.io.ByteStreams;
+
+
+/**
+ * A Blob for part of a file on the filesystem (used for range requests), so we can still use
+ * zero-copy transfers for just the requested bytes.
+ */
+@Value
+@Slf4j
+public class FileRangeBlob implements Blob
+{
+  File file;
+  long position;
+  long length;
+
+
+  @Override
+  public byte[] getBytes()
+  {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+    {
+      final byte[] bytes = new byte[(int) length];
+      raf.seek(position);
+      raf.readFully(bytes);
+      return bytes;
+    }
+    catch (IOException e)
+    {
+      log.error("Error reading bytes from file", e);
+      return null;
+    }
+  }
+
+
+  @Override
+  public Blob slice(long position, long length)
+  {
+    return new FileRangeBlob(file, this.position + position, length);
+  }
+
+
+  @Override
+  public long length()
+  {
+    return length;
+  }
+
+
+  // Stops after the range, rather than at the end of the file
+  @Override
+  public ReadableByteChannel open() throws IOException
+  {
+    final FileChannel channel = FileChannel.open(file.toPath()).position(position);
+    return Channels.newChannel(ByteStreams.limit(Channels.newInputStream(channel), length));
+  }
+
+
+  @Override
+  public <R> R accept(Visitor<R> visitor) throws IOException
+  {
+    return visitor.file(file, position, length);
+  }
+}
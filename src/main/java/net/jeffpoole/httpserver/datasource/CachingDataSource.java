@@ -0,0 +1,250 @@
+package net.jeffpoole.httpserver.datasource;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+
+/**
+ * A DataSource that sits in front of another one (normally a FileDataSource) and remembers the
+ * DataResources it returns, so repeat requests for the same path don't have to touch the filesystem
+ * at all.  Only resources that were found are cached.
+ *
+ * Entries are dropped when a WatchService on the document root reports a change to the resource
+ * (or to the directory containing it, since that changes the directory listing).  The cache is
+ * bounded, with least-recently-used entries evicted first.  Entries are also indexed by where they
+ * are on disk, so each change is a few lookups however much is cached.
+ *
+ * Misses go through a CoalescingDataSource, so a burst of requests for something that isn't cached
+ * (typically because it just changed) only loads it once.
+ */
+@Slf4j
+public class CachingDataSource implements DataSource, Closeable
+{
+  final CoalescingDataSource dataSource;
+  final Path root;
+  final Cache<String, Cached> cache;
+  // Cache entries by the normalized path of their resource, sorted so everything inside a directory
+  // is one range.  The sets are replaced rather than changed, since the map may retry a compute.
+  final ConcurrentSkipListMap<String, ImmutableSet<Cached>> byPath = new ConcurrentSkipListMap<>();
+  final WatchService watchService;
+  final Thread watchThread;
+  // Once the watcher is gone nothing would ever invalidate entries, so the cache is bypassed
+  volatile boolean watching = true;
+  // Bumped on every invalidation, so a load that raced with a change doesn't get cached
+  final AtomicLong generation = new AtomicLong();
+
+
+  // Compared by identity, so the index only ever drops the entry that was actually removed
+  static class Cached
+  {
+    final String key;
+    final DataResource resource;
+    final String path;
+
+    Cached(String key, DataResource resource, String path)
+    {
+      this.key = key;
+      this.resource = resource;
+      this.path = path;
+    }
+  }
+
+
+  public CachingDataSource(DataSource dataSource, Path root, long maximumSize) throws IOException
+  {
+    this.dataSource = new CoalescingDataSource(dataSource);
+    this.root = root.toAbsolutePath().normalize();
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .removalListener((RemovalListener<String, Cached>) removal -> unindex(removal.getValue()))
+        .build();
+    this.watchService = this.root.getFileSystem().newWatchService();
+    registerAll(this.root);
+
+    this.watchThread = new Thread(this::watch, "datasource-watcher");
+    this.watchThread.setDaemon(true);
+    this.watchThread.start();
+  }
+
+
+  @Override
+  public DataResource get(String path)
+  {
+    if (!watching)
+    {
+      return dataSource.get(path);
+    }
+    final Cached hit = cache.getIfPresent(path);
+    if (hit != null)
+    {
+      return hit.resource;
+    }
+    final long loadGeneration = generation.get();
+    final DataResource resource = dataSource.get(path);
+    if (resource.isPresent() && loadGeneration == generation.get())
+    {
+      final Cached cached = new Cached(path, resource,
+          Paths.get(resource.getPath()).toAbsolutePath().normalize().toString());
+      byPath.compute(cached.path, (p, entries) -> entries == null ? ImmutableSet.of(cached)
+          : ImmutableSet.<Cached>builder().addAll(entries).add(cached).build());
+      cache.put(path, cached);
+      // indexed before it went in, so a change since then either found it or is caught here
+      if (loadGeneration != generation.get())
+      {
+        cache.asMap().remove(path, cached);
+      }
+    }
+    return resource;
+  }
+
+
+  private void unindex(Cached cached)
+  {
+    byPath.computeIfPresent(cached.path, (p, entries) -> {
+      final ImmutableSet<Cached> rest = ImmutableSet.copyOf(Sets.filter(entries, e -> e != cached));
+      return rest.isEmpty() ? null : rest;
+    });
+  }
+
+
+  @Override
+  public void close() throws IOException
+  {
+    watching = false;
+    watchService.close();
+    cache.invalidateAll();
+  }
+
+
+  // WatchService is not recursive (at least not on Linux), so every directory needs registering
+  private void registerAll(Path start) throws IOException
+  {
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+    {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+          throws IOException
+      {
+        dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+
+  private void watch()
+  {
+    try
+    {
+      while (true)
+      {
+        WatchKey key = watchService.take();
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+          if (event.kind() == OVERFLOW)
+          {
+            log.debug("Watch events overflowed, dropping all cached resources");
+            dataSource.forget();
+            generation.incrementAndGet();
+            cache.invalidateAll();
+            dataSource.created(null);
+            continue;
+          }
+          Path changed = dir.resolve((Path) event.context());
+          log.debug("Change [{}] for path [{}]", event.kind(), changed);
+          if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed))
+          {
+            registerAll(changed);
+          }
+          invalidate(changed);
+          // only a creation can make a missing path appear
+          if (event.kind() == ENTRY_CREATE)
+          {
+            dataSource.created(changed);
+          }
+        }
+        key.reset();
+      }
+    }
+    catch (ClosedWatchServiceException | InterruptedException e)
+    {
+      watching = false;
+      log.debug("Watcher for [{}] stopped", root);
+    }
+    catch (IOException e)
+    {
+      // Without the watcher we can't tell when entries go stale, so stop caching entirely
+      log.error("Error watching [{}], disabling resource cache", root, e);
+      watching = false;
+      cache.invalidateAll();
+      try
+      {
+        watchService.close();
+      }
+      catch (IOException ignored)
+      {
+      }
+    }
+  }
+
+
+  // Drops anything served from the changed path, from inside it (if it was a directory), or that is
+  // the listing of the directory containing it.
+  void invalidate(Path changed)
+  {
+    // Loads already under way may have read the old version.  Anyone who asked before the change
+    // can still have that, but requests from now on mustn't join them and then cache the result as
+    // current, so they're forgotten before the generation moves on.
+    dataSource.forget();
+    generation.incrementAndGet();
+    final String path = changed.toString();
+    final char separator = changed.getFileSystem().getSeparator().charAt(0);
+    drop(byPath.get(path));
+    // everything inside it sorts between path + separator and path + the next character up
+    for (ImmutableSet<Cached> entries :
+        byPath.subMap(path + separator, path + (char) (separator + 1)).values())
+    {
+      drop(entries);
+    }
+    if (changed.getParent() != null)
+    {
+      drop(byPath.get(changed.getParent().toString()));
+    }
+  }
+
+
+  // Only removes the entries if they're still cached, rather than whatever has replaced them
+  private void drop(ImmutableSet<Cached> entries)
+  {
+    if (entries != null)
+    {
+      for (Cached cached : entries)
+      {
+        cache.asMap().remove(cached.key, cached);
+      }
+    }
+  }
+}
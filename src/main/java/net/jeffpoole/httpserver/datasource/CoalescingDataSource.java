@@ -0,0 +1,93 @@
+package net.jeffpoole.httpserver.datasource;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import lombok.RequiredArgsConstructor;
+
+
+/**
+ * A DataSource that makes concurrent lookups of the same path share one load from the DataSource
+ * behind it.  The first caller does the work, and anyone asking for the path while it is still in
+ * progress waits for it and gets the same DataResource (or the same exception).  When a popular
+ * file changes and every request for it misses the cache at once, that costs one set of stat calls,
+ * content type detection and hashing instead of one per request.
+ *
+ * Nothing is kept once a load finishes; this only dedupes loads that overlap.
+ */
+@RequiredArgsConstructor
+public class CoalescingDataSource implements DataSource
+{
+  final DataSource dataSource;
+  final ConcurrentMap<String, CompletableFuture<DataResource>> inFlight =
+      new ConcurrentHashMap<>();
+
+
+  @Override
+  public DataResource get(String path)
+  {
+    final CompletableFuture<DataResource> load = new CompletableFuture<>();
+    final CompletableFuture<DataResource> existing = inFlight.putIfAbsent(path, load);
+    if (existing != null)
+    {
+      return await(existing);
+    }
+    try
+    {
+      final DataResource resource = dataSource.get(path);
+      load.complete(resource);
+      return resource;
+    }
+    catch (RuntimeException | Error e)
+    {
+      load.completeExceptionally(e);
+      throw e;
+    }
+    finally
+    {
+      inFlight.remove(path, load);
+    }
+  }
+
+
+  /**
+   * Stops sharing the loads in progress with anyone who asks from now on, so they start loads of
+   * their own.  For when what those loads are reading has just changed.
+   */
+  public void forget()
+  {
+    inFlight.clear();
+  }
+
+
+  @Override
+  public void created(Path path)
+  {
+    dataSource.created(path);
+  }
+
+
+  private static DataResource await(CompletableFuture<DataResource> load)
+  {
+    try
+    {
+      return load.join();
+    }
+    catch (CompletionException e)
+    {
+      // the loading thread has already thrown the original; rethrow it here as well
+      if (e.getCause() instanceof RuntimeException)
+      {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error)
+      {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package net.jeffpoole.httpserver.datasource;
+
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.tika.config.TikaConfig;
+import org.apache.tika.detect.Detector;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+
+
+/**
+ * Works out the content type of a file.  Common extensions are looked up in a fixed table, which
+ * covers nearly everything actually served.  Anything else goes to Tika's detector (which sniffs
+ * the file contents), with the answer remembered for that path and modification time so we only pay
+ * for it once.
+ */
+@Slf4j
+public class ContentTypeRegistry
+{
+  static final String DEFAULT_CONTENT_TYPE = "text/plain";
+
+  // Type names match what Tika would detect for these, so results don't depend on which path is taken
+  static final ImmutableMap<String, String> TYPES_BY_EXTENSION = ImmutableMap.<String, String>builder()
+      .put("html", "text/html")
+      .put("htm", "text/html")
+      .put("css", "text/css")
+      .put("js", "application/javascript")
+      .put("json", "application/json")
+      .put("xml", "application/xml")
+      .put("txt", "text/plain")
+      .put("csv", "text/csv")
+      .put("md", "text/x-web-markdown")
+      .put("java", "text/x-java-source")
+      .put("svg", "image/svg+xml")
+      .put("png", "image/png")
+      .put("gif", "image/gif")
+      .put("jpg", "image/jpeg")
+      .put("jpeg", "image/jpeg")
+      .put("ico", "image/vnd.microsoft.icon")
+      .put("webp", "image/webp")
+      .put("woff", "application/font-woff")
+      .put("woff2", "font/woff2")
+      .put("ttf", "application/x-font-ttf")
+      .put("pdf", "application/pdf")
+      .put("zip", "application/zip")
+      .put("gz", "application/gzip")
+      .put("tar", "application/x-tar")
+      .put("mp3", "audio/mpeg")
+      .put("mp4", "video/mp4")
+      .put("webm", "video/webm")
+      .build();
+
+  // TikaConfig parses the whole MIME database, so only ever build one (and only if we need it)
+  private static class DetectorHolder
+  {
+    static final Detector DETECTOR = TikaConfig.getDefaultConfig().getDetector();
+  }
+
+  @Value
+  static class DetectedKey
+  {
+    Path path;
+    long modifiedMillis;
+  }
+
+  final Cache<DetectedKey, String> detected;
+
+
+  public ContentTypeRegistry(long maximumDetectedSize)
+  {
+    detected = CacheBuilder.newBuilder().maximumSize(maximumDetectedSize).build();
+  }
+
+
+  public String contentTypeFor(Path path, long modifiedMillis)
+  {
+    String type = TYPES_BY_EXTENSION.get(extension(path));
+    if (type != null)
+    {
+      return type;
+    }
+    try
+    {
+      return detected.get(new DetectedKey(path, modifiedMillis), () -> detect(path));
+    }
+    catch (ExecutionException e)
+    {
+      log.warn("Error detecting proper content type, so returning our default", e.getCause());
+    }
+    return DEFAULT_CONTENT_TYPE;
+  }
+
+
+  static String extension(Path path)
+  {
+    final String name = path.getFileName().toString();
+    final int dot = name.lastIndexOf('.');
+    if (dot < 0)
+    {
+      return "";
+    }
+    String extension = name.substring(dot + 1);
+    // avoid the copy for the (usual) lowercase case
+    for (int i = 0; i < extension.length(); i++)
+    {
+      if (Character.isUpperCase(extension.charAt(i)))
+      {
+        return extension.toLowerCase(Locale.ROOT);
+      }
+    }
+    return extension;
+  }
+
+
+  private static String detect(Path path) throws Exception
+  {
+    try (TikaInputStream tis = TikaInputStream.get(path.toFile()))
+    {
+      Metadata metadata = new Metadata();
+      metadata.set(Metadata.RESOURCE_NAME_KEY, path.toString());
+      return DetectorHolder.DETECTOR.detect(tis, metadata).toString();
+    }
+  }
+}
@@ -1,5 +1,8 @@
 package net.jeffpoole.httpserver.datasource;
 
+import java.nio.file.Path;
+
+
 /**
  * Interface for something that returns a resource given a path.  Only implementation outside of
  * test classes is FileDataSource.
@@ -7,4 +10,14 @@ package net.jeffpoole.httpserver.datasource;
 public interface DataSource
 {
   DataResource get(String path);
+
+
+  /**
+   * Tells the source that something was just created at the given filesystem path, or with null,
+   * that anything may have been.  A source that remembers which paths are missing drops the ones
+   * this could have made appear.
+   */
+  default void created(Path path)
+  {
+  }
 }
@@ -3,209 +3,326 @@ package net.jeffpoole.httpserver.datasource;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
+import java.util.Map;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import lombok.RequiredArgsConstructor;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
-import org.apache.tika.config.TikaConfig;
-import org.apache.tika.io.TikaInputStream;
-import org.apache.tika.metadata.Metadata;
-import org.apache.tika.mime.MediaType;
-
 import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 
 import net.jeffpoole.httpserver.data.ByteArrayBlob;
+import net.jeffpoole.httpserver.data.DirectoryListingBlob;
 import net.jeffpoole.httpserver.data.FileBlob;
 
 
 /**
  * This is a DataSource implementation that tries to find the requested path inside a path on the
  * filesystem.  This is the DataSource used in normal operation.
+ *
+ * Each request costs a single stat (plus one for index.html in a directory).  Paths that aren't
+ * there are remembered until created() reports something at or above them (which CachingDataSource
+ * does from its watcher), or for a few seconds if nothing does, so repeated 404s are just a lookup.
+ *
+ * Directory listings are rendered once and kept until the directory's modification time changes.
+ * Listings bigger than the maximum cached listing size (in characters) aren't kept in memory at
+ * all, and are rendered as they are sent instead (see DirectoryListingBlob).
  */
 @Slf4j
-@RequiredArgsConstructor
 public class FileDataSource implements DataSource
 {
   final Path filesystemPath;
-  Path canonicalFilesystemPath;
-  Pattern relativePathPattern = Pattern.compile("[^/.].*$");
+  final Path canonicalFilesystemPath;
+  final ContentTypeRegistry contentTypes;
+  final int maximumCachedListingSize;
+  // Keyed by directory and request path, since the links in a listing are based on the latter
+  final Cache<String, Listing> listings;
+  // Paths that weren't found, so repeats (e.g. scanners, missing favicons) don't touch the disk
+  final Cache<String, Missing> notFound;
+  // Bumped by created(), so a lookup that raced with it doesn't remember a path that now exists
+  final AtomicLong creations = new AtomicLong();
+
+
+  @Value
+  static class Listing
+  {
+    long modified;
+    String etag;
+    // null if the listing is too big to keep, so it gets streamed
+    byte[] bytes;
+  }
+
+
+  @Value
+  static class Missing
+  {
+    DataResource resource;
+    // Where it would be on disk, or null if it couldn't be anywhere (e.g. outside the root)
+    Path path;
+  }
+
+
+  public FileDataSource(Path filesystemPath)
+  {
+    this(filesystemPath, 10000, 1024 * 1024, 16 * 1024 * 1024, 10000, 5);
+  }
+
+
+  public FileDataSource(Path filesystemPath, long detectedContentTypeCacheSize,
+      int maximumCachedListingSize, long listingCacheBytes, long notFoundCacheSize,
+      long notFoundCacheSeconds)
+  {
+    this.filesystemPath = filesystemPath;
+    this.canonicalFilesystemPath = filesystemPath.toAbsolutePath().normalize();
+    this.contentTypes = new ContentTypeRegistry(detectedContentTypeCacheSize);
+    this.maximumCachedListingSize = maximumCachedListingSize;
+    this.listings = CacheBuilder.newBuilder()
+        .maximumWeight(listingCacheBytes)
+        .weigher((Weigher<String, Listing>) (key, listing) ->
+            listing.getBytes() == null ? 1 : listing.getBytes().length)
+        .build();
+    this.notFound = CacheBuilder.newBuilder()
+        .maximumSize(notFoundCacheSize)
+        .expireAfterWrite(notFoundCacheSeconds, TimeUnit.SECONDS)
+        .build();
+  }
 
 
   public DataResource get(String requestPath)
   {
-    if (canonicalFilesystemPath == null)
+    // Rejected outright, though the check in locate() would refuse them anyway
+    if (requestPath.contains("/../"))
     {
-      canonicalFilesystemPath = filesystemPath.toAbsolutePath();
+      throw new RuntimeException("Invalid path");
     }
 
-    // TODO: better checks make sure path does not escape base path
-    if (requestPath.contains("/../"))
+    final Missing missing = notFound.getIfPresent(requestPath);
+    if (missing != null)
     {
-      throw new RuntimeException("Invalid path");
+      return missing.getResource();
     }
+    final long before = creations.get();
+    final String decoded = decode(requestPath);
+    final Path resolved = locate(decoded);
+    final DataResource resource = resolved != null ? resolve(decoded, resolved)
+        : notFound(decoded);
+    if (!resource.isPresent())
+    {
+      notFound.put(requestPath, new Missing(resource,
+          resolved != null ? resolved.toAbsolutePath().normalize() : null));
+      // something was created while we looked, so it may have appeared after our stat
+      if (creations.get() != before)
+      {
+        notFound.invalidate(requestPath);
+      }
+    }
+    return resource;
+  }
 
-    try
+
+  @Override
+  public void created(Path path)
+  {
+    creations.incrementAndGet();
+    if (path == null)
+    {
+      notFound.invalidateAll();
+      return;
+    }
+    // a new directory can bring a whole tree with it
+    final Path created = path.toAbsolutePath().normalize();
+    for (Map.Entry<String, Missing> entry : notFound.asMap().entrySet())
     {
-      // handle any urlencoding
-      requestPath = URLDecoder.decode(requestPath, Charsets.UTF_8.toString());
-      // remove query strings
-      if (requestPath.contains("?"))
+      final Path missingPath = entry.getValue().getPath();
+      if (missingPath != null && missingPath.startsWith(created))
       {
-        requestPath = requestPath.substring(0, requestPath.indexOf("?"));
+        notFound.invalidate(entry.getKey());
       }
     }
-    catch (UnsupportedEncodingException e)
+  }
+
+
+  // Looks up a decoded request path, given where it is on disk
+  DataResource resolve(String requestPath, Path resolved)
+  {
+    // One stat tells us whether it's there, what it is, and everything else we need to know
+    BasicFileAttributes attributes = readAttributes(resolved);
+    if (attributes == null)
+    {
+      return notFound(requestPath);
+    }
+    if (attributes.isDirectory())
     {
-      log.warn("Problem urldecoding requestPath = [{}]", requestPath, e);
+      final BasicFileAttributes indexAttributes = readAttributes(resolved.resolve("index.html"));
+      if (indexAttributes != null && indexAttributes.isRegularFile())
+      {
+        resolved = resolved.resolve("index.html");
+        attributes = indexAttributes;
+      }
     }
 
-    final Matcher matcher = relativePathPattern.matcher(requestPath);
-    if (matcher.find())
+    final long lastModified = attributes.lastModifiedTime().toMillis();
+    if (attributes.isRegularFile())
     {
-      String relativePath = matcher.group();
-      Path resolved = filesystemPath.resolve(relativePath);
-      if (isInside(canonicalFilesystemPath, resolved) && resolved.toFile().exists() &&
-          resolved.toFile().canRead())
+      return new DataResource(
+          resolved.toString(),
+          true,
+          calculateEtag(resolved, lastModified),
+          Instant.ofEpochMilli(lastModified),
+          contentTypes.contentTypeFor(resolved, lastModified),
+          Optional.of(attributes.size()),
+          new FileBlob(resolved.toFile())
+      );
+    }
+    else if (attributes.isDirectory())
+    {
+      final Listing listing = getListing(resolved, requestPath, lastModified);
+      return new DataResource(
+          resolved.toString(),
+          true,
+          listing.getEtag(),
+          Instant.ofEpochMilli(lastModified),
+          "text/html",
+          listing.getBytes() != null ? Optional.of((long) listing.getBytes().length)
+              : Optional.empty(),
+          listing.getBytes() != null ? new ByteArrayBlob(listing.getBytes())
+              : new DirectoryListingBlob(resolved, requestPath)
+      );
+    }
+    return notFound(requestPath);
+  }
+
+
+  // Removes any query string, then handles any urlencoding
+  static String decode(String requestPath)
+  {
+    if (requestPath.contains("?"))
+    {
+      requestPath = requestPath.substring(0, requestPath.indexOf("?"));
+    }
+    if (requestPath.contains("%") || requestPath.contains("+"))
+    {
+      try
       {
-        if (resolved.toFile().isDirectory() && resolved.resolve("index.html").toFile().canRead())
-        {
-          resolved = resolved.resolve("index.html");
-        }
-        final Path fresolved = resolved;
-        if (resolved.toFile().isFile())
-        {
-          return new DataResource(
-              resolved.toString(),
-              true,
-              calculateEtag(resolved),
-              Instant.ofEpochMilli(resolved.toFile().lastModified()),
-              determineContentType(resolved),
-              Optional.of(resolved.toFile().length()),
-              new FileBlob(resolved.toFile())
-          );
-        }
-        else if (resolved.toFile().isDirectory())
-        {
-          String directoryList = createDirectoryList(resolved, requestPath);
-          byte[] directoryListBytes = directoryList.getBytes(Charsets.UTF_8);
-          return new DataResource(
-              resolved.toString(),
-              true,
-              Hashing.sha1().hashBytes(directoryListBytes).toString(),
-              Instant.ofEpochMilli(resolved.toFile().lastModified()),
-              "text/html",
-              Optional.of((long) directoryListBytes.length),
-              new ByteArrayBlob(directoryListBytes)
-          );
-        }
+        requestPath = URLDecoder.decode(requestPath, Charsets.UTF_8.toString());
       }
-      else
+      catch (UnsupportedEncodingException | IllegalArgumentException e)
       {
-        log.warn("Path [{}] not inside path [{}], so returning not found", resolved,
-            canonicalFilesystemPath);
+        log.warn("Problem urldecoding requestPath = [{}]", requestPath, e);
       }
     }
-    return new DataResource(requestPath, false, null, null, null, Optional.empty(), null);
+    return requestPath;
   }
 
 
-  private String determineContentType(final Path resolved)
+  // Where a decoded request path is on disk, or null if it can't be anything inside the root
+  Path locate(String requestPath)
   {
-    try (TikaInputStream tis = TikaInputStream.get(resolved.toFile()))
+    // leading slashes and dots are skipped, so the path is relative to the root
+    int start = 0;
+    while (start < requestPath.length()
+        && (requestPath.charAt(start) == '/' || requestPath.charAt(start) == '.'))
     {
-      TikaConfig tikaConfig = new TikaConfig();
-      Metadata metadata = new Metadata();
-      metadata.set(Metadata.RESOURCE_NAME_KEY, resolved.toString());
-      final MediaType detected = tikaConfig.getDetector().detect(tis, metadata);
-      return detected.toString();
+      start++;
     }
-    catch (Exception e)
+    if (start == requestPath.length())
     {
-      log.warn("Error detecting proper content type, so returning our default", e);
+      return null;
     }
-    return "text/plain";
+
+    final Path resolved = filesystemPath.resolve(requestPath.substring(start));
+    if (!resolved.toAbsolutePath().normalize().startsWith(canonicalFilesystemPath))
+    {
+      log.warn("Path [{}] not inside path [{}], so returning not found", resolved,
+          canonicalFilesystemPath);
+      return null;
+    }
+    return resolved;
+  }
+
+
+  static DataResource notFound(String requestPath)
+  {
+    return new DataResource(requestPath, false, null, null, null, Optional.empty(), null);
   }
 
 
-  boolean isInside(Path parent, Path child)
+  // null if there's nothing there (or we can't look)
+  static BasicFileAttributes readAttributes(Path path)
   {
-    Path absoluteParent = parent.toAbsolutePath();
-    Path absoluteChild = child.toAbsolutePath();
     try
     {
-      while (!Files.isSameFile(absoluteChild, absoluteParent) && absoluteChild.getParent() != null)
-      {
-        absoluteChild = absoluteChild.getParent();
-      }
-      return Files.isSameFile(absoluteChild, absoluteParent);
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    }
+    catch (NoSuchFileException | NotDirectoryException e)
+    {
+      return null;
     }
     catch (IOException e)
     {
-      log.warn("Error checking that path [{}] is contained in [{}]", child, parent);
+      log.warn("Could not read the attributes of [{}]", path, e);
+      return null;
     }
-    return false;
   }
 
 
   // Would love to base this on the contents of the file, but for performance I will use
   // name + modified time.  Similar to Apache's default implementation (which uses inode instead,
   // IIRC)
-  String calculateEtag(Path path)
+  String calculateEtag(Path path, long lastModified)
   {
     final Hasher hasher = Hashing.sha1().newHasher();
     return hasher
         .putInt(path.hashCode()) // based on the path
-        .putLong(path.toFile().lastModified())
+        .putLong(lastModified)
         .hash()
         .toString();
   }
 
 
-  String createDirectoryList(Path path, String requestPath)
+  Listing getListing(Path path, String requestPath, long lastModified)
   {
-    StringBuilder sb = new StringBuilder(
-        "<!DOCTYPE html><meta charset=\"UTF-8\">"
-            + "<html><head><title>Directory Listing for "
-            + path.getFileName().toString()
-            + "</title></head><body><ul>");
-    String joinChr = "/";
-    if (requestPath.endsWith("/"))
+    final String key = path + "\0" + requestPath;
+    Listing listing = listings.getIfPresent(key);
+    if (listing != null && listing.getModified() == lastModified)
     {
-      joinChr = "";
+      return listing;
     }
-    try (DirectoryStream<Path> ds = Files.newDirectoryStream(path))
+
+    // Like calculateEtag(), but the request path changes the links, so it's part of it too
+    final String etag = Hashing.sha1().newHasher()
+        .putInt(path.hashCode())
+        .putLong(lastModified)
+        .putString(requestPath, Charsets.UTF_8)
+        .hash()
+        .toString();
+    final StringBuilder sb = new StringBuilder();
+    try (DirectoryListingBlob.Cursor cursor = new DirectoryListingBlob(path, requestPath).cursor())
     {
-      for (Path file : ds)
-      {
-        // skip unix-style hidden files
-        if (file.getFileName().toString().startsWith("."))
-        {
-          continue;
-        }
-        String fileRequestPath = requestPath + joinChr + file.getFileName().toString();
-        if (file.toFile().isDirectory())
-        {
-          fileRequestPath = fileRequestPath + "/";
-        }
-        sb.append(String.format("<li><a href=\"%s\">%s</a></li>", fileRequestPath,
-            fileRequestPath));
-      }
+      cursor.next(sb, maximumCachedListingSize);
+      listing = new Listing(lastModified, etag,
+          cursor.isFinished() ? sb.toString().getBytes(Charsets.UTF_8) : null);
     }
     catch (IOException e)
     {
       log.error("Error getting directory listing", e);
-      return "Error getting directory listing";
+      return new Listing(lastModified, etag,
+          "Error getting directory listing".getBytes(Charsets.UTF_8));
     }
-    sb.append("</ul></body></html>");
-    return sb.toString();
+    listings.put(key, listing);
+    return listing;
   }
 }
@@ -0,0 +1,114 @@
+package net.jeffpoole.httpserver.logic;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+import lombok.Value;
+
+
+/**
+ * One satisfiable range of bytes from a Range header (RFC 7233 § 2.1), already resolved against the
+ * length of the representation, so first and last are both inclusive offsets into it.
+ */
+@Value
+public class ByteRange
+{
+  // Clients asking for more ranges than this are either broken or malicious, so the header is ignored
+  static final int MAXIMUM_RANGES = 16;
+
+  long first;
+  long last;
+
+
+  public long getLength()
+  {
+    return last - first + 1;
+  }
+
+
+  public String toContentRange(long size)
+  {
+    return "bytes " + first + "-" + last + "/" + size;
+  }
+
+
+  /**
+   * Parses a Range header value against a representation of the given size.  Returns empty if the
+   * header should be ignored (it isn't a valid bytes range), or the satisfiable ranges, sorted and with
+   * overlapping or adjacent ones merged.  An empty list means nothing in it was satisfiable.
+   */
+  public static Optional<List<ByteRange>> parse(String header, long size)
+  {
+    header = header.trim();
+    if (!header.startsWith("bytes="))
+      return Optional.empty();
+
+    final String[] specs = header.substring("bytes=".length()).split(",");
+    if (specs.length > MAXIMUM_RANGES)
+      return Optional.empty();
+
+    final List<ByteRange> ranges = new ArrayList<>(specs.length);
+    try
+    {
+      for (String spec : specs)
+      {
+        spec = spec.trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0)
+          return Optional.empty();
+        final String firstPart = spec.substring(0, dash).trim();
+        final String lastPart = spec.substring(dash + 1).trim();
+
+        if (firstPart.isEmpty())
+        {
+          // suffix-byte-range-spec: the last N bytes
+          final long suffixLength = Long.parseLong(lastPart);
+          if (suffixLength < 0)
+            return Optional.empty();
+          if (suffixLength > 0 && size > 0)
+            ranges.add(new ByteRange(Math.max(0, size - suffixLength), size - 1));
+        }
+        else
+        {
+          final long first = Long.parseLong(firstPart);
+          final long last = lastPart.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastPart);
+          if (first < 0 || last < first)
+            return Optional.empty();
+          if (first < size)
+            ranges.add(new ByteRange(first, Math.min(last, size - 1)));
+        }
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      return Optional.empty();
+    }
+    return Optional.of(coalesce(ranges));
+  }
+
+
+  private static List<ByteRange> coalesce(List<ByteRange> ranges)
+  {
+    if (ranges.size() < 2)
+      return ranges;
+    ranges.sort(Comparator.comparingLong(ByteRange::getFirst));
+    final List<ByteRange> merged = new ArrayList<>(ranges.size());
+    ByteRange current = ranges.get(0);
+    for (ByteRange next : ranges.subList(1, ranges.size()))
+    {
+      if (next.first <= current.last + 1)
+      {
+        current = new ByteRange(current.first, Math.max(current.last, next.last));
+      }
+      else
+      {
+        merged.add(current);
+        current = next;
+      }
+    }
+    merged.add(current);
+    return merged;
+  }
+}
@@ -0,0 +1,153 @@
+package net.jeffpoole.httpserver.logic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPOutputStream;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import net.jeffpoole.httpserver.data.ByteArrayBlob;
+import net.jeffpoole.httpserver.datasource.DataResource;
+
+
+/**
+ * Produces gzip-encoded variants of resources.  A precompressed sidecar file (foo.js.gz next to
+ * foo.js) is preferred, since it can still be sent with zero-copy transfers.  Otherwise compressible
+ * content is gzipped on the fly, and the result kept in a cache bounded by total compressed bytes,
+ * keyed by the original's path and etag, so each version of a resource is only compressed once.
+ * The etag alone isn't enough: different files can end up with the same one, and serving one's
+ * compressed body for the other is far worse than a wrong 304.
+ *
+ * Variants get their own etag (the original's or sidecar's with "-gzip" appended), as RFC 7232
+ * requires for different representations.
+ */
+@Slf4j
+public class CompressedVariants
+{
+  static final String ETAG_SUFFIX = "-gzip";
+
+  // Anything smaller than this isn't worth the CPU, and may not even get smaller
+  static final long MINIMUM_SIZE = 256;
+
+  static final ImmutableSet<String> COMPRESSIBLE_TYPES = ImmutableSet.of(
+      "application/javascript", "application/json", "application/xml", "image/svg+xml",
+      "application/x-font-ttf", "image/vnd.microsoft.icon");
+
+  final long maximumSize;
+  // Both keyed by the path and etag of what they were made from (see key())
+  final Cache<List<String>, DataResource> compressed;
+  final Cache<List<String>, DataResource> sidecars;
+
+
+  public CompressedVariants(long maximumCacheBytes, long maximumSize)
+  {
+    this.maximumSize = maximumSize;
+    // Entries for resources that didn't get any smaller hold no data, so hardly weigh anything
+    this.compressed = CacheBuilder.newBuilder()
+        .maximumWeight(maximumCacheBytes)
+        .weigher((Weigher<List<String>, DataResource>) (key, variant) ->
+            variant.getData() instanceof ByteArrayBlob ? variant.getSize().get().intValue() : 1)
+        .build();
+    this.sidecars = CacheBuilder.newBuilder().maximumSize(10000).build();
+  }
+
+
+  public static boolean isCompressible(DataResource resource)
+  {
+    final String contentType = resource.getContentType();
+    return contentType != null
+        && (contentType.startsWith("text/") || COMPRESSIBLE_TYPES.contains(contentType));
+  }
+
+
+  // The etag the on-the-fly variant will have, without having to compress anything
+  public static String compressedEtag(DataResource resource)
+  {
+    return resource.getEtag() + ETAG_SUFFIX;
+  }
+
+
+  public boolean isWorthCompressing(DataResource resource)
+  {
+    final long size = resource.getSize().orElse(-1L);
+    return resource.getEtag() != null && resource.getData() != null
+        && size >= MINIMUM_SIZE && size <= maximumSize;
+  }
+
+
+  /**
+   * Returns the gzipped variant of the resource, compressing it if it isn't cached already.  Returns
+   * empty if the resource isn't a size worth compressing, or if compressing doesn't make it smaller.
+   */
+  public Optional<DataResource> compressed(DataResource resource) throws IOException
+  {
+    if (!isWorthCompressing(resource))
+    {
+      return Optional.empty();
+    }
+    try
+    {
+      final DataResource variant = compressed.get(key(resource), () -> compress(resource));
+      return variant.getData() instanceof ByteArrayBlob ? Optional.of(variant) : Optional.empty();
+    }
+    catch (ExecutionException e)
+    {
+      throw new IOException("Error compressing [" + resource.getPath() + "]", e.getCause());
+    }
+  }
+
+
+  // Describes a sidecar file as the gzipped variant of the original
+  public DataResource sidecar(DataResource resource, DataResource sidecar)
+  {
+    try
+    {
+      return sidecars.get(key(sidecar), () -> sidecar
+          .withEtag(sidecar.getEtag() + ETAG_SUFFIX)
+          .withContentType(resource.getContentType()));
+    }
+    catch (ExecutionException e)
+    {
+      // nothing in there can throw
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+
+  private static List<String> key(DataResource resource)
+  {
+    return ImmutableList.of(resource.getPath(), resource.getEtag());
+  }
+
+
+  private static DataResource compress(DataResource resource) throws IOException
+  {
+    final byte[] original = resource.getData().getBytes();
+    if (original == null)
+      throw new IOException("Could not read [" + resource.getPath() + "]");
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(original.length / 3);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out))
+    {
+      gzip.write(original);
+    }
+    if (out.size() >= original.length)
+    {
+      log.debug("Compressing [{}] didn't help, so it will be sent as-is", resource.getPath());
+      return resource.withData(null);
+    }
+    log.debug("Compressed [{}] from {} to {} bytes", resource.getPath(), original.length, out.size());
+    return resource
+        .withEtag(compressedEtag(resource))
+        .withSize(Optional.of((long) out.size()))
+        .withData(new ByteArrayBlob(out.toByteArray()));
+  }
+}
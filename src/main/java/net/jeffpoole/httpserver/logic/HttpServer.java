@@ -1,15 +1,24 @@
 package net.jeffpoole.httpserver.logic;
 
+import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 import com.google.common.collect.Maps;
+import com.google.common.base.Charsets;
 import com.google.common.collect.Sets;
 
+import net.jeffpoole.httpserver.data.Blob;
+import net.jeffpoole.httpserver.data.ByteArrayBlob;
+import net.jeffpoole.httpserver.data.CompositeBlob;
 import net.jeffpoole.httpserver.datasource.DataResource;
 import net.jeffpoole.httpserver.datasource.DataSource;
 import net.jeffpoole.httpserver.parsing.HttpRequest;
@@ -26,11 +35,19 @@ import net.jeffpoole.httpserver.parsing.HttpResponse;
 public class HttpServer
 {
   final DataSource dataSource;
+  // null if responses are never compressed
+  final CompressedVariants compressedVariants;
 
   // Support only the required (per RFC 7231 § 4.1) methods for now
   final static Set<String> ALLOWED_METHODS = Sets.newHashSet("GET", "HEAD");
 
 
+  public HttpServer(DataSource dataSource)
+  {
+    this(dataSource, null);
+  }
+
+
   public HttpResponse respond(HttpRequest req)
   {
     // Reject methods we do not allow
@@ -41,30 +58,118 @@ public class HttpServer
     log.debug("Method: [{}]  Target: [{}]", req.getMethod(), target);
     try
     {
-      final DataResource dataResource = dataSource.get(target);
+      final DataResource original = dataSource.get(target);
       Map<String, String> headers = Maps.newHashMap();
 
       // If the target was not found, return our 404
-      if (!dataResource.isPresent())
+      if (!original.isPresent())
         return HttpResponse.notFound(headers, req);
 
-      // Add headers about the target if we have the information
-      if (dataResource.getContentType() != null)
-        headers.put("Content-Type", dataResource.getContentType());
+      // Pick the representation to send, without reading any data yet.  A sidecar is used as-is,
+      // while on-the-fly compression is put off until we know the client needs the body.
+      DataResource dataResource = original;
+      boolean gzip = false;
+      boolean compressOnTheFly = false;
+      if (compressedVariants != null && CompressedVariants.isCompressible(original))
+      {
+        headers.put("Vary", "Accept-Encoding");
+        if (acceptsGzip(req))
+        {
+          final DataResource sidecar = findSidecar(target, original);
+          if (sidecar != null)
+          {
+            dataResource = compressedVariants.sidecar(original, sidecar);
+            gzip = true;
+          }
+          else
+          {
+            compressOnTheFly = compressedVariants.isWorthCompressing(original);
+          }
+        }
+      }
+
+      // Always include the date served, for caching reasons
+      headers.put("Date", HttpServerUtils.currentHttpDate());
+
+      // Evaluate preconditions before any data is opened, so revalidations cost no body at all
+      final String etag = compressOnTheFly ? CompressedVariants.compressedEtag(original)
+          : dataResource.getEtag();
+      if (isNotModified(req, etag, dataResource.getModifiedTimestamp()))
+      {
+        log.debug("Returning Not Modified response");
+        final ResourceHeaders resourceHeaders = ResourceHeaders.forResource(dataResource);
+        if (etag != null)
+          headers.put("ETag", compressOnTheFly ? HttpServerUtils.quoteEtag(etag)
+              : resourceHeaders.getEtag());
+        if (resourceHeaders.getLastModified() != null)
+          headers.put("Last-Modified", resourceHeaders.getLastModified());
+        return HttpResponse.notModified(headers, req);
+      }
+
+      if (compressOnTheFly)
+      {
+        final Optional<DataResource> compressed = compressedVariants.compressed(original);
+        if (compressed.isPresent())
+        {
+          dataResource = compressed.get();
+          gzip = true;
+        }
+      }
+      if (gzip)
+        headers.put("Content-Encoding", "gzip");
+
+      // A body whose length isn't known has to go out chunked.  HTTP/1.0 clients don't understand
+      // that, so they get it read into memory instead.  HTTP/2 frames it anyway, so needs neither.
+      if (!dataResource.getSize().isPresent() && dataResource.getData() != null
+          && !"HTTP/2.0".equals(req.getHttpVersion()))
+      {
+        if ("HTTP/1.1".equals(req.getHttpVersion()))
+        {
+          headers.put("Transfer-Encoding", "chunked");
+        }
+        else
+        {
+          final byte[] bytes = dataResource.getData().getBytes();
+          if (bytes == null)
+            throw new IOException("Could not read [" + dataResource.getPath() + "]");
+          dataResource = dataResource.withData(new ByteArrayBlob(bytes))
+              .withSize(Optional.of((long) bytes.length));
+          // set here, since the ResourceHeaders shared with the streamed version have no length
+          headers.put("Content-Length", String.valueOf(bytes.length));
+        }
+      }
 
-      if (dataResource.getEtag() != null)
-        headers.put("ETag", dataResource.getEtag());
+      // Add headers about the target if we have the information (formatted once per resource)
+      final ResourceHeaders resourceHeaders = ResourceHeaders.forResource(dataResource);
+      if (resourceHeaders.getEtag() != null)
+        headers.put("ETag", resourceHeaders.getEtag());
 
-      if (dataResource.getModifiedTimestamp() != null)
-        headers.put("Last-Modified", HttpServerUtils.instantToHttpDate(dataResource.getModifiedTimestamp()));
+      if (resourceHeaders.getLastModified() != null)
+        headers.put("Last-Modified", resourceHeaders.getLastModified());
+
+      if (resourceHeaders.getContentType() != null)
+        headers.put("Content-Type", resourceHeaders.getContentType());
 
       // MUST NOT send this if Transfer-Encoding is specified, per
       // https://tools.ietf.org/html/rfc7230#section-3.3.2
-      if (dataResource.getSize().isPresent())
-        headers.put("Content-Length", String.valueOf(dataResource.getSize().get()));
+      if (resourceHeaders.getContentLength() != null)
+      {
+        headers.put("Content-Length", resourceHeaders.getContentLength());
+        headers.put("Accept-Ranges", "bytes");
+      }
 
-      // Always include the date served, for caching reasons
-      headers.put("Date", HttpServerUtils.instantToHttpDate(Instant.now()));
+      // Range requests only apply to GET, per RFC 7233 § 3.1
+      final String range = req.getHeaders().get("Range");
+      if (range != null && "GET".equals(req.getMethod()) && dataResource.getSize().isPresent()
+          && dataResource.getData() != null && isIfRangeSatisfied(req, dataResource))
+      {
+        final long size = dataResource.getSize().get();
+        final Optional<List<ByteRange>> ranges = ByteRange.parse(range, size);
+        if (ranges.isPresent())
+        {
+          return respondWithRanges(req, dataResource, headers, ranges.get(), size);
+        }
+      }
 
       // Either return the full response (for GET) or just the headers (for HEAD)
       if ("HEAD".equals(req.getMethod()))
@@ -87,5 +192,153 @@ public class HttpServer
   }
 
 
+  // Accept-Encoding is a list of codings with optional weights (RFC 7231 § 5.3.4), where q=0 means
+  // "not acceptable".  "*" covers gzip unless gzip is listed itself.
+  static boolean acceptsGzip(HttpRequest req)
+  {
+    final String acceptEncoding = req.getHeaders().get("Accept-Encoding");
+    if (acceptEncoding == null)
+      return false;
+    Boolean wildcard = null;
+    for (String coding : acceptEncoding.split(","))
+    {
+      final int semicolon = coding.indexOf(';');
+      final String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+      boolean acceptable = true;
+      if (semicolon >= 0)
+      {
+        final String parameter = coding.substring(semicolon + 1).trim();
+        if (parameter.startsWith("q=") || parameter.startsWith("Q="))
+        {
+          try
+          {
+            acceptable = Double.parseDouble(parameter.substring(2).trim()) > 0;
+          }
+          catch (NumberFormatException e)
+          {
+            acceptable = false;
+          }
+        }
+      }
+      if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name))
+        return acceptable;
+      if ("*".equals(name))
+        wildcard = acceptable;
+    }
+    return wildcard != null && wildcard;
+  }
+
+
+  // Looks for a precompressed copy next to the file, which is only used if it is at least as new
+  DataResource findSidecar(String target, DataResource original)
+  {
+    final int query = target.indexOf('?');
+    final String path = query < 0 ? target : target.substring(0, query);
+    if (path.endsWith("/"))
+      return null;
+    final DataResource sidecar = dataSource.get(path + ".gz");
+    if (!sidecar.isPresent() || sidecar.getEtag() == null || sidecar.getModifiedTimestamp() == null
+        || original.getModifiedTimestamp() == null
+        || sidecar.getModifiedTimestamp().isBefore(original.getModifiedTimestamp()))
+    {
+      return null;
+    }
+    return sidecar;
+  }
+
+
+  // Without If-Range the Range header always applies.  With it, the Range only applies if the
+  // validator still matches, using strong comparison (RFC 7233 § 3.2).
+  boolean isIfRangeSatisfied(HttpRequest req, DataResource dataResource)
+  {
+    final String ifRange = req.getHeaders().get("If-Range");
+    if (ifRange == null)
+      return true;
+    if (ifRange.trim().startsWith("\"") || ifRange.trim().startsWith("W/"))
+    {
+      return dataResource.getEtag() != null
+          && HttpServerUtils.quoteEtag(dataResource.getEtag()).equals(ifRange.trim());
+    }
+    return dataResource.getModifiedTimestamp() != null
+        && HttpServerUtils.httpDateToInstant(ifRange)
+            .map(date -> date.getEpochSecond() == dataResource.getModifiedTimestamp().getEpochSecond())
+            .orElse(false);
+  }
+
+
+  HttpResponse respondWithRanges(HttpRequest req, DataResource dataResource,
+      Map<String, String> headers, List<ByteRange> ranges, long size)
+  {
+    if (ranges.isEmpty())
+    {
+      log.debug("Returning Range Not Satisfiable response");
+      headers.remove("Content-Type");
+      headers.remove("Content-Length");
+      headers.put("Content-Range", "bytes */" + size);
+      return HttpResponse.rangeNotSatisfiable(headers, req);
+    }
+
+    final Blob data = dataResource.getData();
+    if (ranges.size() == 1)
+    {
+      final ByteRange byteRange = ranges.get(0);
+      headers.put("Content-Range", byteRange.toContentRange(size));
+      headers.put("Content-Length", String.valueOf(byteRange.getLength()));
+      log.debug("Returning Partial Content response for [{}]", byteRange);
+      return HttpResponse.partialContent(dataResource
+          .withData(data.slice(byteRange.getFirst(), byteRange.getLength()))
+          .withSize(Optional.of(byteRange.getLength())), headers, req);
+    }
+
+    // Several ranges are sent as a multipart/byteranges body, per RFC 7233 Appendix A
+    final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    final List<Blob> parts = new ArrayList<>(ranges.size() * 2 + 1);
+    long length = 0;
+    for (ByteRange byteRange : ranges)
+    {
+      final StringBuilder partHeader = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+      if (dataResource.getContentType() != null)
+        partHeader.append("Content-Type: ").append(dataResource.getContentType()).append("\r\n");
+      partHeader.append("Content-Range: ").append(byteRange.toContentRange(size)).append("\r\n\r\n");
+      final byte[] partHeaderBytes = partHeader.toString().getBytes(Charsets.US_ASCII);
+      parts.add(new ByteArrayBlob(partHeaderBytes));
+      parts.add(data.slice(byteRange.getFirst(), byteRange.getLength()));
+      length += partHeaderBytes.length + byteRange.getLength();
+    }
+    final byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(Charsets.US_ASCII);
+    parts.add(new ByteArrayBlob(trailer));
+    length += trailer.length;
+
+    headers.put("Content-Type", "multipart/byteranges; boundary=" + boundary);
+    headers.put("Content-Length", String.valueOf(length));
+    log.debug("Returning multipart Partial Content response for {} ranges", ranges.size());
+    return HttpResponse.partialContent(dataResource
+        .withData(new CompositeBlob(parts))
+        .withSize(Optional.of(length)), headers, req);
+  }
 
+
+  // Per RFC 7232 § 6, If-None-Match is checked first, and If-Modified-Since is only considered when
+  // there is no If-None-Match.  We only serve GET and HEAD, so a match always means 304.
+  boolean isNotModified(HttpRequest req, String etag, Instant modifiedTimestamp)
+  {
+    final String ifNoneMatch = req.getHeaders().get("If-None-Match");
+    if (ifNoneMatch != null)
+    {
+      if (etag == null)
+        return "*".equals(ifNoneMatch.trim());
+      return HttpServerUtils.etagMatches(ifNoneMatch, etag);
+    }
+
+    final String ifModifiedSince = req.getHeaders().get("If-Modified-Since");
+    if (ifModifiedSince != null && modifiedTimestamp != null)
+    {
+      // HTTP dates only have one-second resolution
+      final long modifiedSeconds = modifiedTimestamp.getEpochSecond();
+      return HttpServerUtils.httpDateToInstant(ifModifiedSince)
+          .map(since -> modifiedSeconds <= since.getEpochSecond())
+          .orElse(false);
+    }
+    return false;
+  }
 }
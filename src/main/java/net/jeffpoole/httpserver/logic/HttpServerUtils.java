@@ -3,15 +3,22 @@ package net.jeffpoole.httpserver.logic;
 import static java.time.temporal.ChronoField.*;
 
 import java.time.Instant;
+import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+
+import lombok.Value;
+
+import com.google.common.base.Charsets;
 
 
 /**
- * Right now, this just contains a utility function to produce proper HTTP dates, per RFC 7231
+ * Utility functions for HTTP dates, per RFC 7231, and entity-tags, per RFC 7232
  */
 public class HttpServerUtils
 {
@@ -67,8 +74,97 @@ public class HttpServerUtils
   }
 
 
+  @Value
+  static class CachedHttpDate
+  {
+    long epochSecond;
+    String text;
+    byte[] bytes;
+  }
+
+  // HTTP dates only have one-second resolution, so the current one is only formatted once a second
+  private static volatile CachedHttpDate cachedHttpDate = new CachedHttpDate(-1, null, null);
+
+
   public static String instantToHttpDate(final Instant inst)
   {
     return RFC_5322_DATE_TIME.format(inst.atZone(ZoneOffset.UTC));
   }
+
+
+  // The current time as an HTTP date, for the Date header
+  public static String currentHttpDate()
+  {
+    final long now = System.currentTimeMillis() / 1000;
+    CachedHttpDate cached = cachedHttpDate;
+    if (cached.getEpochSecond() != now)
+    {
+      // Racing threads may each format it, but they all produce the same thing
+      final String text = instantToHttpDate(Instant.ofEpochSecond(now));
+      cached = new CachedHttpDate(now, text, text.getBytes(Charsets.US_ASCII));
+      cachedHttpDate = cached;
+    }
+    return cached.getText();
+  }
+
+
+  // If the date is the one currentHttpDate() is handing out, returns it already encoded (do not
+  // modify it).  Otherwise returns null.
+  public static byte[] encodedHttpDate(final String date)
+  {
+    final CachedHttpDate cached = cachedHttpDate;
+    return cached.getText() == date ? cached.getBytes() : null;
+  }
+
+
+  // Only the preferred IMF-fixdate format is understood.  RFC 7232 § 3.3 says to ignore conditional
+  // headers with invalid dates, so callers just skip the check when this returns empty.
+  public static Optional<Instant> httpDateToInstant(final String date)
+  {
+    try
+    {
+      return Optional.of(LocalDateTime.parse(date.trim(), RFC_5322_DATE_TIME).toInstant(ZoneOffset.UTC));
+    }
+    catch (DateTimeParseException e)
+    {
+      return Optional.empty();
+    }
+  }
+
+
+  // Entity-tags are sent as quoted strings, per RFC 7232 § 2.3
+  public static String quoteEtag(final String etag)
+  {
+    if (etag.startsWith("\"") || etag.startsWith("W/\""))
+      return etag;
+    return "\"" + etag + "\"";
+  }
+
+
+  /**
+   * Checks a comma-separated list of entity-tags (as sent in If-None-Match) against an etag, using
+   * the weak comparison from RFC 7232 § 2.3.2.  "*" matches anything.
+   */
+  public static boolean etagMatches(final String etagList, final String etag)
+  {
+    final String opaqueTag = opaqueTag(etag);
+    for (String candidate : etagList.split(","))
+    {
+      candidate = candidate.trim();
+      if ("*".equals(candidate) || opaqueTag.equals(opaqueTag(candidate)))
+        return true;
+    }
+    return false;
+  }
+
+
+  // Strips the weakness indicator and quotes, leaving just the opaque-tag characters
+  private static String opaqueTag(String etag)
+  {
+    if (etag.startsWith("W/"))
+      etag = etag.substring(2);
+    if (etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\""))
+      etag = etag.substring(1, etag.length() - 1);
+    return etag;
+  }
 }
@@ -0,0 +1,87 @@
+package net.jeffpoole.httpserver.logic;
+
+import java.io.ByteArrayOutputStream;
+
+import lombok.Value;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import net.jeffpoole.httpserver.datasource.DataResource;
+
+
+/**
+ * The response header values that only depend on a resource (Content-Type, ETag, Last-Modified and
+ * Content-Length), formatted once and also kept already encoded, so responses for a hot resource can
+ * just copy the bytes rather than formatting dates and encoding strings every time.
+ *
+ * Instances are remembered per etag String instance (which is shared by every copy of a cached
+ * DataResource), and only while that etag is still referenced.
+ */
+@Value
+public class ResourceHeaders
+{
+  private static final Cache<String, ResourceHeaders> BY_ETAG =
+      CacheBuilder.newBuilder().weakKeys().maximumSize(100000).build();
+
+  String contentType;
+  String etag;
+  String lastModified;
+  String contentLength;
+  // The header lines for contentType, etag and lastModified (whichever are set), each ending in CRLF
+  byte[] encoded;
+  byte[] encodedContentLength;
+
+
+  public static ResourceHeaders forResource(DataResource resource)
+  {
+    if (resource.getEtag() == null)
+      return create(resource);
+    ResourceHeaders headers = BY_ETAG.getIfPresent(resource.getEtag());
+    if (headers == null)
+    {
+      headers = create(resource);
+      BY_ETAG.put(resource.getEtag(), headers);
+    }
+    return headers;
+  }
+
+
+  // Returns the already created instance for this resource, if there is one
+  public static ResourceHeaders cached(DataResource resource)
+  {
+    return resource.getEtag() == null ? null : BY_ETAG.getIfPresent(resource.getEtag());
+  }
+
+
+  private static ResourceHeaders create(DataResource resource)
+  {
+    final String contentType = resource.getContentType();
+    final String etag = resource.getEtag() == null ? null
+        : HttpServerUtils.quoteEtag(resource.getEtag());
+    final String lastModified = resource.getModifiedTimestamp() == null ? null
+        : HttpServerUtils.instantToHttpDate(resource.getModifiedTimestamp());
+    final String contentLength = resource.getSize().map(String::valueOf).orElse(null);
+
+    final ByteArrayOutputStream encoded = new ByteArrayOutputStream(128);
+    encodeLine(encoded, "Content-Type", contentType);
+    encodeLine(encoded, "ETag", etag);
+    encodeLine(encoded, "Last-Modified", lastModified);
+    final ByteArrayOutputStream encodedContentLength = new ByteArrayOutputStream(32);
+    encodeLine(encodedContentLength, "Content-Length", contentLength);
+
+    return new ResourceHeaders(contentType, etag, lastModified, contentLength,
+        encoded.toByteArray(), encodedContentLength.toByteArray());
+  }
+
+
+  private static void encodeLine(ByteArrayOutputStream out, String name, String value)
+  {
+    if (value != null)
+    {
+      final byte[] line = (name + ": " + value + "\r\n").getBytes(Charsets.UTF_8);
+      out.write(line, 0, line.length);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package net.jeffpoole.httpserver.logic;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.base.Ascii;
+
+import net.jeffpoole.httpserver.parsing.HttpRequest;
+import net.jeffpoole.httpserver.parsing.HttpResponse;
+
+
+/**
+ * Name-based virtual hosting: hands each request to the HttpServer (and so the DataSource) for the
+ * site named in its Host header, or to the default one if no site matches or there is no Host.
+ *
+ * Names are either exact ("www.example.com") or wildcards ("*.example.com"), which match any name
+ * ending in ".example.com" but not example.com itself.  An exact name beats a wildcard, and a
+ * longer wildcard beats a shorter one.  The names are compiled into two hash tables up front, so a
+ * lookup is one probe for the exact name plus one for each dot in it.
+ */
+@Slf4j
+public class VirtualHostServer extends HttpServer
+{
+  final Map<String, HttpServer> exact = new HashMap<>();
+  // keyed by the suffix, including its leading dot
+  final Map<String, HttpServer> wildcards = new HashMap<>();
+  final HttpServer defaultServer;
+
+
+  public VirtualHostServer(Map<String, HttpServer> hosts, HttpServer defaultServer)
+  {
+    super(defaultServer.dataSource, defaultServer.compressedVariants);
+    this.defaultServer = defaultServer;
+    for (Map.Entry<String, HttpServer> host : hosts.entrySet())
+    {
+      final String name = normalize(host.getKey());
+      final boolean wildcard = name.startsWith("*.");
+      final Map<String, HttpServer> table = wildcard ? wildcards : exact;
+      if (name.isEmpty() || name.equals("*.")
+          || table.put(wildcard ? name.substring(1) : name, host.getValue()) != null)
+      {
+        throw new IllegalArgumentException("Invalid or repeated host name [" + host.getKey() + "]");
+      }
+    }
+  }
+
+
+  @Override
+  public HttpResponse respond(HttpRequest req)
+  {
+    return serverFor(req.getHeaders().get("Host")).respond(req);
+  }
+
+
+  HttpServer serverFor(String hostHeader)
+  {
+    if (hostHeader == null)
+      return defaultServer;
+    final String name = normalize(stripPort(hostHeader));
+    final HttpServer server = exact.get(name);
+    if (server != null)
+      return server;
+    for (int dot = name.indexOf('.'); dot >= 0; dot = name.indexOf('.', dot + 1))
+    {
+      final HttpServer wildcard = wildcards.get(name.substring(dot));
+      if (wildcard != null)
+        return wildcard;
+    }
+    log.debug("No virtual host for [{}], using the default", hostHeader);
+    return defaultServer;
+  }
+
+
+  // Host is host[:port], where the host can be an IPv6 literal in brackets (RFC 7230 § 5.4)
+  static String stripPort(String hostHeader)
+  {
+    final int colon = hostHeader.lastIndexOf(':');
+    return colon < 0 || colon < hostHeader.lastIndexOf(']') ? hostHeader
+        : hostHeader.substring(0, colon);
+  }
+
+
+  // Names are case-insensitive, and may be written fully qualified with a trailing dot
+  static String normalize(String name)
+  {
+    name = Ascii.toLowerCase(name.trim());
+    return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+  }
+}
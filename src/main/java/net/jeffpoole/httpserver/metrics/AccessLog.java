@@ -0,0 +1,347 @@
+package net.jeffpoole.httpserver.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.base.Charsets;
+
+import net.jeffpoole.httpserver.datasource.DataResource;
+import net.jeffpoole.httpserver.parsing.HttpRequest;
+import net.jeffpoole.httpserver.parsing.HttpResponse;
+
+
+/**
+ * An access log in the common log format, with the time taken (in microseconds) added on the end,
+ * as Apache's %D would:
+ *
+ *   127.0.0.1 - - [10/Oct/2015:13:55:36 -0700] "GET /a.html HTTP/1.1" 200 2326 157
+ *
+ * Logging a request just copies a few references and numbers into a slot of a preallocated ring
+ * buffer; a single writer thread does all of the formatting, and writes out whatever has built up
+ * in one go (at most every FLUSH_INTERVAL_MILLIS).  The ring is lock-free for the many threads
+ * logging: a slot is claimed with a CAS on the tail, and published by writing its sequence number.
+ * If the writer falls behind and the ring fills up, records are dropped (and counted in the
+ * metrics) rather than holding up the requests.
+ *
+ * The file is rotated once it reaches the maximum size, keeping a number of old ones as .1, .2,
+ * and so on (.1 the most recent).
+ */
+@Slf4j
+public class AccessLog implements Closeable
+{
+  static final int BATCH_BYTES = 256 * 1024;
+  static final long FLUSH_INTERVAL_MILLIS = 100;
+  static final DateTimeFormatter TIME_FORMAT =
+      DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+
+  // Filled in by a request thread, and read by the writer once sequence says it's published
+  static class Slot
+  {
+    volatile long sequence = -1;
+    SocketAddress remoteAddress;
+    String method;
+    String target;
+    String httpVersion;
+    int status;
+    // -1 if not known (a streamed body)
+    long bytes;
+    long timeMillis;
+    long durationNanos;
+  }
+
+  final Path file;
+  final long maximumBytes;
+  final int files;
+  final ServerMetrics metrics;
+  final Slot[] slots;
+  final int mask;
+  // The next sequence to claim, and the next to write (only advanced by the writer)
+  final AtomicLong tail = new AtomicLong();
+  volatile long head;
+  final Thread writer;
+  volatile boolean closing;
+
+  // Only used by the writer
+  FileChannel channel;
+  long size;
+  final StringBuilder batch = new StringBuilder(BATCH_BYTES);
+  final ByteBuffer bytes = ByteBuffer.allocate(BATCH_BYTES * 2);
+  final CharsetEncoder encoder = Charsets.UTF_8.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  final ZoneId zone = ZoneId.systemDefault();
+  long formattedSecond = Long.MIN_VALUE;
+  String formattedTime;
+
+
+  // capacity is rounded up to a power of two
+  public AccessLog(Path file, int capacity, long maximumBytes, int files, ServerMetrics metrics)
+      throws IOException
+  {
+    this(file, capacity, maximumBytes, files, metrics, true);
+  }
+
+
+  // Without a writer thread, nothing is written until drain() is called (for testing)
+  AccessLog(Path file, int capacity, long maximumBytes, int files, ServerMetrics metrics,
+      boolean startWriter) throws IOException
+  {
+    this.file = file;
+    this.maximumBytes = maximumBytes;
+    this.files = files;
+    this.metrics = metrics;
+    final int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+    this.slots = new Slot[size];
+    for (int i = 0; i < size; i++)
+    {
+      slots[i] = new Slot();
+    }
+    this.mask = size - 1;
+    open();
+    if (startWriter)
+    {
+      this.writer = new Thread(this::run, "access-log-writer");
+      writer.setDaemon(true);
+      writer.start();
+    }
+    else
+    {
+      this.writer = null;
+    }
+  }
+
+
+  // The length of a response's body, as logged: -1 if it isn't known until it has been sent
+  public static long bodyBytes(HttpResponse response)
+  {
+    final DataResource resource = response.getResource();
+    if (resource == null || resource.getData() == null)
+    {
+      return 0;
+    }
+    return resource.getSize().orElse(-1L);
+  }
+
+
+  /**
+   * Records a response; bytes is the length of the body, or -1 if it isn't known.  This never
+   * blocks, and does no formatting.
+   */
+  public void log(SocketAddress remoteAddress, HttpRequest request, int status, long bytes,
+      long durationNanos)
+  {
+    long sequence;
+    do
+    {
+      sequence = tail.get();
+      if (sequence - head >= slots.length)
+      {
+        metrics.accessLogDropped();
+        return;
+      }
+    }
+    while (!tail.compareAndSet(sequence, sequence + 1));
+
+    final Slot slot = slots[(int) sequence & mask];
+    slot.remoteAddress = remoteAddress;
+    slot.method = request.getMethod();
+    slot.target = request.getTarget();
+    slot.httpVersion = request.getHttpVersion();
+    slot.status = status;
+    slot.bytes = bytes;
+    slot.timeMillis = System.currentTimeMillis();
+    slot.durationNanos = durationNanos;
+    slot.sequence = sequence;
+  }
+
+
+  private void run()
+  {
+    while (true)
+    {
+      final boolean stopping = closing;
+      try
+      {
+        drain();
+      }
+      catch (IOException e)
+      {
+        log.error("Error writing the access log [{}]", file, e);
+      }
+      if (stopping)
+      {
+        return;
+      }
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS));
+    }
+  }
+
+
+  // Formats and writes everything published so far
+  void drain() throws IOException
+  {
+    long next = head;
+    while (true)
+    {
+      final Slot slot = slots[(int) next & mask];
+      if (slot.sequence != next)
+      {
+        break;
+      }
+      format(slot);
+      // let go of the references, and the slot
+      slot.remoteAddress = null;
+      slot.method = slot.target = slot.httpVersion = null;
+      head = ++next;
+      if (batch.length() >= BATCH_BYTES)
+      {
+        write();
+      }
+    }
+    write();
+  }
+
+
+  private void format(Slot slot)
+  {
+    if (slot.remoteAddress instanceof InetSocketAddress)
+    {
+      batch.append(((InetSocketAddress) slot.remoteAddress).getAddress().getHostAddress());
+    }
+    else
+    {
+      batch.append('-');
+    }
+    final long second = slot.timeMillis / 1000;
+    if (second != formattedSecond)
+    {
+      formattedSecond = second;
+      formattedTime = TIME_FORMAT.format(Instant.ofEpochSecond(second).atZone(zone));
+    }
+    batch.append(" - - [").append(formattedTime).append("] \"").append(slot.method).append(' ')
+        .append(slot.target).append(' ').append(slot.httpVersion).append("\" ")
+        .append(slot.status).append(' ');
+    if (slot.bytes < 0)
+    {
+      batch.append('-');
+    }
+    else
+    {
+      batch.append(slot.bytes);
+    }
+    batch.append(' ').append(slot.durationNanos / 1000).append('\n');
+  }
+
+
+  private void write() throws IOException
+  {
+    if (batch.length() == 0)
+    {
+      return;
+    }
+    final CharBuffer chars = CharBuffer.wrap(batch);
+    encoder.reset();
+    while (true)
+    {
+      final boolean done = !encoder.encode(chars, bytes, true).isOverflow();
+      bytes.flip();
+      while (bytes.hasRemaining())
+      {
+        size += channel.write(bytes);
+      }
+      bytes.clear();
+      if (done)
+      {
+        break;
+      }
+    }
+    batch.setLength(0);
+    if (maximumBytes > 0 && size >= maximumBytes)
+    {
+      rotate();
+    }
+  }
+
+
+  private void open() throws IOException
+  {
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    size = channel.size();
+  }
+
+
+  // access.log.(n-1) -> access.log.n, ..., access.log -> access.log.1, and start a new one
+  private void rotate() throws IOException
+  {
+    channel.close();
+    if (files > 0)
+    {
+      for (int i = files - 1; i >= 1; i--)
+      {
+        final Path older = rotated(i);
+        if (Files.exists(older))
+        {
+          Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+    else
+    {
+      Files.delete(file);
+    }
+    open();
+  }
+
+
+  Path rotated(int n)
+  {
+    return file.resolveSibling(file.getFileName() + "." + n);
+  }
+
+
+  // Writes out whatever is left, and closes the file
+  @Override
+  public void close() throws IOException
+  {
+    closing = true;
+    if (writer == null)
+    {
+      drain();
+    }
+    else
+    {
+      LockSupport.unpark(writer);
+      try
+      {
+        writer.join();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+    channel.close();
+  }
+}
@@ -0,0 +1,82 @@
+package net.jeffpoole.httpserver.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A histogram of durations with fixed buckets, from 10µs to 10s.  Each bucket is a LongAdder, so
+ * recording from many threads at once doesn't contend on a single counter.  Buckets are stored
+ * non-cumulatively and only summed up when written out.
+ */
+public class LatencyHistogram
+{
+  // Upper bounds, in seconds as Prometheus expects them
+  static final double[] BOUNDS = { 0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005, 0.001,
+      0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+  static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+  static
+  {
+    for (int i = 0; i < BOUNDS.length; i++)
+    {
+      BOUNDS_NANOS[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+    }
+  }
+
+  // One more than the bounds, for the +Inf bucket
+  final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+  final LongAdder sumNanos = new LongAdder();
+
+
+  public LatencyHistogram()
+  {
+    for (int i = 0; i < buckets.length; i++)
+    {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+
+  public void record(long nanos)
+  {
+    int bucket = 0;
+    while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket])
+    {
+      bucket++;
+    }
+    buckets[bucket].increment();
+    sumNanos.add(nanos);
+  }
+
+
+  public long count()
+  {
+    long count = 0;
+    for (LongAdder bucket : buckets)
+    {
+      count += bucket.sum();
+    }
+    return count;
+  }
+
+
+  /**
+   * Writes the histogram in the Prometheus text format, as name_bucket, name_sum and name_count
+   * samples with the given labels (e.g. stage="decode") plus le on the buckets.
+   */
+  void writePrometheus(StringBuilder out, String name, String labels)
+  {
+    long cumulative = 0;
+    for (int i = 0; i < buckets.length; i++)
+    {
+      cumulative += buckets[i].sum();
+      out.append(name).append("_bucket{").append(labels).append(",le=\"")
+          .append(i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf").append("\"} ")
+          .append(cumulative).append('\n');
+    }
+    out.append(name).append("_sum{").append(labels).append("} ")
+        .append(sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+    out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+  }
+}
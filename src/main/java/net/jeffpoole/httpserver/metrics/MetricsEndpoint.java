@@ -0,0 +1,52 @@
+package net.jeffpoole.httpserver.metrics;
+
+import java.util.Map;
+import java.util.Optional;
+
+import lombok.RequiredArgsConstructor;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+import net.jeffpoole.httpserver.data.ByteArrayBlob;
+import net.jeffpoole.httpserver.datasource.DataResource;
+import net.jeffpoole.httpserver.logic.HttpServerUtils;
+import net.jeffpoole.httpserver.parsing.HttpRequest;
+import net.jeffpoole.httpserver.parsing.HttpResponse;
+
+
+/**
+ * Answers GET and HEAD requests for a reserved path (e.g. /_metrics) with the server's metrics in
+ * the Prometheus text format.  The path takes priority over any file of the same name.
+ */
+@RequiredArgsConstructor
+public class MetricsEndpoint
+{
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  final String path;
+  final ServerMetrics metrics;
+
+
+  public boolean matches(HttpRequest req)
+  {
+    final String target = req.getTarget();
+    return target.startsWith(path)
+        && (target.length() == path.length() || target.charAt(path.length()) == '?')
+        && ("GET".equals(req.getMethod()) || "HEAD".equals(req.getMethod()));
+  }
+
+
+  public HttpResponse respond(HttpRequest req)
+  {
+    final byte[] body = metrics.toPrometheus().getBytes(Charsets.UTF_8);
+    final Map<String, String> headers = Maps.newHashMap();
+    headers.put("Content-Type", CONTENT_TYPE);
+    headers.put("Content-Length", String.valueOf(body.length));
+    headers.put("Date", HttpServerUtils.currentHttpDate());
+    final DataResource resource = new DataResource(path, true, null, null, CONTENT_TYPE,
+        Optional.of((long) body.length),
+        "HEAD".equals(req.getMethod()) ? null : new ByteArrayBlob(body));
+    return HttpResponse.ok(resource, headers, req);
+  }
+}
@@ -0,0 +1,233 @@
+package net.jeffpoole.httpserver.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters and latency histograms for the whole server, cheap enough to update on every request.
+ * Everything is a LongAdder (or built from them), so the hot paths never contend on a shared
+ * counter; the cost is only paid when the metrics are read.
+ */
+public class ServerMetrics
+{
+  // Where a request's time goes, in the order it passes through them
+  public enum Stage
+  {
+    // Parsing the request head from the buffer
+    DECODE,
+    // Waiting for the connection's dispatch queue to get to the request
+    QUEUE,
+    // Looking the resource up (part of RESPOND)
+    DATA_SOURCE,
+    // HttpServer.respond, which does everything but the I/O of the response body
+    RESPOND,
+    // Turning the response into buffers and file regions
+    ENCODE,
+    // From handing the response to the channel until it has all been written to the socket
+    SEND,
+    // From being queued until the response has been written
+    TOTAL
+  }
+
+  // How a response body went out
+  public enum TransferMode
+  {
+    // Copied into the buffer with the response head
+    HEAP,
+    // A slice of a ContentCache buffer
+    CACHE,
+    // A zero-copy FileRegion
+    FILE_REGION,
+    // Read or rendered in chunks as it's sent: files where zero-copy isn't possible (TLS), and
+    // streamed directory listings (whose length isn't counted)
+    CHUNKED
+  }
+
+  // Why the server closed (or refused) a connection itself
+  public enum CloseReason
+  {
+    // Nothing read from an idle connection for the read timeout
+    READ_IDLE,
+    // Nothing written for the write timeout, while the client wasn't reading what was queued
+    WRITE_IDLE,
+    // The connection reached the maximum number of requests
+    REQUEST_LIMIT,
+    // Refused at accept time because the connection cap was reached
+    REJECTED
+  }
+
+  final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+  final ConcurrentMap<Integer, LongAdder> responsesByStatus = new ConcurrentHashMap<>();
+  final LongAdder[] transfers = new LongAdder[TransferMode.values().length];
+  final LongAdder[] transferBytes = new LongAdder[TransferMode.values().length];
+  final LongAdder bytesSent = new LongAdder();
+  final LongAdder connectionsOpened = new LongAdder();
+  final LongAdder connectionsClosed = new LongAdder();
+  final LongAdder readsPaused = new LongAdder();
+  final LongAdder accessLogDrops = new LongAdder();
+  final LongAdder[] closes = new LongAdder[CloseReason.values().length];
+
+
+  public ServerMetrics()
+  {
+    for (int i = 0; i < stages.length; i++)
+    {
+      stages[i] = new LatencyHistogram();
+    }
+    for (int i = 0; i < transfers.length; i++)
+    {
+      transfers[i] = new LongAdder();
+      transferBytes[i] = new LongAdder();
+    }
+    for (int i = 0; i < closes.length; i++)
+    {
+      closes[i] = new LongAdder();
+    }
+  }
+
+
+  public void record(Stage stage, long nanos)
+  {
+    stages[stage.ordinal()].record(nanos);
+  }
+
+
+  public void response(int statusCode)
+  {
+    LongAdder counter = responsesByStatus.get(statusCode);
+    if (counter == null)
+    {
+      counter = responsesByStatus.computeIfAbsent(statusCode, code -> new LongAdder());
+    }
+    counter.increment();
+  }
+
+
+  public void transfer(TransferMode mode, long bytes)
+  {
+    transfers[mode.ordinal()].increment();
+    transferBytes[mode.ordinal()].add(bytes);
+  }
+
+
+  public void bytesSent(long bytes)
+  {
+    bytesSent.add(bytes);
+  }
+
+
+  public void connectionOpened()
+  {
+    connectionsOpened.increment();
+  }
+
+
+  public void connectionClosed()
+  {
+    connectionsClosed.increment();
+  }
+
+
+  // A connection stopped reading, because of backpressure
+  public void readPaused()
+  {
+    readsPaused.increment();
+  }
+
+
+  // The access log's buffer was full, so a request went unlogged
+  public void accessLogDropped()
+  {
+    accessLogDrops.increment();
+  }
+
+
+  public void closed(CloseReason reason)
+  {
+    closes[reason.ordinal()].increment();
+  }
+
+
+  public LatencyHistogram getHistogram(Stage stage)
+  {
+    return stages[stage.ordinal()];
+  }
+
+
+  // The current values, in the Prometheus text exposition format (version 0.0.4)
+  public String toPrometheus()
+  {
+    final StringBuilder out = new StringBuilder(8192);
+
+    out.append("# HELP webserver_stage_duration_seconds Time spent in each stage of a request\n")
+        .append("# TYPE webserver_stage_duration_seconds histogram\n");
+    for (Stage stage : Stage.values())
+    {
+      stages[stage.ordinal()].writePrometheus(out, "webserver_stage_duration_seconds",
+          "stage=\"" + stage.name().toLowerCase(Locale.ROOT) + "\"");
+    }
+
+    out.append("# HELP webserver_responses_total Responses sent, by status code\n")
+        .append("# TYPE webserver_responses_total counter\n");
+    for (Map.Entry<Integer, LongAdder> status : responsesByStatus.entrySet())
+    {
+      out.append("webserver_responses_total{status=\"").append(status.getKey()).append("\"} ")
+          .append(status.getValue().sum()).append('\n');
+    }
+
+    writeByTransferMode(out, "webserver_transfers_total", "Response bodies (or parts) sent",
+        transfers);
+    writeByTransferMode(out, "webserver_transfer_bytes_total", "Response body bytes sent",
+        transferBytes);
+
+    out.append("# HELP webserver_sent_bytes_total Bytes of responses written to sockets\n")
+        .append("# TYPE webserver_sent_bytes_total counter\n")
+        .append("webserver_sent_bytes_total ").append(bytesSent.sum()).append('\n');
+
+    // read closed first, so a connection closing in between can't make the gauge negative
+    final long closed = connectionsClosed.sum();
+    final long opened = connectionsOpened.sum();
+    out.append("# HELP webserver_connections_total Connections accepted\n")
+        .append("# TYPE webserver_connections_total counter\n")
+        .append("webserver_connections_total ").append(opened).append('\n')
+        .append("# HELP webserver_connections_open Connections currently open\n")
+        .append("# TYPE webserver_connections_open gauge\n")
+        .append("webserver_connections_open ").append(opened - closed).append('\n')
+        .append("# HELP webserver_read_pauses_total Times a connection stopped reading requests"
+            + " until its responses drained\n")
+        .append("# TYPE webserver_read_pauses_total counter\n")
+        .append("webserver_read_pauses_total ").append(readsPaused.sum()).append('\n')
+        .append("# HELP webserver_access_log_dropped_total Requests left out of the access log"
+            + " because its buffer was full\n")
+        .append("# TYPE webserver_access_log_dropped_total counter\n")
+        .append("webserver_access_log_dropped_total ").append(accessLogDrops.sum()).append('\n');
+
+    out.append("# HELP webserver_server_closes_total Connections closed or refused by the server,"
+        + " by reason\n")
+        .append("# TYPE webserver_server_closes_total counter\n");
+    for (CloseReason reason : CloseReason.values())
+    {
+      out.append("webserver_server_closes_total{reason=\"")
+          .append(reason.name().toLowerCase(Locale.ROOT)).append("\"} ")
+          .append(closes[reason.ordinal()].sum()).append('\n');
+    }
+    return out.toString();
+  }
+
+
+  private static void writeByTransferMode(StringBuilder out, String name, String help,
+      LongAdder[] counters)
+  {
+    out.append("# HELP ").append(name).append(' ').append(help).append(", by transfer mode\n")
+        .append("# TYPE ").append(name).append(" counter\n");
+    for (TransferMode mode : TransferMode.values())
+    {
+      out.append(name).append("{mode=\"").append(mode.name().toLowerCase(Locale.ROOT))
+          .append("\"} ").append(counters[mode.ordinal()].sum()).append('\n');
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package net.jeffpoole.httpserver.metrics;
+
+import lombok.RequiredArgsConstructor;
+
+import net.jeffpoole.httpserver.datasource.DataResource;
+import net.jeffpoole.httpserver.datasource.DataSource;
+
+
+/**
+ * Records how long lookups in the wrapped DataSource take, as the DATA_SOURCE stage.
+ */
+@RequiredArgsConstructor
+public class TimedDataSource implements DataSource
+{
+  final DataSource dataSource;
+  final ServerMetrics metrics;
+
+
+  @Override
+  public DataResource get(String path)
+  {
+    final long started = System.nanoTime();
+    try
+    {
+      return dataSource.get(path);
+    }
+    finally
+    {
+      metrics.record(ServerMetrics.Stage.DATA_SOURCE, System.nanoTime() - started);
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package net.jeffpoole.httpserver.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+import lombok.RequiredArgsConstructor;
+
+import com.google.common.base.Charsets;
+
+
+/**
+ * Sends a Blob's stream (see Blob.open()) a chunk at a time, optionally with chunked transfer coding
+ * (RFC 7230 § 4.1) for bodies whose length isn't known.  The ChunkedWriteHandler only asks for the
+ * next chunk while the channel is writable, so only about a chunk is ever in memory, however big the
+ * body is.
+ */
+@RequiredArgsConstructor
+class ChunkedBlob implements ChunkedInput<ByteBuf>
+{
+  // Chunk sizes are written as a fixed eight hex digits (leading zeros are allowed), so there is
+  // room for them before the data is read
+  private static final int SIZE_LINE_LENGTH = 10;
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(Charsets.US_ASCII);
+
+  final ReadableByteChannel channel;
+  // Whether to frame the data with chunked transfer coding
+  final boolean chunkCoding;
+  final int chunkSize;
+  boolean ended;
+
+
+  @Override
+  public boolean isEndOfInput() throws Exception
+  {
+    return ended;
+  }
+
+
+  @Override
+  public void close() throws Exception
+  {
+    channel.close();
+  }
+
+
+  @Override
+  public ByteBuf readChunk(final ChannelHandlerContext ctx) throws Exception
+  {
+    if (ended)
+    {
+      return null;
+    }
+    final ByteBuf chunk = ctx.alloc().buffer(chunkCoding
+        ? SIZE_LINE_LENGTH + chunkSize + 2 + LAST_CHUNK.length : chunkSize);
+    try
+    {
+      if (chunkCoding)
+      {
+        chunk.writerIndex(SIZE_LINE_LENGTH);
+      }
+      final int dataStart = chunk.writerIndex();
+      while (chunk.writerIndex() - dataStart < chunkSize)
+      {
+        if (read(channel, chunk, chunkSize - (chunk.writerIndex() - dataStart)) < 0)
+        {
+          ended = true;
+          break;
+        }
+      }
+
+      final int length = chunk.writerIndex() - dataStart;
+      if (chunkCoding)
+      {
+        if (length > 0)
+        {
+          chunk.setBytes(0, String.format("%08x\r\n", length).getBytes(Charsets.US_ASCII));
+          chunk.writeByte('\r').writeByte('\n');
+        }
+        else
+        {
+          chunk.readerIndex(SIZE_LINE_LENGTH);
+        }
+        if (ended)
+        {
+          chunk.writeBytes(LAST_CHUNK);
+        }
+      }
+      return chunk;
+    }
+    catch (Exception e)
+    {
+      chunk.release();
+      throw e;
+    }
+  }
+
+
+  /**
+   * Reads up to length bytes from the channel onto the end of the buffer, returning how many were
+   * read (-1 at the end of the stream).  Netty's own writeBytes() needs a ScatteringByteChannel.
+   */
+  static int read(final ReadableByteChannel channel, final ByteBuf buf, final int length)
+      throws IOException
+  {
+    buf.ensureWritable(length);
+    final int read = channel.read(buf.internalNioBuffer(buf.writerIndex(), length));
+    if (read > 0)
+    {
+      buf.writerIndex(buf.writerIndex() + read);
+    }
+    return read;
+  }
+}
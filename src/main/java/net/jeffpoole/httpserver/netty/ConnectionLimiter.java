@@ -0,0 +1,59 @@
+package net.jeffpoole.httpserver.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+
+import net.jeffpoole.httpserver.metrics.ServerMetrics;
+
+
+/**
+ * Caps the number of open connections across all the listeners it's added to.  It goes in the
+ * listening channels' pipelines, so it sees each accepted connection before it's registered with a
+ * worker, and a connection over the cap is closed right there -- before any buffers, handlers or
+ * dispatch queues are set up for it.
+ */
+@Slf4j
+@ChannelHandler.Sharable
+public class ConnectionLimiter extends ChannelInboundHandlerAdapter
+{
+  final int maximumConnections;
+  final ServerMetrics metrics;
+  final AtomicInteger open = new AtomicInteger();
+
+
+  public ConnectionLimiter(int maximumConnections, ServerMetrics metrics)
+  {
+    this.maximumConnections = maximumConnections;
+    this.metrics = metrics;
+  }
+
+
+  @Override
+  public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception
+  {
+    final Channel child = (Channel) msg;
+    if (open.incrementAndGet() > maximumConnections)
+    {
+      open.decrementAndGet();
+      metrics.closed(ServerMetrics.CloseReason.REJECTED);
+      log.debug("Refusing connection from [{}], already at {} connections", child.remoteAddress(),
+          maximumConnections);
+      child.unsafe().closeForcibly();
+      return;
+    }
+    child.closeFuture().addListener(future -> open.decrementAndGet());
+    super.channelRead(ctx, msg);
+  }
+
+
+  public int getOpenConnections()
+  {
+    return open.get();
+  }
+}
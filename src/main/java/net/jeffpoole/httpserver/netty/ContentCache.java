@@ -0,0 +1,124 @@
+package net.jeffpoole.httpserver.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.Weigher;
+
+
+/**
+ * Keeps the contents of small and medium files in pooled direct buffers, so hot files can be sent
+ * without opening them or copying them onto the heap.  Callers get a retained duplicate of the
+ * cached buffer (which they must release, normally by writing it; Netty 4.0 has no
+ * retainedDuplicate()), so an entry can be evicted while it is still being sent.
+ *
+ * Entries are keyed by path and remember the modification time they were loaded with; asking for a
+ * different modification time counts as a miss and the entry gets replaced.  The cache is bounded by
+ * the total bytes held, with least-recently-used entries evicted first.
+ */
+@Slf4j
+public class ContentCache
+{
+  @RequiredArgsConstructor
+  static class Entry
+  {
+    @Getter
+    final long modifiedMillis;
+    final ByteBuf content;
+    // Guarded by this.  Pooled buffers are recycled once released, so after that the content must
+    // never be touched again (a retain() could succeed on a buffer now used for something else).
+    boolean released;
+
+    synchronized ByteBuf retainedDuplicate()
+    {
+      return released ? null : content.duplicate().retain();
+    }
+
+    synchronized void release()
+    {
+      released = true;
+      content.release();
+    }
+  }
+
+  final ByteBufAllocator allocator;
+  @Getter
+  final long maximumEntrySize;
+  final Cache<String, Entry> cache;
+
+
+  public ContentCache(ByteBufAllocator allocator, long maximumBytes, long maximumEntrySize)
+  {
+    this.allocator = allocator;
+    this.maximumEntrySize = maximumEntrySize;
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(maximumBytes)
+        .weigher((Weigher<String, Entry>) (path, entry) -> entry.content.capacity())
+        .removalListener((RemovalListener<String, Entry>) removal -> removal.getValue().release())
+        .build();
+  }
+
+
+  // Returns a retained duplicate of the cached contents, or null if they aren't cached
+  public ByteBuf get(File file, long modifiedMillis)
+  {
+    final Entry entry = cache.getIfPresent(file.getPath());
+    if (entry == null || entry.getModifiedMillis() != modifiedMillis)
+    {
+      return null;
+    }
+    return entry.retainedDuplicate();
+  }
+
+
+  /**
+   * Reads the file into the cache and returns a retained duplicate of it, or returns null if the file
+   * is too big to cache.
+   */
+  public ByteBuf load(File file, long modifiedMillis, long length) throws IOException
+  {
+    if (length > maximumEntrySize)
+    {
+      return null;
+    }
+    final ByteBuf content = allocator.directBuffer((int) length, (int) length);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+    {
+      final FileChannel channel = raf.getChannel();
+      while (content.isWritable())
+      {
+        if (content.writeBytes(channel, content.writableBytes()) < 0)
+          throw new EOFException("File [" + file + "] is shorter than expected");
+      }
+    }
+    catch (IOException e)
+    {
+      content.release();
+      throw e;
+    }
+    // retain for the caller before caching, since it could be evicted (and released) straight away
+    final ByteBuf duplicate = content.duplicate().retain();
+    cache.put(file.getPath(), new Entry(modifiedMillis, content));
+    log.debug("Cached [{}] bytes of [{}]", length, file);
+    return duplicate;
+  }
+
+
+  public void invalidateAll()
+  {
+    cache.invalidateAll();
+  }
+}
@@ -0,0 +1,1055 @@
+package net.jeffpoole.httpserver.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.BaseEncoding;
+
+import net.jeffpoole.httpserver.data.Blob;
+import net.jeffpoole.httpserver.logic.HttpServer;
+import net.jeffpoole.httpserver.metrics.AccessLog;
+import net.jeffpoole.httpserver.metrics.MetricsEndpoint;
+import net.jeffpoole.httpserver.metrics.ServerMetrics;
+import net.jeffpoole.httpserver.parsing.Hpack;
+import net.jeffpoole.httpserver.parsing.HpackDecoder;
+import net.jeffpoole.httpserver.parsing.HpackEncoder;
+import net.jeffpoole.httpserver.parsing.HttpRequest;
+import net.jeffpoole.httpserver.parsing.HttpRequestParser;
+import net.jeffpoole.httpserver.parsing.HttpResponse;
+
+
+/**
+ * Handles a connection that has switched to HTTP/2 (RFC 7540) over cleartext, either by starting with
+ * the connection preface ("prior knowledge") or by upgrading from HTTP/1.1 with Upgrade: h2c, in which
+ * case the upgrade request is answered as stream 1.  NettyHttpServerInboundDecoder replaces the
+ * HTTP/1.x handlers with this when it sees either.
+ *
+ * Each stream's request becomes an HttpRequest (with version HTTP/2.0) for HttpServer.respond, run on
+ * an executor that doesn't serialize them, so a slow response doesn't hold up the others.  Responses
+ * are sent as they are ready: headers straight away, and bodies a DATA frame at a time, taking turns
+ * between streams, for as long as both flow control windows and the channel's write buffer allow.
+ *
+ * Only GET and HEAD are served, so request bodies are read and thrown away (and their flow control
+ * window given straight back).  There is no server push.  Everything here runs on the event loop.
+ */
+@Slf4j
+public class Http2ConnectionHandler extends ByteToMessageDecoder
+{
+  static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charsets.US_ASCII);
+  static final String HTTP_2 = "HTTP/2.0";
+
+  static final int FRAME_HEADER_LENGTH = 9;
+  static final int DEFAULT_WINDOW_SIZE = 65535;
+  static final int MAXIMUM_WINDOW_SIZE = Integer.MAX_VALUE;
+  // We never advertise a bigger SETTINGS_MAX_FRAME_SIZE than the default
+  static final int MAXIMUM_FRAME_SIZE = 16384;
+  // Same as the limit on an HTTP/1.x request head
+  static final int MAXIMUM_HEADER_LIST_SIZE = 64 * 1024;
+
+  // Frame types
+  static final int DATA = 0x0;
+  static final int HEADERS = 0x1;
+  static final int PRIORITY = 0x2;
+  static final int RST_STREAM = 0x3;
+  static final int SETTINGS = 0x4;
+  static final int PUSH_PROMISE = 0x5;
+  static final int PING = 0x6;
+  static final int GOAWAY = 0x7;
+  static final int WINDOW_UPDATE = 0x8;
+  static final int CONTINUATION = 0x9;
+
+  // Flags
+  static final int END_STREAM = 0x1;
+  static final int ACK = 0x1;
+  static final int END_HEADERS = 0x4;
+  static final int PADDED = 0x8;
+  static final int PRIORITY_FLAG = 0x20;
+
+  // Settings
+  static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+  static final int SETTINGS_ENABLE_PUSH = 0x2;
+  static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+  static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+  // Error codes
+  static final int NO_ERROR = 0x0;
+  static final int PROTOCOL_ERROR = 0x1;
+  static final int INTERNAL_ERROR = 0x2;
+  static final int FLOW_CONTROL_ERROR = 0x3;
+  static final int STREAM_CLOSED = 0x5;
+  static final int FRAME_SIZE_ERROR = 0x6;
+  static final int REFUSED_STREAM = 0x7;
+  static final int COMPRESSION_ERROR = 0x9;
+  static final int ENHANCE_YOUR_CALM = 0xb;
+
+  // Connection-specific headers, which HTTP/2 doesn't have (RFC 7540 § 8.1.2.2)
+  static final ImmutableSet<String> CONNECTION_HEADERS = ImmutableSet.of(
+      "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+  final HttpServer httpServer;
+  final ServerMetrics metrics;
+  // null if there is no metrics path
+  final MetricsEndpoint metricsEndpoint;
+  // null if there is no access log
+  final AccessLog accessLog;
+  // null if file contents aren't cached
+  final ContentCache contentCache;
+  // Runs requests; unlike an HTTP/1.x connection's queue, it needn't run them one at a time
+  final Executor executor;
+  final int maximumConcurrentStreams;
+  // Streams answered before the connection is closed (with a GOAWAY)
+  final int maximumRequests;
+  // The HTTP/1.1 request that asked to upgrade; null with prior knowledge
+  final HttpRequest upgradeRequest;
+
+  final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, MAXIMUM_HEADER_LIST_SIZE);
+  final HpackEncoder encoder = new HpackEncoder();
+  final Map<Integer, Http2Stream> streams = new HashMap<>();
+  // Streams with body left to send, which take turns sending a frame each
+  final ArrayDeque<Http2Stream> sending = new ArrayDeque<>();
+  ChannelHandlerContext ctx;
+  boolean prefaceReceived;
+  boolean settingsReceived;
+  int lastStreamId;
+  int requests;
+  long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+  long initialSendWindow = DEFAULT_WINDOW_SIZE;
+  int peerMaximumFrameSize = MAXIMUM_FRAME_SIZE;
+  // A header block waiting for CONTINUATION frames; null if there isn't one
+  ByteBuf headerBlock;
+  int headerStreamId;
+  boolean headerEndStream;
+  // No new streams are accepted once a GOAWAY has been sent or received
+  boolean goingAway;
+  // After a connection error, nothing more is read
+  boolean closing;
+  boolean unflushed;
+  // Finished streams whose last frame hasn't been sent yet; the connection isn't idle until then
+  int unsent;
+  // For the write timeout, which only closes the connection once its frames stop going out
+  final WriteProgress writeProgress = new WriteProgress();
+
+
+  // An error that resets a stream, or with a stream id of 0, closes the connection
+  static class Http2Exception extends IOException
+  {
+    final int streamId;
+    final int errorCode;
+
+    Http2Exception(int streamId, int errorCode, String message)
+    {
+      super(message);
+      this.streamId = streamId;
+      this.errorCode = errorCode;
+    }
+  }
+
+
+  public Http2ConnectionHandler(HttpServer httpServer, ServerMetrics metrics,
+      MetricsEndpoint metricsEndpoint, AccessLog accessLog, ContentCache contentCache,
+      Executor executor, int maximumConcurrentStreams, int maximumRequests,
+      HttpRequest upgradeRequest)
+  {
+    this.httpServer = httpServer;
+    this.metrics = metrics;
+    this.metricsEndpoint = metricsEndpoint;
+    this.accessLog = accessLog;
+    this.contentCache = contentCache;
+    this.executor = executor;
+    this.maximumConcurrentStreams = maximumConcurrentStreams;
+    this.maximumRequests = maximumRequests;
+    this.upgradeRequest = upgradeRequest;
+  }
+
+
+  /**
+   * Whether the buffer starts with the connection preface: 1 if it does, -1 if it doesn't, or 0 if
+   * what there is so far matches but isn't all of it.
+   */
+  static int matchPreface(ByteBuf in)
+  {
+    final int length = Math.min(in.readableBytes(), PREFACE.length);
+    for (int i = 0; i < length; i++)
+    {
+      if (in.getByte(in.readerIndex() + i) != PREFACE[i])
+        return -1;
+    }
+    return length == PREFACE.length ? 1 : 0;
+  }
+
+
+  // True for an HTTP/1.1 request asking to upgrade to h2c that we can take up (RFC 7540 § 3.2)
+  static boolean isUpgrade(HttpRequest request)
+  {
+    final Map<String, String> headers = request.getHeaders();
+    return "HTTP/1.1".equals(request.getHttpVersion())
+        && hasToken(headers.get("Upgrade"), "h2c")
+        && hasToken(headers.get("Connection"), "upgrade")
+        && hasToken(headers.get("Connection"), "http2-settings")
+        && headers.get("HTTP2-Settings") != null
+        && headers.get("Transfer-Encoding") == null
+        && "0".equals(headers.getOrDefault("Content-Length", "0"));
+  }
+
+
+  private static boolean hasToken(String list, String token)
+  {
+    if (list == null)
+      return false;
+    for (String element : list.split(","))
+    {
+      if (element.trim().equalsIgnoreCase(token))
+        return true;
+    }
+    return false;
+  }
+
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception
+  {
+    this.ctx = ctx;
+    // The server's preface is its SETTINGS
+    final ByteBuf settings = ctx.alloc().ioBuffer(FRAME_HEADER_LENGTH + 12);
+    writeFrameHeader(settings, 12, SETTINGS, 0, 0);
+    settings.writeShort(SETTINGS_MAX_CONCURRENT_STREAMS).writeInt(maximumConcurrentStreams);
+    settings.writeShort(SETTINGS_MAX_HEADER_LIST_SIZE).writeInt(MAXIMUM_HEADER_LIST_SIZE);
+    write(settings);
+
+    if (upgradeRequest != null)
+    {
+      try
+      {
+        // The client's settings come in HTTP2-Settings, acknowledged by the 101 itself
+        final String encoded = upgradeRequest.getHeaders().get("HTTP2-Settings").trim();
+        applySettings(Unpooled.wrappedBuffer(
+            BaseEncoding.base64Url().omitPadding().decode(encoded.replace("=", ""))));
+        final Map<String, String> headers = new HashMap<>(upgradeRequest.getHeaders());
+        headers.remove("Connection");
+        headers.remove("Upgrade");
+        headers.remove("HTTP2-Settings");
+        final Http2Stream stream = new Http2Stream(1, initialSendWindow);
+        stream.remoteClosed = true;
+        lastStreamId = 1;
+        streams.put(1, stream);
+        dispatch(stream, new HttpRequest(upgradeRequest.getMethod(), upgradeRequest.getTarget(),
+            HTTP_2, headers));
+      }
+      catch (IllegalArgumentException | Http2Exception e)
+      {
+        goAway(PROTOCOL_ERROR, "Invalid HTTP2-Settings");
+      }
+    }
+    flush();
+  }
+
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception
+  {
+    try
+    {
+      if (!prefaceReceived)
+      {
+        final int preface = matchPreface(in);
+        if (preface == 0)
+          return;
+        if (preface < 0)
+          throw connectionError(PROTOCOL_ERROR, "Invalid connection preface");
+        in.skipBytes(PREFACE.length);
+        prefaceReceived = true;
+      }
+
+      while (!closing && in.readableBytes() >= FRAME_HEADER_LENGTH)
+      {
+        final int start = in.readerIndex();
+        final int length = in.getUnsignedMedium(start);
+        if (length > MAXIMUM_FRAME_SIZE)
+          throw connectionError(FRAME_SIZE_ERROR, "Frame too big");
+        if (in.readableBytes() < FRAME_HEADER_LENGTH + length)
+          return;
+        final int type = in.getUnsignedByte(start + 3);
+        final int flags = in.getUnsignedByte(start + 4);
+        final int streamId = in.getInt(start + 5) & 0x7fffffff;
+        in.skipBytes(FRAME_HEADER_LENGTH);
+        final ByteBuf payload = in.readSlice(length);
+        try
+        {
+          onFrame(type, flags, streamId, payload);
+        }
+        catch (Http2Exception e)
+        {
+          if (e.streamId == 0)
+            throw e;
+          log.debug("Resetting stream [{}]: {}", e.streamId, e.getMessage());
+          resetStream(e.streamId, e.errorCode);
+        }
+      }
+    }
+    catch (Http2Exception e)
+    {
+      goAway(e.errorCode, e.getMessage());
+    }
+    if (closing)
+      in.skipBytes(in.readableBytes());
+  }
+
+
+  private void onFrame(int type, int flags, int streamId, ByteBuf payload) throws Http2Exception
+  {
+    if (!settingsReceived && type != SETTINGS)
+      throw connectionError(PROTOCOL_ERROR, "Expected SETTINGS first");
+    if (headerBlock != null && (type != CONTINUATION || streamId != headerStreamId))
+      throw connectionError(PROTOCOL_ERROR, "Expected CONTINUATION");
+
+    switch (type)
+    {
+      case DATA:
+        onData(flags, streamId, payload);
+        break;
+      case HEADERS:
+        onHeaders(flags, streamId, payload);
+        break;
+      case PRIORITY:
+        if (streamId == 0)
+          throw connectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+        if (payload.readableBytes() != 5)
+          throw new Http2Exception(streamId, FRAME_SIZE_ERROR, "Bad PRIORITY");
+        // there's nothing to prioritize between but which stream sends next
+        break;
+      case RST_STREAM:
+        onRstStream(streamId, payload);
+        break;
+      case SETTINGS:
+        onSettings(flags, streamId, payload);
+        break;
+      case PUSH_PROMISE:
+        throw connectionError(PROTOCOL_ERROR, "Clients can't push");
+      case PING:
+        onPing(flags, streamId, payload);
+        break;
+      case GOAWAY:
+        if (streamId != 0)
+          throw connectionError(PROTOCOL_ERROR, "GOAWAY on a stream");
+        if (payload.readableBytes() < 8)
+          throw connectionError(FRAME_SIZE_ERROR, "Bad GOAWAY");
+        log.debug("GOAWAY from [{}] with error {}", ctx.channel().remoteAddress(),
+            payload.getInt(payload.readerIndex() + 4));
+        goingAway = true;
+        closeIfDone();
+        break;
+      case WINDOW_UPDATE:
+        onWindowUpdate(streamId, payload);
+        break;
+      case CONTINUATION:
+        if (headerBlock == null)
+          throw connectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        addToHeaderBlock(payload);
+        if ((flags & END_HEADERS) != 0)
+        {
+          final ByteBuf block = headerBlock;
+          headerBlock = null;
+          try
+          {
+            onHeaderBlock(headerStreamId, headerEndStream, block);
+          }
+          finally
+          {
+            block.release();
+          }
+        }
+        break;
+      default:
+        // unknown frame types are ignored, per § 4.1
+        break;
+    }
+  }
+
+
+  private void onData(int flags, int streamId, ByteBuf payload) throws Http2Exception
+  {
+    if (streamId == 0 || streamId > lastStreamId)
+      throw connectionError(PROTOCOL_ERROR, "DATA on an idle stream");
+    final int length = payload.readableBytes();
+    if ((flags & PADDED) != 0)
+      skipPadding(payload);
+    // Bodies aren't used, so the whole frame's worth of window can be given straight back
+    if (length > 0)
+      writeWindowUpdate(0, length);
+
+    final Http2Stream stream = streams.get(streamId);
+    if (stream == null)
+      return;
+    if (stream.remoteClosed)
+      throw new Http2Exception(streamId, STREAM_CLOSED, "DATA after END_STREAM");
+    if ((flags & END_STREAM) != 0)
+      stream.remoteClosed = true;
+    else if (length > 0)
+      writeWindowUpdate(streamId, length);
+  }
+
+
+  private void onHeaders(int flags, int streamId, ByteBuf payload) throws Http2Exception
+  {
+    if (streamId == 0 || (streamId & 1) == 0)
+      throw connectionError(PROTOCOL_ERROR, "HEADERS on an invalid stream");
+    int padding = 0;
+    if ((flags & PADDED) != 0)
+    {
+      if (!payload.isReadable())
+        throw connectionError(FRAME_SIZE_ERROR, "Missing pad length");
+      padding = payload.readUnsignedByte();
+    }
+    if ((flags & PRIORITY_FLAG) != 0)
+    {
+      if (payload.readableBytes() < 5)
+        throw connectionError(FRAME_SIZE_ERROR, "Missing priority");
+      payload.skipBytes(5);
+    }
+    if (padding > payload.readableBytes())
+      throw connectionError(PROTOCOL_ERROR, "Too much padding");
+    final ByteBuf fragment = payload.readSlice(payload.readableBytes() - padding);
+
+    final boolean endStream = (flags & END_STREAM) != 0;
+    if ((flags & END_HEADERS) != 0)
+    {
+      onHeaderBlock(streamId, endStream, fragment);
+    }
+    else
+    {
+      headerBlock = ctx.alloc().buffer(fragment.readableBytes() * 2);
+      headerStreamId = streamId;
+      headerEndStream = endStream;
+      addToHeaderBlock(fragment);
+    }
+  }
+
+
+  private void addToHeaderBlock(ByteBuf fragment) throws Http2Exception
+  {
+    if (headerBlock.readableBytes() + fragment.readableBytes() > MAXIMUM_HEADER_LIST_SIZE)
+      throw connectionError(ENHANCE_YOUR_CALM, "Header block too big");
+    headerBlock.writeBytes(fragment);
+  }
+
+
+  private void onHeaderBlock(int streamId, boolean endStream, ByteBuf block) throws Http2Exception
+  {
+    // Every block has to be decoded, even for streams that are refused, to keep the tables in step
+    final List<String[]> fields;
+    try
+    {
+      fields = decoder.decode(block);
+    }
+    catch (IOException e)
+    {
+      throw connectionError(COMPRESSION_ERROR, e.getMessage());
+    }
+
+    if (streamId <= lastStreamId)
+    {
+      // Trailers, which we have no use for, or a stream that has already gone
+      final Http2Stream stream = streams.get(streamId);
+      if (stream != null)
+      {
+        if (stream.remoteClosed || !endStream)
+          throw new Http2Exception(streamId, PROTOCOL_ERROR, "Unexpected HEADERS");
+        stream.remoteClosed = true;
+      }
+      return;
+    }
+    lastStreamId = streamId;
+    if (goingAway)
+      return;
+    if (streams.size() >= maximumConcurrentStreams)
+      throw new Http2Exception(streamId, REFUSED_STREAM, "Too many streams");
+    final HttpRequest request = toRequest(fields);
+    if (request == null)
+      throw new Http2Exception(streamId, PROTOCOL_ERROR, "Malformed request");
+
+    final Http2Stream stream = new Http2Stream(streamId, initialSendWindow);
+    stream.remoteClosed = endStream;
+    streams.put(streamId, stream);
+    dispatch(stream, request);
+  }
+
+
+  /**
+   * Turns a request's header fields into an HttpRequest, with the header names as HTTP/1.x would
+   * have them (so HttpServer can look them up as usual) and :authority as Host.  Returns null if the
+   * request is malformed (§ 8.1.2).
+   */
+  static HttpRequest toRequest(List<String[]> fields)
+  {
+    String method = null;
+    String path = null;
+    String scheme = null;
+    String authority = null;
+    final Map<String, String> headers = new HashMap<>();
+    for (String[] field : fields)
+    {
+      final String name = field[0];
+      final String value = field[1];
+      if (name.startsWith(":"))
+      {
+        // pseudo-headers come first, once each
+        if (!headers.isEmpty())
+          return null;
+        if (":method".equals(name) && method == null)
+          method = value;
+        else if (":path".equals(name) && path == null)
+          path = value;
+        else if (":scheme".equals(name) && scheme == null)
+          scheme = value;
+        else if (":authority".equals(name) && authority == null)
+          authority = value;
+        else
+          return null;
+        continue;
+      }
+      if (!name.equals(name.toLowerCase(Locale.ROOT)) || CONNECTION_HEADERS.contains(name)
+          || ("te".equals(name) && !"trailers".equals(value)))
+        return null;
+      final String known = HttpRequestParser.knownHeaderName(name);
+      final String key = known != null ? known : name;
+      final String previous = headers.get(key);
+      headers.put(key, previous == null ? value
+          : previous + ("cookie".equals(name) ? "; " : ",") + value);
+    }
+    if (method == null || scheme == null || path == null || path.isEmpty())
+      return null;
+    if (authority != null && !headers.containsKey("Host"))
+      headers.put("Host", authority);
+    return new HttpRequest(method, utf8(path), HTTP_2, headers);
+  }
+
+
+  // Like HttpRequestParser, a path with raw UTF-8 in it (rather than percent-encoding) is decoded
+  private static String utf8(String path)
+  {
+    for (int i = 0; i < path.length(); i++)
+    {
+      if (path.charAt(i) > 0x7f)
+        return new String(path.getBytes(Charsets.ISO_8859_1), Charsets.UTF_8);
+    }
+    return path;
+  }
+
+
+  private void dispatch(Http2Stream stream, HttpRequest request)
+  {
+    if (++requests == maximumRequests)
+    {
+      // Answer this one, but no more
+      metrics.closed(ServerMetrics.CloseReason.REQUEST_LIMIT);
+      writeGoAway(NO_ERROR);
+      goingAway = true;
+    }
+    final boolean metricsRequest = metricsEndpoint != null && metricsEndpoint.matches(request);
+    final long queued = System.nanoTime();
+    executor.execute(() -> {
+      final long started = System.nanoTime();
+      metrics.record(ServerMetrics.Stage.QUEUE, started - queued);
+      final HttpResponse response = metricsRequest ? metricsEndpoint.respond(request)
+          : httpServer.respond(request);
+      metrics.record(ServerMetrics.Stage.RESPOND, System.nanoTime() - started);
+      ctx.channel().eventLoop().execute(() -> {
+        stream.request = request;
+        stream.response = response;
+        respond(stream, response, "HEAD".equals(request.getMethod()));
+        flush();
+      });
+    });
+  }
+
+
+  // Writes the response's HEADERS, and starts on its body
+  void respond(Http2Stream stream, HttpResponse response, boolean head)
+  {
+    if (closing || stream.closed)
+      return;
+    final ByteBuf block = ctx.alloc().buffer();
+    encoder.encode(block, ":status", String.valueOf(response.getStatusCode()));
+    for (Map.Entry<String, String> header : response.getHeaders().entrySet())
+    {
+      final String name = header.getKey().toLowerCase(Locale.ROOT);
+      if (!CONNECTION_HEADERS.contains(name))
+        encoder.encode(block, name, header.getValue());
+    }
+    metrics.response(response.getStatusCode());
+
+    final Blob blob = head || response.getResource() == null ? null
+        : response.getResource().getData();
+    if (blob != null)
+    {
+      try
+      {
+        final long modified = response.getResource().getModifiedTimestamp() != null
+            ? response.getResource().getModifiedTimestamp().toEpochMilli() : -1;
+        stream.setBody(blob, modified, contentCache, metrics);
+      }
+      catch (IOException e)
+      {
+        log.error("Error opening the body of stream [{}]", stream.id, e);
+        block.release();
+        stream.close();
+        resetStream(stream.id, INTERNAL_ERROR);
+        return;
+      }
+    }
+    final boolean hasBody = !stream.body.isEmpty();
+    writeHeaders(stream, block, !hasBody);
+    if (hasBody)
+    {
+      sending.add(stream);
+      sendData();
+    }
+    else
+    {
+      stream.finished = true;
+      finish(stream);
+    }
+  }
+
+
+  private void writeHeaders(Http2Stream stream, ByteBuf block, boolean endStream)
+  {
+    int type = HEADERS;
+    int flags = endStream ? END_STREAM : 0;
+    do
+    {
+      final int length = Math.min(block.readableBytes(), peerMaximumFrameSize);
+      final boolean end = length == block.readableBytes();
+      final ByteBuf frame = ctx.alloc().ioBuffer(FRAME_HEADER_LENGTH + length);
+      writeFrameHeader(frame, length, type, flags | (end ? END_HEADERS : 0), stream.id);
+      frame.writeBytes(block, length);
+      stream.lastWrite = write(frame);
+      stream.bytesSent += FRAME_HEADER_LENGTH + length;
+      type = CONTINUATION;
+      flags = 0;
+    }
+    while (block.isReadable());
+    block.release();
+  }
+
+
+  /**
+   * Sends DATA frames, a frame per stream in turn, while the windows and the channel's write buffer
+   * have room.  Streams out of window wait for a WINDOW_UPDATE (or SETTINGS) to send more.
+   */
+  void sendData()
+  {
+    while (!closing && !sending.isEmpty() && ctx.channel().isWritable())
+    {
+      final Http2Stream stream = sending.poll();
+      if (stream.closed)
+        continue;
+      if (stream.sendWindow <= 0)
+      {
+        stream.blocked = true;
+        continue;
+      }
+      if (connectionSendWindow <= 0)
+      {
+        sending.addFirst(stream);
+        break;
+      }
+      try
+      {
+        final int max = (int) Math.min(peerMaximumFrameSize,
+            Math.min(connectionSendWindow, stream.sendWindow));
+        connectionSendWindow -= stream.writeData(ctx, max);
+        unflushed = true;
+      }
+      catch (IOException e)
+      {
+        log.error("Error sending the body of stream [{}]", stream.id, e);
+        stream.close();
+        resetStream(stream.id, INTERNAL_ERROR);
+        continue;
+      }
+      if (stream.finished)
+        finish(stream);
+      else
+        sending.add(stream);
+    }
+  }
+
+
+  // The response has all been written
+  private void finish(Http2Stream stream)
+  {
+    stream.close();
+    streams.remove(stream.id);
+    final long bytes = stream.bytesSent;
+    unsent++;
+    stream.lastWrite.addListener(future -> {
+      unsent--;
+      final long elapsed = System.nanoTime() - stream.started;
+      metrics.record(ServerMetrics.Stage.TOTAL, elapsed);
+      if (future.isSuccess())
+        metrics.bytesSent(bytes);
+      if (accessLog != null)
+      {
+        accessLog.log(ctx.channel().remoteAddress(), stream.request,
+            stream.response.getStatusCode(), AccessLog.bodyBytes(stream.response), elapsed);
+      }
+    });
+    if (!stream.remoteClosed)
+    {
+      // The client is still sending a request body we don't need (§ 8.1)
+      writeRstStream(stream.id, NO_ERROR);
+    }
+    closeIfDone();
+  }
+
+
+  private void resetStream(int streamId, int errorCode)
+  {
+    writeRstStream(streamId, errorCode);
+    final Http2Stream stream = streams.remove(streamId);
+    if (stream != null)
+    {
+      stream.close();
+      sending.remove(stream);
+    }
+    closeIfDone();
+  }
+
+
+  private void onRstStream(int streamId, ByteBuf payload) throws Http2Exception
+  {
+    if (streamId == 0 || streamId > lastStreamId)
+      throw connectionError(PROTOCOL_ERROR, "RST_STREAM on an idle stream");
+    if (payload.readableBytes() != 4)
+      throw connectionError(FRAME_SIZE_ERROR, "Bad RST_STREAM");
+    final Http2Stream stream = streams.remove(streamId);
+    if (stream != null)
+    {
+      stream.close();
+      sending.remove(stream);
+      closeIfDone();
+    }
+  }
+
+
+  private void onSettings(int flags, int streamId, ByteBuf payload) throws Http2Exception
+  {
+    if (streamId != 0)
+      throw connectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+    if ((flags & ACK) != 0)
+    {
+      if (payload.isReadable())
+        throw connectionError(FRAME_SIZE_ERROR, "SETTINGS ACK with a payload");
+      return;
+    }
+    if (payload.readableBytes() % 6 != 0)
+      throw connectionError(FRAME_SIZE_ERROR, "Bad SETTINGS");
+    applySettings(payload);
+    settingsReceived = true;
+    final ByteBuf ack = ctx.alloc().ioBuffer(FRAME_HEADER_LENGTH);
+    writeFrameHeader(ack, 0, SETTINGS, ACK, 0);
+    write(ack);
+    sendData();
+  }
+
+
+  private void applySettings(ByteBuf payload) throws Http2Exception
+  {
+    while (payload.readableBytes() >= 6)
+    {
+      final int id = payload.readUnsignedShort();
+      final long value = payload.readUnsignedInt();
+      switch (id)
+      {
+        case SETTINGS_HEADER_TABLE_SIZE:
+          encoder.setMaximumTableSize((int) Math.min(value, Integer.MAX_VALUE));
+          break;
+        case SETTINGS_ENABLE_PUSH:
+          if (value > 1)
+            throw connectionError(PROTOCOL_ERROR, "Bad SETTINGS_ENABLE_PUSH");
+          break;
+        case SETTINGS_INITIAL_WINDOW_SIZE:
+          if (value > MAXIMUM_WINDOW_SIZE)
+            throw connectionError(FLOW_CONTROL_ERROR, "Bad SETTINGS_INITIAL_WINDOW_SIZE");
+          // applies to the streams already open too (§ 6.9.2)
+          final long delta = value - initialSendWindow;
+          initialSendWindow = value;
+          for (Http2Stream stream : streams.values())
+          {
+            stream.sendWindow += delta;
+            if (stream.sendWindow > MAXIMUM_WINDOW_SIZE)
+              throw connectionError(FLOW_CONTROL_ERROR, "Window too big");
+            unblock(stream);
+          }
+          break;
+        case SETTINGS_MAX_FRAME_SIZE:
+          if (value < MAXIMUM_FRAME_SIZE || value > 0xffffff)
+            throw connectionError(PROTOCOL_ERROR, "Bad SETTINGS_MAX_FRAME_SIZE");
+          peerMaximumFrameSize = (int) value;
+          break;
+        default:
+          // the rest only constrain what we'd do anyway, and unknown settings are ignored
+          break;
+      }
+    }
+  }
+
+
+  private void onPing(int flags, int streamId, ByteBuf payload) throws Http2Exception
+  {
+    if (streamId != 0)
+      throw connectionError(PROTOCOL_ERROR, "PING on a stream");
+    if (payload.readableBytes() != 8)
+      throw connectionError(FRAME_SIZE_ERROR, "Bad PING");
+    if ((flags & ACK) == 0)
+    {
+      final ByteBuf pong = ctx.alloc().ioBuffer(FRAME_HEADER_LENGTH + 8);
+      writeFrameHeader(pong, 8, PING, ACK, 0);
+      pong.writeBytes(payload);
+      write(pong);
+    }
+  }
+
+
+  private void onWindowUpdate(int streamId, ByteBuf payload) throws Http2Exception
+  {
+    if (payload.readableBytes() != 4)
+      throw connectionError(FRAME_SIZE_ERROR, "Bad WINDOW_UPDATE");
+    final int increment = payload.readInt() & 0x7fffffff;
+    if (streamId == 0)
+    {
+      if (increment == 0)
+        throw connectionError(PROTOCOL_ERROR, "Zero WINDOW_UPDATE");
+      connectionSendWindow += increment;
+      if (connectionSendWindow > MAXIMUM_WINDOW_SIZE)
+        throw connectionError(FLOW_CONTROL_ERROR, "Window too big");
+    }
+    else
+    {
+      if (streamId > lastStreamId)
+        throw connectionError(PROTOCOL_ERROR, "WINDOW_UPDATE on an idle stream");
+      final Http2Stream stream = streams.get(streamId);
+      if (stream == null)
+        return;
+      if (increment == 0)
+        throw new Http2Exception(streamId, PROTOCOL_ERROR, "Zero WINDOW_UPDATE");
+      stream.sendWindow += increment;
+      if (stream.sendWindow > MAXIMUM_WINDOW_SIZE)
+        throw new Http2Exception(streamId, FLOW_CONTROL_ERROR, "Window too big");
+      unblock(stream);
+    }
+    sendData();
+  }
+
+
+  private void unblock(Http2Stream stream)
+  {
+    if (stream.blocked && stream.sendWindow > 0)
+    {
+      stream.blocked = false;
+      sending.add(stream);
+    }
+  }
+
+
+  private static void skipPadding(ByteBuf payload) throws Http2Exception
+  {
+    if (!payload.isReadable())
+      throw connectionError(FRAME_SIZE_ERROR, "Missing pad length");
+    final int padding = payload.readUnsignedByte();
+    if (padding > payload.readableBytes())
+      throw connectionError(PROTOCOL_ERROR, "Too much padding");
+  }
+
+
+  static Http2Exception connectionError(int errorCode, String message)
+  {
+    return new Http2Exception(0, errorCode, message);
+  }
+
+
+  // Sends a GOAWAY for a connection error, and closes the connection once it's written
+  private void goAway(int errorCode, String message)
+  {
+    if (closing)
+      return;
+    log.debug("Closing HTTP/2 connection [{}]: {}", ctx.channel().remoteAddress(), message);
+    closing = true;
+    goingAway = true;
+    writeGoAway(errorCode);
+    closeStreams();
+    unflushed = false;
+    ctx.flush();
+    ctx.channel().close();
+  }
+
+
+  private void writeGoAway(int errorCode)
+  {
+    final ByteBuf frame = ctx.alloc().ioBuffer(FRAME_HEADER_LENGTH + 8);
+    writeFrameHeader(frame, 8, GOAWAY, 0, 0);
+    frame.writeInt(lastStreamId).writeInt(errorCode);
+    write(frame);
+  }
+
+
+  private void writeRstStream(int streamId, int errorCode)
+  {
+    final ByteBuf frame = ctx.alloc().ioBuffer(FRAME_HEADER_LENGTH + 4);
+    writeFrameHeader(frame, 4, RST_STREAM, 0, streamId);
+    frame.writeInt(errorCode);
+    write(frame);
+  }
+
+
+  private void writeWindowUpdate(int streamId, int increment)
+  {
+    final ByteBuf frame = ctx.alloc().ioBuffer(FRAME_HEADER_LENGTH + 4);
+    writeFrameHeader(frame, 4, WINDOW_UPDATE, 0, streamId);
+    frame.writeInt(increment);
+    write(frame);
+  }
+
+
+  static void writeFrameHeader(ByteBuf out, int length, int type, int flags, int streamId)
+  {
+    out.writeMedium(length);
+    out.writeByte(type);
+    out.writeByte(flags);
+    out.writeInt(streamId);
+  }
+
+
+  private ChannelFuture write(ByteBuf frame)
+  {
+    unflushed = true;
+    return ctx.write(frame);
+  }
+
+
+  private void flush()
+  {
+    if (unflushed)
+    {
+      unflushed = false;
+      ctx.flush();
+    }
+  }
+
+
+  // After a GOAWAY, the connection is closed once the last stream is done
+  private void closeIfDone()
+  {
+    if (goingAway && !closing && streams.isEmpty())
+    {
+      closing = true;
+      unflushed = false;
+      ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+    }
+  }
+
+
+  private void closeStreams()
+  {
+    for (Http2Stream stream : new ArrayList<>(streams.values()))
+      stream.close();
+    streams.clear();
+    sending.clear();
+    if (headerBlock != null)
+    {
+      headerBlock.release();
+      headerBlock = null;
+    }
+  }
+
+
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) throws Exception
+  {
+    super.channelReadComplete(ctx);
+    flush();
+  }
+
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception
+  {
+    sendData();
+    flush();
+    // A client that isn't reading what we send doesn't get to make us send more
+    final ChannelConfig config = ctx.channel().config();
+    if (config.isAutoRead() != ctx.channel().isWritable())
+    {
+      if (!ctx.channel().isWritable())
+        metrics.readPaused();
+      config.setAutoRead(ctx.channel().isWritable());
+    }
+    super.channelWritabilityChanged(ctx);
+  }
+
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception
+  {
+    // This took over from NettyHttpServerInboundHandler, which counted the connection as opened
+    metrics.connectionClosed();
+    closing = true;
+    closeStreams();
+    super.channelInactive(ctx);
+  }
+
+
+  @Override
+  public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception
+  {
+    if (evt instanceof IdleStateEvent)
+    {
+      final IdleState state = ((IdleStateEvent) evt).state();
+      if (state == IdleState.READER_IDLE && streams.isEmpty() && unsent == 0)
+      {
+        metrics.closed(ServerMetrics.CloseReason.READ_IDLE);
+        goAway(NO_ERROR, "Idle");
+      }
+      else if (state == IdleState.WRITER_IDLE && !ctx.channel().isWritable()
+          && writeProgress.stalled(ctx.channel()))
+      {
+        metrics.closed(ServerMetrics.CloseReason.WRITE_IDLE);
+        closing = true;
+        ctx.channel().close();
+      }
+      return;
+    }
+    super.userEventTriggered(ctx, evt);
+  }
+
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception
+  {
+    log.error("HTTP/2 exception caught, closing channel", cause);
+    ctx.close();
+  }
+}
@@ -0,0 +1,334 @@
+package net.jeffpoole.httpserver.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import net.jeffpoole.httpserver.data.Blob;
+import net.jeffpoole.httpserver.metrics.ServerMetrics;
+import net.jeffpoole.httpserver.parsing.HttpRequest;
+import net.jeffpoole.httpserver.parsing.HttpResponse;
+
+
+/**
+ * One HTTP/2 stream (a request and its response) on an Http2ConnectionHandler's connection.  The
+ * response body is held as a queue of segments, which are sent a DATA frame at a time as flow
+ * control allows: buffers (including ContentCache entries) are sliced, files go out as zero-copy
+ * regions, and anything else is read a frame's worth at a time.  Only used on the event loop.
+ */
+@Slf4j
+class Http2Stream
+{
+  final int id;
+  // When the request was read, for the TOTAL stage
+  final long started;
+  // Set once the response is ready
+  HttpRequest request;
+  HttpResponse response;
+  long sendWindow;
+  // END_STREAM has been received, so the client is done sending
+  boolean remoteClosed;
+  // Waiting for a WINDOW_UPDATE on this stream before it can send more
+  boolean blocked;
+  // The response has been completely sent, or the stream was reset
+  boolean closed;
+  // END_STREAM has been written
+  boolean finished;
+  long bytesSent;
+  final ArrayDeque<Segment> body = new ArrayDeque<>();
+  // The last frame written for this stream, after which its files can be closed
+  ChannelFuture lastWrite;
+
+
+  Http2Stream(int id, long sendWindow)
+  {
+    this.id = id;
+    this.sendWindow = sendWindow;
+    this.started = System.nanoTime();
+  }
+
+
+  /**
+   * Queues up the blob as the response body.  The modification time is used to check any cached file
+   * contents (negative if unknown).
+   */
+  void setBody(Blob blob, long modifiedMillis, ContentCache contentCache, ServerMetrics metrics)
+      throws IOException
+  {
+    blob.accept(new Blob.Visitor<Void>()
+    {
+      @Override
+      public Void bytes(byte[] bytes)
+      {
+        add(new BufferSegment(Unpooled.wrappedBuffer(bytes)));
+        metrics.transfer(ServerMetrics.TransferMode.HEAP, bytes.length);
+        return null;
+      }
+
+      @Override
+      public Void file(File file, long position, long length) throws IOException
+      {
+        final long fileLength = file.length();
+        if (length < 0)
+          length = fileLength - position;
+        if (contentCache != null && modifiedMillis >= 0)
+        {
+          ByteBuf content = contentCache.get(file, modifiedMillis);
+          if (content == null)
+            content = contentCache.load(file, modifiedMillis, fileLength);
+          if (content != null && position + length <= content.readableBytes())
+          {
+            add(new BufferSegment(content.slice((int) position, (int) length)));
+            metrics.transfer(ServerMetrics.TransferMode.CACHE, length);
+            return null;
+          }
+          if (content != null)
+            content.release();
+        }
+        add(new FileSegment(FileChannel.open(file.toPath()), position, length));
+        metrics.transfer(ServerMetrics.TransferMode.FILE_REGION, length);
+        return null;
+      }
+
+      @Override
+      public Void composite(List<Blob> parts) throws IOException
+      {
+        for (Blob part : parts)
+          part.accept(this);
+        return null;
+      }
+
+      @Override
+      public Void stream(Blob blob) throws IOException
+      {
+        add(new ChannelSegment(blob.open()));
+        metrics.transfer(ServerMetrics.TransferMode.CHUNKED, 0);
+        return null;
+      }
+    });
+  }
+
+
+  private void add(Segment segment)
+  {
+    if (segment.remaining() == 0)
+      segment.close(null);
+    else
+      body.add(segment);
+  }
+
+
+  /**
+   * Writes the next DATA frame, with at most max (which is positive) bytes of data, and returns how
+   * many it had.  The frame ending the body has END_STREAM set, and then finished is true.
+   */
+  int writeData(ChannelHandlerContext ctx, int max) throws IOException
+  {
+    while (!body.isEmpty())
+    {
+      final Segment segment = body.peek();
+      final Object data = segment.take(ctx, max);
+      if (segment.remaining() == 0)
+        body.poll();
+      if (data == null)
+      {
+        segment.close(lastWrite);
+        continue;
+      }
+      final int length = data instanceof ByteBuf ? ((ByteBuf) data).readableBytes()
+          : (int) ((FileRegion) data).count();
+      final boolean last = body.isEmpty();
+      writeFrame(ctx, length, last, data);
+      if (segment.remaining() == 0)
+        segment.close(lastWrite);
+      sendWindow -= length;
+      return length;
+    }
+    // the body ran out without knowing it would, so an empty frame ends the stream
+    writeFrame(ctx, 0, true, null);
+    return 0;
+  }
+
+
+  private void writeFrame(ChannelHandlerContext ctx, int length, boolean last, Object data)
+  {
+    final ByteBuf header = ctx.alloc().ioBuffer(Http2ConnectionHandler.FRAME_HEADER_LENGTH);
+    Http2ConnectionHandler.writeFrameHeader(header, length, Http2ConnectionHandler.DATA,
+        last ? Http2ConnectionHandler.END_STREAM : 0, id);
+    lastWrite = ctx.write(header);
+    if (data != null)
+      lastWrite = ctx.write(data);
+    bytesSent += Http2ConnectionHandler.FRAME_HEADER_LENGTH + length;
+    finished = last;
+  }
+
+
+  // Releases whatever of the body hasn't been sent
+  void close()
+  {
+    closed = true;
+    while (!body.isEmpty())
+      body.poll().close(lastWrite);
+  }
+
+
+  interface Segment
+  {
+    // Up to max bytes as a ByteBuf or FileRegion, or null if there turned out to be none left
+    Object take(ChannelHandlerContext ctx, int max) throws IOException;
+
+    // Bytes left, or -1 if that isn't known
+    long remaining();
+
+    // Called once the segment won't be used again; lastWrite (if not null) is still being sent
+    void close(ChannelFuture lastWrite);
+  }
+
+
+  @RequiredArgsConstructor
+  static class BufferSegment implements Segment
+  {
+    final ByteBuf buf;
+
+    @Override
+    public Object take(ChannelHandlerContext ctx, int max)
+    {
+      return buf.readSlice(Math.min(max, buf.readableBytes())).retain();
+    }
+
+    @Override
+    public long remaining()
+    {
+      return buf.readableBytes();
+    }
+
+    @Override
+    public void close(ChannelFuture lastWrite)
+    {
+      buf.release();
+    }
+  }
+
+
+  /**
+   * Part of a file, sent as one region per frame.  The regions share the file's channel, and are
+   * retained once more than Netty expects, since releasing a DefaultFileRegion closes its channel;
+   * the channel is closed once the last of them has been written instead.  (The epoll transport
+   * only sends DefaultFileRegions.)
+   */
+  static class FileSegment implements Segment
+  {
+    final FileChannel channel;
+    long position;
+    long remaining;
+
+    FileSegment(FileChannel channel, long position, long remaining)
+    {
+      this.channel = channel;
+      this.position = position;
+      this.remaining = remaining;
+    }
+
+    @Override
+    public Object take(ChannelHandlerContext ctx, int max)
+    {
+      final int length = (int) Math.min(max, remaining);
+      final FileRegion region = new DefaultFileRegion(channel, position, length);
+      region.retain();
+      position += length;
+      remaining -= length;
+      return region;
+    }
+
+    @Override
+    public long remaining()
+    {
+      return remaining;
+    }
+
+    @Override
+    public void close(ChannelFuture lastWrite)
+    {
+      if (lastWrite == null)
+        closeQuietly(channel);
+      else
+        lastWrite.addListener(future -> closeQuietly(channel));
+    }
+  }
+
+
+  // A stream of unknown length, read a frame at a time
+  @RequiredArgsConstructor
+  static class ChannelSegment implements Segment
+  {
+    final ReadableByteChannel channel;
+    boolean ended;
+
+    @Override
+    public Object take(ChannelHandlerContext ctx, int max) throws IOException
+    {
+      final ByteBuf buf = ctx.alloc().ioBuffer(max);
+      try
+      {
+        while (buf.readableBytes() < max)
+        {
+          if (ChunkedBlob.read(channel, buf, max - buf.readableBytes()) < 0)
+          {
+            ended = true;
+            break;
+          }
+        }
+      }
+      catch (IOException e)
+      {
+        buf.release();
+        throw e;
+      }
+      if (!buf.isReadable())
+      {
+        buf.release();
+        return null;
+      }
+      return buf;
+    }
+
+    @Override
+    public long remaining()
+    {
+      return ended ? 0 : -1;
+    }
+
+    @Override
+    public void close(ChannelFuture lastWrite)
+    {
+      closeQuietly(channel);
+    }
+  }
+
+
+  static void closeQuietly(Closeable closeable)
+  {
+    try
+    {
+      closeable.close();
+    }
+    catch (IOException e)
+    {
+      log.debug("Error closing [{}]", closeable, e);
+    }
+  }
+}
@@ -1,61 +1,159 @@
 package net.jeffpoole.httpserver.netty;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.ByteToMessageDecoder;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
 
 import lombok.extern.slf4j.Slf4j;
 
-import org.fusesource.hawtdispatch.Dispatch;
-import org.fusesource.hawtdispatch.DispatchQueue;
-
 import com.google.common.base.Charsets;
 
+import net.jeffpoole.httpserver.metrics.ServerMetrics;
 import net.jeffpoole.httpserver.parsing.HttpRequest;
+import net.jeffpoole.httpserver.parsing.HttpRequestParser;
 
 
 /**
  * This class is used to decode raw data coming in from the network into HttpRequest objects to be
  * handled by the next pipeline stage (NettyHttpServerInboundHandler).  Since we currently only
  * support GET and HEAD, no attempts are made to read a body.
+ *
+ * Requests are passed on one at a time as they are parsed, and parsing stops while autoRead is off,
+ * so when the handler stops reading (see NettyHttpServerInboundHandler) the rest of a read full of
+ * pipelined requests waits here, still in bytes.  The handler fires DECODE_BUFFERED when it starts
+ * reading again, since those requests may be all the client sends until it has its responses.
+ *
+ * With HTTP/2 enabled, a connection that starts with the HTTP/2 connection preface, or whose first
+ * request asks to upgrade to h2c, is handed over to an Http2ConnectionHandler, which replaces the
+ * HTTP/1.x handlers (this one included) in the pipeline.
  */
 @Slf4j
 public class NettyHttpServerInboundDecoder extends ByteToMessageDecoder
 {
 
+  // Keeps the parse position across partial reads, so each byte is only looked at once
+  final HttpRequestParser parser = new HttpRequestParser();
+  final ServerMetrics metrics;
+  // Creates the handler for a connection switching to HTTP/2, given the upgrade request (or null
+  // with prior knowledge); null if HTTP/2 is off
+  final Function<HttpRequest, Http2ConnectionHandler> http2;
+  // Until the first bytes have been seen, the connection could still start with the preface
+  boolean checkPreface = true;
+  // Until the first request has been read, it could still ask to upgrade
+  boolean first = true;
+
+  // User event that decodes whatever was left buffered when reading stopped
+  static final Object DECODE_BUFFERED = new Object();
+
+
+  public NettyHttpServerInboundDecoder()
+  {
+    this(new ServerMetrics());
+  }
+
+
+  public NettyHttpServerInboundDecoder(ServerMetrics metrics)
+  {
+    this(metrics, null);
+  }
+
+
+  public NettyHttpServerInboundDecoder(ServerMetrics metrics,
+      Function<HttpRequest, Http2ConnectionHandler> http2)
+  {
+    this.metrics = metrics;
+    this.http2 = http2;
+  }
+
+
   @Override
   protected void decode(final ChannelHandlerContext channelHandlerContext, final ByteBuf byteBuf,
       final List<Object> list) throws Exception
   {
-    int startIndex = byteBuf.readerIndex();
-    while (startIndex < byteBuf.writerIndex())
+    if (checkPreface && http2 != null)
+    {
+      final int preface = Http2ConnectionHandler.matchPreface(byteBuf);
+      if (preface == 0)
+        return;
+      checkPreface = false;
+      if (preface > 0)
+      {
+        switchToHttp2(channelHandlerContext, http2.apply(null));
+        return;
+      }
+    }
+
+    long started = System.nanoTime();
+    HttpRequest request;
+    while (channelHandlerContext.channel().config().isAutoRead()
+        && (request = parser.parse(byteBuf)) != null)
     {
-      int ind = byteBuf.indexOf(startIndex, byteBuf.writerIndex() - 3, (byte) '\r');
-      if ((byteBuf.writerIndex() - ind) >= 4) // if there are at least 4 bytes to read...
+      final long now = System.nanoTime();
+      metrics.record(ServerMetrics.Stage.DECODE, now - started);
+      started = now;
+      if (first && http2 != null && Http2ConnectionHandler.isUpgrade(request))
       {
-        String possibleEndOfHeaders = byteBuf.toString(ind, 4, Charsets.UTF_8);
-        if (possibleEndOfHeaders.equals("\r\n\r\n"))
-        {
-          // double CRLF means we are at the end of the headers
-          int len = (ind + 4) - byteBuf.readerIndex();
-          list.add(HttpRequest.parse(byteBuf.readSlice(len)));
-          startIndex = ind + 4;
-        }
-        else
-        {
-          startIndex = ind + 1;
-        }
+        // The upgrade request itself is answered over HTTP/2, as stream 1 (RFC 7540 § 3.2)
+        channelHandlerContext.write(Unpooled.wrappedBuffer(SWITCHING_PROTOCOLS));
+        switchToHttp2(channelHandlerContext, http2.apply(request));
+        return;
       }
-      else
+      first = false;
+      // Passed on now rather than with the rest of the read, so the handler can stop us first
+      channelHandlerContext.fireChannelRead(request);
+    }
+  }
+
+
+  @Override
+  public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt)
+      throws Exception
+  {
+    if (evt == DECODE_BUFFERED)
+    {
+      final ByteBuf buffered = internalBuffer();
+      if (buffered.isReadable())
       {
-        // at the end of the buffer and nothing is there to read
-        startIndex = byteBuf.writerIndex();
+        callDecode(ctx, buffered, new ArrayList<>());
+        ctx.fireChannelReadComplete();
       }
+      return;
     }
+    super.userEventTriggered(ctx, evt);
+  }
+
+
+  @Override
+  public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception
+  {
+    // ByteToMessageDecoder would ask for another read while autoRead is off, since nothing went
+    // into its list; here autoRead is only off when the handler wants no more
+    discardSomeReadBytes();
+    ctx.fireChannelReadComplete();
+  }
+
+
+  static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+      + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(Charsets.US_ASCII);
+
+
+  // Anything read after the switch is passed on to the new handler as this one is removed
+  private void switchToHttp2(ChannelHandlerContext ctx, Http2ConnectionHandler handler)
+  {
+    first = false;
+    final ChannelPipeline pipeline = ctx.pipeline();
+    if (pipeline.get(NettyHttpServerInboundHandler.class) != null)
+      pipeline.remove(NettyHttpServerInboundHandler.class);
+    if (pipeline.get(NettyHttpServerOutboundHandler.class) != null)
+      pipeline.remove(NettyHttpServerOutboundHandler.class);
+    pipeline.addAfter(ctx.name(), "http2", handler);
+    pipeline.remove(this);
   }
 
 
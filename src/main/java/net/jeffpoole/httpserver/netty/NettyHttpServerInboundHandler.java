@@ -1,20 +1,44 @@
 package net.jeffpoole.httpserver.netty;
 
+import io.netty.channel.ChannelConfig;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.util.concurrent.Executor;
 
 import lombok.extern.slf4j.Slf4j;
 
 import org.fusesource.hawtdispatch.Dispatch;
-import org.fusesource.hawtdispatch.DispatchQueue;
 
 import net.jeffpoole.httpserver.logic.HttpServer;
+import net.jeffpoole.httpserver.metrics.AccessLog;
+import net.jeffpoole.httpserver.metrics.MetricsEndpoint;
+import net.jeffpoole.httpserver.metrics.ServerMetrics;
 import net.jeffpoole.httpserver.parsing.HttpRequest;
+import net.jeffpoole.httpserver.parsing.HttpResponse;
 
 
 /**
  * This class just hands off processing the request and creating a response to a connection-specific
  * dispatch queue.  This ensures in-order responses to pipelined requests.
+ *
+ * Responses are written back on the event loop without flushing, and flushed once there are no more
+ * requests from the connection waiting on the queue, so the responses to a batch of pipelined
+ * requests go out together rather than costing a syscall each.
+ *
+ * The connection stops reading (autoRead off) while it has too many requests waiting for responses,
+ * or while its outbound buffer is over the write buffer high water mark, and starts again once
+ * those drain.  The decoder passes requests on one at a time and stops with autoRead, so a single
+ * read full of pipelined requests can't take pending past the maximum.  A client that pipelines lots of requests but reads slowly (or not at all) then can't
+ * make us queue up an unbounded amount of responses.
+ *
+ * The connection is closed once it has been idle for the read timeout of an IdleStateHandler earlier
+ * in the pipeline (with nothing being worked on or sent), or once the client hasn't read anything
+ * for the write timeout (see WriteProgress).  A response only stops counting once its write
+ * completes, so a long download isn't cut off just because the client has nothing to say while it
+ * arrives.  After the maximum number of requests, the last response has Connection: close.
  */
 @Slf4j
 
@@ -34,20 +58,217 @@ public class NettyHttpServerInboundHandler extends SimpleChannelInboundHandler<H
     the responses get returned in-order.  But requests from different connections will be processed
     in parallel.  HawtDispatch defaults to creating a thread pool with a thread per core, with the
     idea that you don't run blocking operations on any of it's threads, so you keep them all busy.
+
+    With RequestExecutors' VIRTUAL_THREADS mode this is a SerialExecutor instead, which keeps the
+    same ordering but runs on virtual threads, so blocking filesystem calls are fine.
    */
-  DispatchQueue queue = Dispatch.createQueue();
+  final Executor queue;
+
+  final ServerMetrics metrics;
+  // null if there is no metrics path
+  final MetricsEndpoint metricsEndpoint;
+  // null if there is no access log
+  final AccessLog accessLog;
+  // Flush anyway after this many responses, so a client that keeps pipelining still gets answers
+  static final int MAXIMUM_UNFLUSHED_RESPONSES = 32;
+
+  // Stop reading when this many requests are queued
+  final int maximumPending;
+  // Close the connection after answering this many requests
+  final int maximumRequests;
+  // Requests read so far
+  int requests;
+  // Requests queued whose responses haven't been written yet.  Only used on the event loop.
+  int pending;
+  // Responses written but not flushed yet.  Only used on the event loop.
+  int unflushed;
+  // Responses written whose writes haven't completed yet (the body may still be going out).  Only
+  // used on the event loop, where write futures are notified.
+  int sending;
+  final WriteProgress writeProgress = new WriteProgress();
 
   public NettyHttpServerInboundHandler(HttpServer httpServer)
+  {
+    this(httpServer, new ServerMetrics(), null, Dispatch.createQueue(), Integer.MAX_VALUE,
+        Integer.MAX_VALUE);
+  }
+
+  public NettyHttpServerInboundHandler(HttpServer httpServer, ServerMetrics metrics,
+      MetricsEndpoint metricsEndpoint, Executor queue, int maximumPending, int maximumRequests)
+  {
+    this(httpServer, metrics, metricsEndpoint, null, queue, maximumPending, maximumRequests);
+  }
+
+  // The queue must run tasks one at a time, in order, and is only used for this connection
+  public NettyHttpServerInboundHandler(HttpServer httpServer, ServerMetrics metrics,
+      MetricsEndpoint metricsEndpoint, AccessLog accessLog, Executor queue, int maximumPending,
+      int maximumRequests)
   {
     super(false); // HttpRequest isn't reference-counted, so no need to try to free it
     this.httpServer = httpServer;
+    this.metrics = metrics;
+    this.metricsEndpoint = metricsEndpoint;
+    this.accessLog = accessLog;
+    this.queue = queue;
+    this.maximumPending = maximumPending;
+    this.maximumRequests = maximumRequests;
+  }
+
+  @Override
+  public void channelActive(final ChannelHandlerContext ctx) throws Exception
+  {
+    metrics.connectionOpened();
+    super.channelActive(ctx);
+  }
+
+  @Override
+  public void channelInactive(final ChannelHandlerContext ctx) throws Exception
+  {
+    metrics.connectionClosed();
+    super.channelInactive(ctx);
   }
 
   @Override
   protected void channelRead0(final ChannelHandlerContext ctx, final HttpRequest msg)
       throws Exception
   {
+    if (requests == maximumRequests)
+    {
+      // Pipelined after the last request, which is closing the connection
+      return;
+    }
+    final boolean last = ++requests == maximumRequests;
+    if (last)
+    {
+      metrics.closed(ServerMetrics.CloseReason.REQUEST_LIMIT);
+    }
+
+    final boolean metricsRequest = metricsEndpoint != null && metricsEndpoint.matches(msg);
+    final long queued = System.nanoTime();
+    if (metricsRequest && pending == 0)
+    {
+      // Cheap and non-blocking, so answer it right here (unless that would overtake earlier
+      // responses still to be written).  channelReadComplete() flushes it.
+      final HttpResponse response = closeIf(last, metricsEndpoint.respond(msg));
+      sending++;
+      ctx.channel().write(response).addListener(future -> sending--);
+      log(ctx, msg, response, queued);
+      unflushed++;
+      return;
+    }
+
     // Run the logic on the dispatch queue
-    queue.execute( () -> ctx.channel().writeAndFlush(httpServer.respond(msg)));
+    pending++;
+    updateAutoRead(ctx);
+    queue.execute(() -> {
+      final long started = System.nanoTime();
+      metrics.record(ServerMetrics.Stage.QUEUE, started - queued);
+      final HttpResponse response = closeIf(last, metricsRequest ? metricsEndpoint.respond(msg)
+          : httpServer.respond(msg));
+      metrics.record(ServerMetrics.Stage.RESPOND, System.nanoTime() - started);
+      // Back on the event loop, any requests from the rest of this read are already counted in
+      // pending, so this only flushes once the last of them is answered
+      ctx.channel().eventLoop().execute(() -> {
+        sending++;
+        ctx.channel().write(response).addListener(future -> {
+          sending--;
+          metrics.record(ServerMetrics.Stage.TOTAL, System.nanoTime() - queued);
+          log(ctx, msg, response, queued);
+        });
+        pending--;
+        unflushed++;
+        if (pending == 0 || unflushed >= MAXIMUM_UNFLUSHED_RESPONSES)
+        {
+          flush(ctx);
+        }
+        updateAutoRead(ctx);
+      });
+    });
+  }
+
+  @Override
+  public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception
+  {
+    if (pending == 0)
+    {
+      flush(ctx);
+    }
+    super.channelReadComplete(ctx);
+  }
+
+  @Override
+  public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception
+  {
+    if (evt instanceof IdleStateEvent)
+    {
+      final IdleState state = ((IdleStateEvent) evt).state();
+      if (state == IdleState.READER_IDLE && pending == 0 && unflushed == 0
+          && sending == 0)
+      {
+        log.debug("Closing idle connection [{}]", ctx.channel().remoteAddress());
+        metrics.closed(ServerMetrics.CloseReason.READ_IDLE);
+        ctx.channel().close();
+      }
+      else if (state == IdleState.WRITER_IDLE && !ctx.channel().isWritable()
+          && writeProgress.stalled(ctx.channel()))
+      {
+        log.debug("Closing connection [{}], which isn't reading its responses",
+            ctx.channel().remoteAddress());
+        metrics.closed(ServerMetrics.CloseReason.WRITE_IDLE);
+        ctx.channel().close();
+      }
+      return;
+    }
+    super.userEventTriggered(ctx, evt);
+  }
+
+  private void log(final ChannelHandlerContext ctx, final HttpRequest request,
+      final HttpResponse response, final long queued)
+  {
+    if (accessLog != null)
+    {
+      accessLog.log(ctx.channel().remoteAddress(), request, response.getStatusCode(),
+          AccessLog.bodyBytes(response), System.nanoTime() - queued);
+    }
+  }
+
+  private static HttpResponse closeIf(final boolean close, final HttpResponse response)
+  {
+    return close ? response.withConnectionClose() : response;
+  }
+
+  @Override
+  public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception
+  {
+    updateAutoRead(ctx);
+    super.channelWritabilityChanged(ctx);
+  }
+
+  private void updateAutoRead(final ChannelHandlerContext ctx)
+  {
+    final boolean read = pending < maximumPending && ctx.channel().isWritable();
+    final ChannelConfig config = ctx.channel().config();
+    if (read != config.isAutoRead())
+    {
+      if (!read)
+      {
+        metrics.readPaused();
+      }
+      config.setAutoRead(read);
+      if (read)
+      {
+        // requests the decoder held back may be all the client sends until it has its responses
+        ctx.pipeline().fireUserEventTriggered(NettyHttpServerInboundDecoder.DECODE_BUFFERED);
+      }
+    }
+  }
+
+  private void flush(final ChannelHandlerContext ctx)
+  {
+    if (unflushed > 0)
+    {
+      unflushed = 0;
+      ctx.channel().flush();
+    }
   }
 }
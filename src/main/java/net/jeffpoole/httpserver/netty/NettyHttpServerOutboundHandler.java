@@ -1,6 +1,8 @@
 package net.jeffpoole.httpserver.netty;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
@@ -10,26 +12,42 @@ import io.netty.channel.ChannelPromise;
 import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.FileRegion;
 import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.handler.stream.ChunkedWriteHandler;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.ReadableByteChannel;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import lombok.extern.slf4j.Slf4j;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
 
 import net.jeffpoole.httpserver.data.Blob;
-import net.jeffpoole.httpserver.data.ByteArrayBlob;
-import net.jeffpoole.httpserver.data.FileBlob;
+import net.jeffpoole.httpserver.logic.HttpServerUtils;
+import net.jeffpoole.httpserver.logic.ResourceHeaders;
+import net.jeffpoole.httpserver.metrics.ServerMetrics;
 import net.jeffpoole.httpserver.parsing.HttpResponse;
 
 
 /**
  * This class turns outbound HttpResponse objects into actual bytes to send across the wire.  Since
  * I chose to focus on speed, zero-copy transfers are implemented for larger files (arbitrarily set
- * to 4kB).
+ * to 4kB), and hot small and medium files can be served straight from a ContentCache.
+ *
+ * Under TLS, where the bytes have to pass through the SSLEngine, larger files are sent as a
+ * ChunkedNioFile instead (which needs a ChunkedWriteHandler between this and the SslHandler), read
+ * in chunks of a TLS record's worth of data.
+ *
+ * Responses are written but not flushed, so the caller decides when they go out; that lets the
+ * responses to a batch of pipelined requests share one flush (and, mostly, one syscall).
  */
 @Slf4j
 public class NettyHttpServerOutboundHandler extends ChannelOutboundHandlerAdapter
@@ -41,60 +59,127 @@ public class NettyHttpServerOutboundHandler extends ChannelOutboundHandlerAdapte
 
   private final static byte[] CRLF = "\r\n".getBytes(Charsets.UTF_8);
 
+  private final static int ESTIMATED_HEAD_SIZE = 512;
+
+  // The most plaintext a TLS record can hold, so each chunk is encrypted as one full record
+  private final static int TLS_CHUNK_SIZE = 16 * 1024;
+
+  private final static int STREAM_CHUNK_SIZE = 16 * 1024;
+
+  // Shared by all connections; null if file contents aren't cached
+  final ContentCache contentCache;
+  final ServerMetrics metrics;
+  // False if the bytes can't go straight from the file to the socket (i.e. with TLS)
+  final boolean zeroCopy;
+  // Body bytes of the response being written.  Only used on the event loop.
+  long bodyBytes;
+
+  // Status lines for everything HttpResponse produces, encoded up front
+  private final static ImmutableMap<Integer, byte[]> HTTP_1_1_STATUS_LINES;
+
+  // "Name: " for the headers we send, encoded up front
+  private final static ImmutableMap<String, byte[]> HEADER_NAMES;
+
+  static
+  {
+    ImmutableMap.Builder<Integer, byte[]> statusLines = ImmutableMap.builder();
+    for (String statusLine : new String[] { "200 OK", "206 Partial Content", "304 Not Modified",
+        "400 Bad Request", "404 Not Found", "416 Range Not Satisfiable", "501 Not Implemented" })
+    {
+      statusLines.put(Integer.valueOf(statusLine.substring(0, 3)),
+          ("HTTP/1.1 " + statusLine + "\r\n").getBytes(Charsets.UTF_8));
+    }
+    HTTP_1_1_STATUS_LINES = statusLines.build();
+
+    ImmutableMap.Builder<String, byte[]> headerNames = ImmutableMap.builder();
+    for (String name : new String[] { "Accept-Ranges", "Connection", "Content-Encoding",
+        "Content-Length", "Content-Range", "Content-Type", "Date", "ETag", "Last-Modified", "Server",
+        "Transfer-Encoding", "Vary" })
+    {
+      headerNames.put(name, (name + ": ").getBytes(Charsets.UTF_8));
+    }
+    HEADER_NAMES = headerNames.build();
+  }
+
+
+  public NettyHttpServerOutboundHandler()
+  {
+    this(null);
+  }
+
+
+  public NettyHttpServerOutboundHandler(ContentCache contentCache)
+  {
+    this(contentCache, new ServerMetrics());
+  }
+
+
+  public NettyHttpServerOutboundHandler(ContentCache contentCache, ServerMetrics metrics)
+  {
+    this(contentCache, metrics, true);
+  }
+
+
+  public NettyHttpServerOutboundHandler(ContentCache contentCache, ServerMetrics metrics,
+      boolean zeroCopy)
+  {
+    this.contentCache = contentCache;
+    this.metrics = metrics;
+    this.zeroCopy = zeroCopy;
+  }
+
+
   @Override
   public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise)
       throws Exception
   {
     if (msg instanceof HttpResponse)
     {
+      final long started = System.nanoTime();
       final HttpResponse httpResponse = (HttpResponse) msg;
-      ByteBuf byteBuf = ctx.alloc().ioBuffer();
-      String responseStatus =
-          httpResponse.getHttpVersion() + " "
-              + httpResponse.getStatusCode() + " "
-              + httpResponse.getStatusReason() + "\r\n";
-      byteBuf.writeBytes(responseStatus.getBytes(Charsets.UTF_8));
-
-      for (String headerName : httpResponse.getHeaders().keySet())
-      {
-        String headerLine = headerName + ": " + httpResponse.getHeaders().get(headerName);
-        byteBuf.writeBytes(headerLine.getBytes(Charsets.UTF_8));
-        byteBuf.writeBytes(CRLF);
-      }
-      byteBuf.writeBytes(CRLF);
+      ByteBuf byteBuf = ctx.alloc().ioBuffer(ESTIMATED_HEAD_SIZE);
+      writeHead(httpResponse, byteBuf);
       log.debug("Done writing headers");
+      final long headBytes = byteBuf.readableBytes();
+      bodyBytes = 0;
 
       Blob blob = httpResponse.getResource().getData();
       if (blob != null)
       {
-        if (blob instanceof ByteArrayBlob)
+        try
         {
-          byte[] data = ((ByteArrayBlob) blob).getBytes();
-          byteBuf.writeBytes(data);
-          ctx.write(byteBuf, promise);
+          final Instant modified = httpResponse.getResource().getModifiedTimestamp();
+          // A chunk-coded body is all one stream, whatever the blob is made of
+          byteBuf = "chunked".equals(httpResponse.getHeaders().get("Transfer-Encoding"))
+              ? writeStream(ctx, blob, true, byteBuf)
+              : writeBlob(ctx, blob, modified != null ? modified.toEpochMilli() : -1, byteBuf);
         }
-        else if (blob instanceof FileBlob)
+        catch (IOException e)
         {
-          File file = ((FileBlob) blob).getFile();
-          if (file.length() < MINIMUM_SIZE_FOR_ZERO_COPY_SEND)
-          {
-            byteBuf.writeBytes(new FileInputStream(file), (int)file.length());
-            ctx.writeAndFlush(byteBuf, promise);
-          }
-          else
-          {
-            RandomAccessFile raf = new RandomAccessFile(((FileBlob) blob).getFile(), "r");
-            FileRegion fr = new DefaultFileRegion(raf.getChannel(), 0, raf.length());
-            ctx.write(byteBuf);
-            ctx.writeAndFlush(fr, promise);
-          }
+          // What was still pending has been released, and some of the response may already have
+          // been written.  Either way the client can't be told, and would take whatever comes next
+          // as the rest of this response, so the connection has to go.
+          ctx.channel().close();
+          throw e;
         }
         log.debug("Done writing data");
       }
       else {
         log.debug("No data to write (flushing headers)");
-        ctx.writeAndFlush(byteBuf, promise);
       }
+      final long responseBytes = headBytes + bodyBytes;
+      metrics.response(httpResponse.getStatusCode());
+      final long encoded = System.nanoTime();
+      metrics.record(ServerMetrics.Stage.ENCODE, encoded - started);
+      if (promise != ctx.voidPromise())
+      {
+        promise.addListener(future -> {
+          metrics.record(ServerMetrics.Stage.SEND, System.nanoTime() - encoded);
+          if (future.isSuccess())
+            metrics.bytesSent(responseBytes);
+        });
+      }
+      ctx.write(byteBuf, promise);
 
       if ("close".equals(httpResponse.getHeaders().getOrDefault("Connection", ""))) {
         log.debug("Closing connection after write");
@@ -108,6 +193,310 @@ public class NettyHttpServerOutboundHandler extends ChannelOutboundHandlerAdapte
   }
 
 
+  /**
+   * Writes the status line and headers.  Anything that was encoded ahead of time (status lines,
+   * header names, the current Date, and the resource's own headers) is just copied in.
+   */
+  void writeHead(final HttpResponse httpResponse, final ByteBuf byteBuf)
+  {
+    final byte[] statusLine = "HTTP/1.1".equals(httpResponse.getHttpVersion())
+        ? HTTP_1_1_STATUS_LINES.get(httpResponse.getStatusCode()) : null;
+    if (statusLine != null)
+    {
+      byteBuf.writeBytes(statusLine);
+    }
+    else
+    {
+      ByteBufUtil.writeUtf8(byteBuf, httpResponse.getHttpVersion() + " "
+          + httpResponse.getStatusCode() + " " + httpResponse.getStatusReason() + "\r\n");
+    }
+
+    final Map<String, String> headers = httpResponse.getHeaders();
+    // The resource's headers can be copied as a block if the response uses the cached values as-is
+    final ResourceHeaders resourceHeaders = ResourceHeaders.cached(httpResponse.getResource());
+    final boolean resourceBlock = resourceHeaders != null
+        && headers.get("Content-Type") == resourceHeaders.getContentType()
+        && headers.get("ETag") == resourceHeaders.getEtag()
+        && headers.get("Last-Modified") == resourceHeaders.getLastModified();
+    if (resourceBlock)
+    {
+      byteBuf.writeBytes(resourceHeaders.getEncoded());
+    }
+
+    for (Map.Entry<String, String> header : headers.entrySet())
+    {
+      final String name = header.getKey();
+      final String value = header.getValue();
+      if (resourceBlock && ("Content-Type".equals(name) || "ETag".equals(name)
+          || "Last-Modified".equals(name)))
+      {
+        continue;
+      }
+      if (resourceHeaders != null && "Content-Length".equals(name)
+          && value == resourceHeaders.getContentLength())
+      {
+        byteBuf.writeBytes(resourceHeaders.getEncodedContentLength());
+        continue;
+      }
+
+      final byte[] encodedName = HEADER_NAMES.get(name);
+      if (encodedName != null)
+      {
+        byteBuf.writeBytes(encodedName);
+      }
+      else
+      {
+        ByteBufUtil.writeUtf8(byteBuf, name);
+        byteBuf.writeByte(':').writeByte(' ');
+      }
+      final byte[] encodedDate = "Date".equals(name) ? HttpServerUtils.encodedHttpDate(value) : null;
+      if (encodedDate != null)
+      {
+        byteBuf.writeBytes(encodedDate);
+      }
+      else
+      {
+        ByteBufUtil.writeUtf8(byteBuf, value);
+      }
+      byteBuf.writeBytes(CRLF);
+    }
+    byteBuf.writeBytes(CRLF);
+  }
+
+
+  /**
+   * Writes the blob out after whatever is already in the pending buffer.  Small data is copied into
+   * the pending buffer, cached content is added to it as a component of a CompositeByteBuf (so it
+   * isn't copied), and larger files are sent as a zero-copy FileRegion after writing out what was
+   * pending.  Returns the buffer holding anything not yet written, for the caller to send.  The
+   * modification time is used to check any cached file contents (negative if unknown).  If it
+   * throws, the buffer it held at the time (pending, or whatever replaced it) has been released.
+   *
+   * Heap data (ByteArrayBlob) is still copied: Netty copies any buffer that isn't entirely direct
+   * before writing it to a socket, so a heap component would cost a copy of the whole composite.
+   */
+  ByteBuf writeBlob(final ChannelHandlerContext ctx, final Blob blob, final long modifiedMillis,
+      final ByteBuf pending) throws IOException
+  {
+    return blob.accept(new Blob.Visitor<ByteBuf>()
+    {
+      @Override
+      public ByteBuf bytes(byte[] bytes)
+      {
+        pending.writeBytes(bytes);
+        transferred(ServerMetrics.TransferMode.HEAP, bytes.length);
+        return pending;
+      }
+
+      @Override
+      public ByteBuf file(File file, long position, long length) throws IOException
+      {
+        return writeFile(ctx, file, position, length, modifiedMillis, pending);
+      }
+
+      @Override
+      public ByteBuf composite(List<Blob> parts) throws IOException
+      {
+        ByteBuf rest = pending;
+        for (Blob part : parts)
+        {
+          rest = writeBlob(ctx, part, modifiedMillis, rest);
+        }
+        return rest;
+      }
+
+      @Override
+      public ByteBuf stream(Blob blob) throws IOException
+      {
+        return writeStream(ctx, blob, false, pending);
+      }
+    });
+  }
+
+
+  /**
+   * Writes the blob from its stream.  Small streams of a known length are read into the pending
+   * buffer, and anything else is sent a chunk at a time as the channel takes them, with chunked
+   * transfer coding if the response uses it.  Releases pending if it throws.
+   */
+  private ByteBuf writeStream(final ChannelHandlerContext ctx, final Blob blob,
+      final boolean chunkCoding, final ByteBuf pending) throws IOException
+  {
+    final long length = blob.length();
+    final ChunkedBlob chunks;
+    try
+    {
+      if (!chunkCoding && length >= 0 && length < MINIMUM_SIZE_FOR_ZERO_COPY_SEND)
+      {
+        final ByteBuf rest;
+        try (ReadableByteChannel channel = blob.open())
+        {
+          rest = readInto(ctx, channel, (int) length, pending, blob);
+        }
+        transferred(ServerMetrics.TransferMode.HEAP, length);
+        return rest;
+      }
+      chunks = new ChunkedBlob(blob.open(), chunkCoding, STREAM_CHUNK_SIZE);
+    }
+    catch (IOException e)
+    {
+      pending.release();
+      throw e;
+    }
+
+    // Chunked inputs need a ChunkedWriteHandler in front of this one, which plain HTTP pipelines
+    // only get once something needs it
+    if (ctx.pipeline().get(ChunkedWriteHandler.class) == null)
+    {
+      ctx.pipeline().addBefore(ctx.name(), "chunkedWriter", new ChunkedWriteHandler());
+    }
+    ctx.write(pending);
+    ctx.write(chunks);
+    // The length of a chunk-coded stream isn't known until it has been sent
+    transferred(ServerMetrics.TransferMode.CHUNKED, Math.max(length, 0));
+    return ctx.alloc().ioBuffer(0);
+  }
+
+
+  /**
+   * Reads exactly length bytes after the pending ones.  Once pending is a composite, the data goes
+   * in a new component rather than growing it.  Returns the buffer now holding everything pending.
+   */
+  private static ByteBuf readInto(final ChannelHandlerContext ctx,
+      final ReadableByteChannel channel, final int length, final ByteBuf pending,
+      final Object source) throws IOException
+  {
+    final ByteBuf target = pending instanceof CompositeByteBuf
+        ? ctx.alloc().ioBuffer(length) : pending;
+    try
+    {
+      int remaining = length;
+      while (remaining > 0)
+      {
+        final int read = ChunkedBlob.read(channel, target, remaining);
+        if (read < 0)
+          throw new EOFException("[" + source + "] is shorter than expected");
+        remaining -= read;
+      }
+    }
+    catch (IOException e)
+    {
+      if (target != pending)
+        target.release();
+      throw e;
+    }
+    return target == pending ? pending : append(ctx, pending, target);
+  }
+
+
+  // A length of -1 means the rest of the file.  Releases pending if it throws.
+  private ByteBuf writeFile(final ChannelHandlerContext ctx, final File file, final long position,
+      long length, final long modifiedMillis, final ByteBuf pending) throws IOException
+  {
+    final Object body;
+    try
+    {
+      long fileLength = -1;
+      if (contentCache != null && modifiedMillis >= 0)
+      {
+        ByteBuf content = contentCache.get(file, modifiedMillis);
+        if (content == null)
+        {
+          fileLength = file.length();
+          content = contentCache.load(file, modifiedMillis, fileLength);
+        }
+        if (content != null)
+        {
+          if (length < 0)
+            length = content.readableBytes() - position;
+          if (position + length <= content.readableBytes())
+          {
+            return writeCached(ctx, content, (int) position, (int) length, pending);
+          }
+          // the file no longer matches what was cached, so let the file itself decide what happens
+          content.release();
+        }
+      }
+
+      if (length < 0)
+        length = (fileLength >= 0 ? fileLength : file.length()) - position;
+      if (length < MINIMUM_SIZE_FOR_ZERO_COPY_SEND)
+      {
+        final ByteBuf rest;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+          rest = readInto(ctx, raf.getChannel().position(position), (int) length, pending, file);
+        }
+        transferred(ServerMetrics.TransferMode.HEAP, length);
+        return rest;
+      }
+      // The FileRegion (or ChunkedNioFile) takes ownership of the file, and closes it once sent
+      final RandomAccessFile raf = new RandomAccessFile(file, "r");
+      body = zeroCopy ? new DefaultFileRegion(raf.getChannel(), position, length)
+          : new ChunkedNioFile(raf.getChannel(), position, length, TLS_CHUNK_SIZE);
+    }
+    catch (IOException e)
+    {
+      pending.release();
+      throw e;
+    }
+
+    ctx.write(pending);
+    ctx.write(body);
+    transferred(zeroCopy ? ServerMetrics.TransferMode.FILE_REGION
+        : ServerMetrics.TransferMode.CHUNKED, length);
+    return ctx.alloc().ioBuffer(0);
+  }
+
+
+  // Takes ownership of the (retained) cached content
+  private ByteBuf writeCached(final ChannelHandlerContext ctx, final ByteBuf content,
+      final int position, final int length, final ByteBuf pending)
+  {
+    transferred(ServerMetrics.TransferMode.CACHE, length);
+    // The slice shares the retained duplicate's reference, so releasing the composite releases that
+    return append(ctx, pending, content.slice(position, length));
+  }
+
+
+  /**
+   * Adds the readable bytes of the buffer after the pending ones, without copying either, and takes
+   * ownership of it.  Returns the composite buffer now holding everything pending.
+   */
+  private static ByteBuf append(final ChannelHandlerContext ctx, final ByteBuf pending,
+      final ByteBuf buf)
+  {
+    final CompositeByteBuf composite;
+    if (pending instanceof CompositeByteBuf)
+    {
+      composite = (CompositeByteBuf) pending;
+    }
+    else
+    {
+      composite = ctx.alloc().compositeBuffer();
+      addComponent(composite, pending);
+    }
+    addComponent(composite, buf);
+    return composite;
+  }
+
+
+  // addComponent() doesn't move the writer index, so the new bytes wouldn't be readable otherwise
+  private static void addComponent(final CompositeByteBuf composite, final ByteBuf buf)
+  {
+    final int readable = buf.readableBytes();
+    composite.addComponent(buf);
+    composite.writerIndex(composite.writerIndex() + readable);
+  }
+
+
+  private void transferred(ServerMetrics.TransferMode mode, long length)
+  {
+    metrics.transfer(mode, length);
+    bodyBytes += length;
+  }
+
+
 /*  @Override
   protected void encode(final ChannelHandlerContext channelHandlerContext,
       final HttpResponse httpResponse,
@@ -0,0 +1,81 @@
+package net.jeffpoole.httpserver.netty;
+
+import java.io.Closeable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.fusesource.hawtdispatch.Dispatch;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import net.jeffpoole.httpserver.ServerConfig;
+
+
+/**
+ * Creates the serial executor each connection handles its requests on, for the configured
+ * ExecutionMode.  HawtDispatch queues share a pool of one thread per core, so anything that blocks
+ * (stat calls, content type detection, directory listings on a slow disk) holds up every connection
+ * queued behind it.  With VIRTUAL_THREADS, each connection's requests run on a virtual thread, so
+ * blocking only parks that connection.
+ *
+ * Virtual threads need Java 21; they are looked up reflectively so the server still builds and runs
+ * on Java 8, where this falls back to a cached thread pool (which also grows rather than blocking
+ * other connections, at the cost of a platform thread each).
+ */
+@Slf4j
+public class RequestExecutors implements Closeable
+{
+  final ServerConfig.ExecutionMode mode;
+  // What the serial executors run on; null with HawtDispatch, which manages its own threads
+  final ExecutorService executor;
+
+
+  public RequestExecutors(ServerConfig.ExecutionMode mode)
+  {
+    this.mode = mode;
+    this.executor = mode == ServerConfig.ExecutionMode.VIRTUAL_THREADS
+        ? newVirtualThreadExecutor() : null;
+  }
+
+
+  public Executor newSerialExecutor()
+  {
+    return executor == null ? Dispatch.createQueue() : new SerialExecutor(executor);
+  }
+
+
+  // For requests that needn't be answered in order, such as HTTP/2 streams
+  public Executor concurrentExecutor()
+  {
+    return executor == null ? Dispatch.getGlobalQueue() : executor;
+  }
+
+
+  @Override
+  public void close()
+  {
+    if (executor != null)
+    {
+      executor.shutdown();
+    }
+  }
+
+
+  static ExecutorService newVirtualThreadExecutor()
+  {
+    try
+    {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    }
+    catch (ReflectiveOperationException e)
+    {
+      log.warn("Virtual threads need Java 21 or later, so requests will use a cached thread pool");
+      return Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("request-%d").setDaemon(true).build());
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package net.jeffpoole.httpserver.netty;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+
+/**
+ * Runs submitted tasks one at a time, in the order they were submitted, on a shared executor -- the
+ * same guarantee a HawtDispatch serial queue gives, so pipelined requests on a connection are still
+ * answered in order.  At most one task from each SerialExecutor is on the shared executor at once.
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class SerialExecutor implements Executor
+{
+  final Executor executor;
+  final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  // Whether a drain() is submitted or running
+  final AtomicBoolean scheduled = new AtomicBoolean();
+
+
+  @Override
+  public void execute(Runnable task)
+  {
+    tasks.add(task);
+    schedule();
+  }
+
+
+  private void schedule()
+  {
+    if (scheduled.compareAndSet(false, true))
+    {
+      executor.execute(this::drain);
+    }
+  }
+
+
+  private void drain()
+  {
+    Runnable task;
+    while ((task = tasks.poll()) != null)
+    {
+      try
+      {
+        task.run();
+      }
+      catch (RuntimeException e)
+      {
+        log.error("Error running task", e);
+      }
+    }
+    scheduled.set(false);
+    // a task could have been added after the last poll, but before scheduled was cleared
+    if (!tasks.isEmpty())
+    {
+      schedule();
+    }
+  }
+}
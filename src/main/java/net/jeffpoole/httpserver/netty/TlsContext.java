@@ -0,0 +1,72 @@
+package net.jeffpoole.httpserver.netty;
+
+import io.netty.handler.ssl.SslHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+import lombok.RequiredArgsConstructor;
+
+
+/**
+ * The server side of TLS, using the JDK's SSLEngine.  Sessions are cached so returning clients can
+ * resume them with an abbreviated handshake.  Session tickets (RFC 5077, which don't need the
+ * server-side cache) are turned on where the JDK supports them for servers (Java 13 and later),
+ * unless jdk.tls.server.enableSessionTicketExtension has been set.
+ */
+@RequiredArgsConstructor
+public class TlsContext
+{
+  static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+  final SSLContext sslContext;
+
+
+  /**
+   * Loads the server's key and certificate chain from a key store (of the given type, e.g. PKCS12
+   * or JKS), where the key has the same password as the store.
+   */
+  public static TlsContext load(Path keyStorePath, String keyStoreType, char[] password,
+      int sessionCacheSize, int sessionTimeoutSeconds) throws IOException, GeneralSecurityException
+  {
+    if (System.getProperty(SESSION_TICKETS_PROPERTY) == null)
+    {
+      // read when the SSLContext implementation is initialized, so this has to be set first
+      System.setProperty(SESSION_TICKETS_PROPERTY, "true");
+    }
+
+    final KeyStore keyStore = KeyStore.getInstance(keyStoreType);
+    try (InputStream in = Files.newInputStream(keyStorePath))
+    {
+      keyStore.load(in, password);
+    }
+    final KeyManagerFactory keyManagers =
+        KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagers.init(keyStore, password);
+
+    final SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(keyManagers.getKeyManagers(), null, null);
+    final SSLSessionContext sessions = sslContext.getServerSessionContext();
+    sessions.setSessionCacheSize(sessionCacheSize);
+    sessions.setSessionTimeout(sessionTimeoutSeconds);
+    return new TlsContext(sslContext);
+  }
+
+
+  // A handler for one new server-side connection
+  public SslHandler newHandler()
+  {
+    final SSLEngine engine = sslContext.createSSLEngine();
+    engine.setUseClientMode(false);
+    return new SslHandler(engine);
+  }
+}
@@ -0,0 +1,54 @@
+package net.jeffpoole.httpserver.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.FileRegion;
+
+
+/**
+ * Tells whether a connection's writes have stalled, for the write timeout.  IdleStateHandler only
+ * sees a write when it completes, and a channel stays unwritable until most of a big FileRegion (or
+ * a long run of pipelined responses) has gone, so both can look idle for the whole timeout while
+ * the client is reading steadily.  This looks at how far the transport has got with the message it
+ * is sending instead: if that hasn't moved since the last check, nothing has been sent in between.
+ *
+ * Only used on the event loop.  The first check has nothing to compare with, so a connection that
+ * stops reading can take two timeouts to be closed.
+ */
+class WriteProgress
+{
+  private Object message;
+  private long position = -1;
+  private long pendingBytes = -1;
+
+
+  // True if nothing was sent since the last call
+  boolean stalled(Channel channel)
+  {
+    final ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+    final Object current = buffer != null ? buffer.current() : null;
+    final long position = positionOf(current);
+    final long pendingBytes = buffer != null ? buffer.totalPendingWriteBytes() : 0;
+    final boolean stalled = current == message && position == this.position
+        && pendingBytes == this.pendingBytes;
+    this.message = current;
+    this.position = position;
+    this.pendingBytes = pendingBytes;
+    return stalled;
+  }
+
+
+  // How much of the message has been sent, as far as the transport keeps track of it
+  private static long positionOf(Object message)
+  {
+    if (message instanceof FileRegion)
+      return ((FileRegion) message).transfered();
+    if (message instanceof ByteBuf)
+      return ((ByteBuf) message).readerIndex();
+    if (message instanceof ByteBufHolder)
+      return ((ByteBufHolder) message).content().readerIndex();
+    return 0;
+  }
+}
@@ -0,0 +1,370 @@
+package net.jeffpoole.httpserver.parsing;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+
+/**
+ * The pieces of HPACK (RFC 7541, header compression for HTTP/2) shared by HpackDecoder and
+ * HpackEncoder: the static table, the dynamic table, the Huffman code, and the integer and string
+ * representations.  Strings are treated as ISO-8859-1, like HTTP/1.x header values, so a String's
+ * length is its length in octets.
+ */
+public final class Hpack
+{
+  // The default (and our advertised) SETTINGS_HEADER_TABLE_SIZE
+  public static final int DEFAULT_TABLE_SIZE = 4096;
+
+  // Appendix A.  Index 0 isn't used.
+  static final String[][] STATIC_TABLE = {
+      null,
+      { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+      { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" },
+      { ":status", "200" }, { ":status", "204" }, { ":status", "206" }, { ":status", "304" },
+      { ":status", "400" }, { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+      { "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+      { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+      { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+      { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+      { "content-location", "" }, { "content-range", "" }, { "content-type", "" },
+      { "cookie", "" }, { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" },
+      { "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+      { "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" },
+      { "last-modified", "" }, { "link", "" }, { "location", "" }, { "max-forwards", "" },
+      { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+      { "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" },
+      { "set-cookie", "" }, { "strict-transport-security", "" }, { "transfer-encoding", "" },
+      { "user-agent", "" }, { "vary", "" }, { "via", "" }, { "www-authenticate", "" } };
+
+  static final int STATIC_TABLE_LENGTH = STATIC_TABLE.length - 1;
+
+  // Appendix B, by symbol (256 is EOS)
+  static final int[] HUFFMAN_CODES = {
+      0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+      0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+      0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+      0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+      0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+      0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+      0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+      0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+      0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+      0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+      0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+      0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+      0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+      0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+      0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+      0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+      0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+      0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+      0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+      0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+      0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+      0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+      0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+      0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+      0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+      0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+      0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+      0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+      0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+      0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+      0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+      0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+      0x3fffffff };
+
+  static final byte[] HUFFMAN_LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+      28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+      6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+      5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+      13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+      15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+      6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+      20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+      24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+      22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+      21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+      26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+      19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+      20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+      26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+      30 };
+
+  static final int EOS = 256;
+
+  // The Huffman code as a binary tree: node n's children are at 2n and 2n + 1 (for a 0 or 1 bit),
+  // and a leaf holds -1 - its symbol.  Zero means no node.  There are 256 internal nodes.
+  private static final int[] HUFFMAN_TREE = new int[2 * 256];
+
+  static
+  {
+    final int[] tree = HUFFMAN_TREE;
+    int nodes = 1;
+    for (int symbol = 0; symbol <= EOS; symbol++)
+    {
+      int node = 0;
+      for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--)
+      {
+        final int child = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+        if (bit == 0)
+        {
+          tree[child] = -1 - symbol;
+        }
+        else
+        {
+          if (tree[child] == 0)
+          {
+            tree[child] = nodes++;
+          }
+          node = tree[child];
+        }
+      }
+    }
+  }
+
+
+  private Hpack()
+  {
+  }
+
+
+  // Each entry counts its name and value plus 32 octets of overhead, per RFC 7541 § 4.1
+  static int entrySize(String name, String value)
+  {
+    return name.length() + value.length() + 32;
+  }
+
+
+  /**
+   * The dynamic table, newest entry first.  Adding an entry evicts the oldest ones until it fits,
+   * and an entry bigger than the whole table just empties it (§ 4.4).
+   */
+  static class DynamicTable
+  {
+    final ArrayDeque<String[]> entries = new ArrayDeque<>();
+    int size;
+    int maximumSize = DEFAULT_TABLE_SIZE;
+
+
+    int length()
+    {
+      return entries.size();
+    }
+
+
+    // 1 is the newest entry
+    String[] get(int index)
+    {
+      final Iterator<String[]> iterator = entries.iterator();
+      for (int i = 1; i < index; i++)
+      {
+        iterator.next();
+      }
+      return iterator.next();
+    }
+
+
+    void add(String name, String value)
+    {
+      final int entrySize = entrySize(name, value);
+      evict(maximumSize - entrySize);
+      if (entrySize <= maximumSize)
+      {
+        entries.addFirst(new String[] { name, value });
+        size += entrySize;
+      }
+    }
+
+
+    void setMaximumSize(int maximumSize)
+    {
+      this.maximumSize = maximumSize;
+      evict(maximumSize);
+    }
+
+
+    private void evict(int targetSize)
+    {
+      while (size > Math.max(targetSize, 0) && !entries.isEmpty())
+      {
+        final String[] evicted = entries.removeLast();
+        size -= entrySize(evicted[0], evicted[1]);
+      }
+    }
+  }
+
+
+  // § 5.1: the value goes in the low bits of the first byte, with the given high bits
+  static void writeInteger(ByteBuf out, int highBits, int prefixBits, int value)
+  {
+    final int maximum = (1 << prefixBits) - 1;
+    if (value < maximum)
+    {
+      out.writeByte(highBits | value);
+      return;
+    }
+    out.writeByte(highBits | maximum);
+    value -= maximum;
+    while (value >= 0x80)
+    {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+
+  static int readInteger(ByteBuf in, int prefixBits) throws IOException
+  {
+    final int maximum = (1 << prefixBits) - 1;
+    int value = in.readUnsignedByte() & maximum;
+    if (value < maximum)
+    {
+      return value;
+    }
+    for (int shift = 0; shift <= 28; shift += 7)
+    {
+      if (!in.isReadable())
+      {
+        throw new IOException("Truncated integer");
+      }
+      final int b = in.readUnsignedByte();
+      value += (b & 0x7f) << shift;
+      if (value < 0)
+      {
+        break;
+      }
+      if ((b & 0x80) == 0)
+      {
+        return value;
+      }
+    }
+    throw new IOException("Integer too big");
+  }
+
+
+  // § 5.2: Huffman encoded if that's shorter
+  static void writeString(ByteBuf out, String s)
+  {
+    final int huffmanLength = huffmanLength(s);
+    if (huffmanLength < s.length())
+    {
+      writeInteger(out, 0x80, 7, huffmanLength);
+      long bits = 0;
+      int count = 0;
+      for (int i = 0; i < s.length(); i++)
+      {
+        final int symbol = s.charAt(i) & 0xff;
+        bits = (bits << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+        count += HUFFMAN_LENGTHS[symbol];
+        while (count >= 8)
+        {
+          count -= 8;
+          out.writeByte((int) (bits >>> count));
+        }
+      }
+      if (count > 0)
+      {
+        // padded with the most significant bits of EOS, i.e. ones
+        out.writeByte((int) ((bits << (8 - count)) | (0xff >>> count)));
+      }
+    }
+    else
+    {
+      writeInteger(out, 0, 7, s.length());
+      for (int i = 0; i < s.length(); i++)
+      {
+        out.writeByte(s.charAt(i));
+      }
+    }
+  }
+
+
+  static int huffmanLength(String s)
+  {
+    long bits = 0;
+    for (int i = 0; i < s.length(); i++)
+    {
+      bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xff];
+    }
+    return (int) ((bits + 7) / 8);
+  }
+
+
+  static String readString(ByteBuf in) throws IOException
+  {
+    if (!in.isReadable())
+    {
+      throw new IOException("Truncated string");
+    }
+    final boolean huffman = (in.getUnsignedByte(in.readerIndex()) & 0x80) != 0;
+    final int length = readInteger(in, 7);
+    if (length > in.readableBytes())
+    {
+      throw new IOException("Truncated string");
+    }
+    final StringBuilder sb = new StringBuilder(huffman ? length * 8 / 5 : length);
+    if (huffman)
+    {
+      decodeHuffman(in, length, sb);
+    }
+    else
+    {
+      for (int i = 0; i < length; i++)
+      {
+        sb.append((char) in.readUnsignedByte());
+      }
+    }
+    return sb.toString();
+  }
+
+
+  private static void decodeHuffman(ByteBuf in, int length, StringBuilder out) throws IOException
+  {
+    int node = 0;
+    // bits since the last complete symbol, and whether they were all ones
+    int partial = 0;
+    boolean ones = true;
+    for (int i = 0; i < length; i++)
+    {
+      final int b = in.readUnsignedByte();
+      for (int bit = 7; bit >= 0; bit--)
+      {
+        final int one = (b >>> bit) & 1;
+        final int next = HUFFMAN_TREE[2 * node + one];
+        partial++;
+        ones &= one == 1;
+        if (next < 0)
+        {
+          if (next == -1 - EOS)
+          {
+            throw new IOException("EOS in Huffman string");
+          }
+          out.append((char) (-1 - next));
+          node = 0;
+          partial = 0;
+          ones = true;
+        }
+        else if (next == 0)
+        {
+          throw new IOException("Invalid Huffman code");
+        }
+        else
+        {
+          node = next;
+        }
+      }
+    }
+    // § 5.2: padding is fewer than 8 bits, and the start of EOS
+    if (partial > 7 || !ones)
+    {
+      throw new IOException("Invalid Huffman padding");
+    }
+  }
+}
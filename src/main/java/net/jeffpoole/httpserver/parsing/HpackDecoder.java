@@ -0,0 +1,103 @@
+package net.jeffpoole.httpserver.parsing;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Decodes HPACK header blocks (RFC 7541) into name/value pairs.  The dynamic table carries over
+ * from one block to the next, so there is one decoder per connection, and every block the peer
+ * sends has to go through it in order, even for streams that are then refused.
+ *
+ * Any error is fatal to the connection (a COMPRESSION_ERROR), since the tables can no longer be
+ * trusted to match the peer's.
+ */
+public class HpackDecoder
+{
+  final Hpack.DynamicTable table = new Hpack.DynamicTable();
+  // The biggest dynamic table the peer may ask for, i.e. our SETTINGS_HEADER_TABLE_SIZE
+  final int maximumTableSize;
+  // The most the decoded fields (counted as in SETTINGS_MAX_HEADER_LIST_SIZE) can add up to, so a
+  // small block can't expand into an enormous one
+  final int maximumHeaderListSize;
+
+
+  public HpackDecoder(int maximumTableSize, int maximumHeaderListSize)
+  {
+    this.maximumTableSize = maximumTableSize;
+    this.maximumHeaderListSize = maximumHeaderListSize;
+    table.setMaximumSize(maximumTableSize);
+  }
+
+
+  // Decodes a whole header block, returning the fields in order as { name, value } pairs
+  public List<String[]> decode(ByteBuf block) throws IOException
+  {
+    final List<String[]> fields = new ArrayList<>();
+    int listSize = 0;
+    boolean sizeUpdateAllowed = true;
+    while (block.isReadable())
+    {
+      final int first = block.getUnsignedByte(block.readerIndex());
+      final String[] field;
+      if ((first & 0x80) != 0)
+      {
+        // § 6.1: indexed header field
+        field = entry(Hpack.readInteger(block, 7));
+      }
+      else if ((first & 0x40) != 0)
+      {
+        // § 6.2.1: literal with incremental indexing
+        field = literal(block, 6);
+        table.add(field[0], field[1]);
+      }
+      else if ((first & 0x20) != 0)
+      {
+        // § 6.3: dynamic table size update, only allowed at the start of a block
+        final int size = Hpack.readInteger(block, 5);
+        if (!sizeUpdateAllowed || size > maximumTableSize)
+        {
+          throw new IOException("Invalid dynamic table size update");
+        }
+        table.setMaximumSize(size);
+        continue;
+      }
+      else
+      {
+        // § 6.2.2 and § 6.2.3: literal without indexing, or never indexed
+        field = literal(block, 4);
+      }
+      sizeUpdateAllowed = false;
+
+      listSize += Hpack.entrySize(field[0], field[1]);
+      if (listSize > maximumHeaderListSize)
+      {
+        throw new IOException("Header list too big");
+      }
+      fields.add(field);
+    }
+    return fields;
+  }
+
+
+  private String[] literal(ByteBuf block, int prefixBits) throws IOException
+  {
+    final int nameIndex = Hpack.readInteger(block, prefixBits);
+    final String name = nameIndex == 0 ? Hpack.readString(block) : entry(nameIndex)[0];
+    return new String[] { name, Hpack.readString(block) };
+  }
+
+
+  private String[] entry(int index) throws IOException
+  {
+    if (index == 0 || index > Hpack.STATIC_TABLE_LENGTH + table.length())
+    {
+      throw new IOException("Invalid header table index " + index);
+    }
+    return index <= Hpack.STATIC_TABLE_LENGTH ? Hpack.STATIC_TABLE[index]
+        : table.get(index - Hpack.STATIC_TABLE_LENGTH);
+  }
+}
@@ -0,0 +1,116 @@
+package net.jeffpoole.httpserver.parsing;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableSet;
+
+
+/**
+ * Encodes response headers as HPACK header blocks (RFC 7541).  Fields that match a static or dynamic
+ * table entry are sent as just its index.  Fields whose values repeat from response to response
+ * (server, content-type, vary, ...) are added to the dynamic table the first time, so later
+ * responses on the connection send them in a byte or two.  Per-response values (dates, lengths,
+ * etags) are sent as literals without indexing, so they don't push the useful entries out.
+ *
+ * The dynamic table mirrors the peer's decoder, so there is one encoder per connection and blocks
+ * have to be sent in the order they were encoded.
+ */
+public class HpackEncoder
+{
+  // Headers whose values are different for nearly every response
+  static final ImmutableSet<String> NOT_INDEXED = ImmutableSet.of(
+      "content-length", "content-range", "date", "etag", "last-modified");
+
+  // Exact matches from the static table (only :status has useful values), and the first static
+  // entry for each name
+  static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+  static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+  static
+  {
+    for (int i = Hpack.STATIC_TABLE_LENGTH; i >= 1; i--)
+    {
+      STATIC_NAMES.put(Hpack.STATIC_TABLE[i][0], i);
+      if (!Hpack.STATIC_TABLE[i][1].isEmpty())
+      {
+        STATIC_FIELDS.put(Hpack.STATIC_TABLE[i][0] + ":" + Hpack.STATIC_TABLE[i][1], i);
+      }
+    }
+  }
+
+  final Hpack.DynamicTable table = new Hpack.DynamicTable();
+  // A size change from the peer's SETTINGS_HEADER_TABLE_SIZE, to be signalled in the next block
+  int pendingSizeUpdate = -1;
+
+
+  // The peer's SETTINGS_HEADER_TABLE_SIZE; we never use more than the default of 4096
+  public void setMaximumTableSize(int size)
+  {
+    size = Math.min(size, Hpack.DEFAULT_TABLE_SIZE);
+    if (size != table.maximumSize)
+    {
+      table.setMaximumSize(size);
+      pendingSizeUpdate = size;
+    }
+  }
+
+
+  // Encodes one field onto the end of a block; names must already be lower case
+  public void encode(ByteBuf out, String name, String value)
+  {
+    if (pendingSizeUpdate >= 0)
+    {
+      Hpack.writeInteger(out, 0x20, 5, pendingSizeUpdate);
+      pendingSizeUpdate = -1;
+    }
+
+    final Integer staticField = STATIC_FIELDS.get(name + ":" + value);
+    if (staticField != null)
+    {
+      Hpack.writeInteger(out, 0x80, 7, staticField);
+      return;
+    }
+    int nameIndex = 0;
+    final boolean indexed = !NOT_INDEXED.contains(name);
+    if (indexed)
+    {
+      int index = Hpack.STATIC_TABLE_LENGTH;
+      for (String[] entry : table.entries)
+      {
+        index++;
+        if (entry[0].equals(name))
+        {
+          if (entry[1].equals(value))
+          {
+            Hpack.writeInteger(out, 0x80, 7, index);
+            return;
+          }
+          nameIndex = nameIndex == 0 ? index : nameIndex;
+        }
+      }
+    }
+    final Integer staticName = STATIC_NAMES.get(name);
+    if (staticName != null)
+    {
+      nameIndex = staticName;
+    }
+
+    if (indexed && Hpack.entrySize(name, value) <= table.maximumSize)
+    {
+      Hpack.writeInteger(out, 0x40, 6, nameIndex);
+      table.add(name, value);
+    }
+    else
+    {
+      Hpack.writeInteger(out, 0x00, 4, nameIndex);
+    }
+    if (nameIndex == 0)
+    {
+      Hpack.writeString(out, name);
+    }
+    Hpack.writeString(out, value);
+  }
+}
@@ -58,41 +58,11 @@ public class HttpRequest
 
   }
 
+  // Parses one complete request head from the buffer
   public static HttpRequest parse(ByteBuf buf) throws IOException
   {
-    String[] requestLine = getLine(buf).split("\\s+", 3);
-    if (requestLine.length < 3) throw new RuntimeException("Invalid request-line");
-    HttpHeaderProcessor hhp = new HttpHeaderProcessor();
-    while (hhp.processLine(getLine(buf))) /* condition is the body */;
-    return new HttpRequest(requestLine[0], requestLine[1], requestLine[2], hhp.getResult());
+    final HttpRequest request = new HttpRequestParser().parse(buf);
+    if (request == null) throw new IOException("Incomplete request");
+    return request;
   }
-
-  private static String getLine(ByteBuf buf)
-  {
-    final int eolPos = findEol(buf);
-    if (eolPos > -1)
-    {
-      if (eolPos == buf.readerIndex()) {
-        buf.skipBytes(2); // skip \r\n
-        return "";
-      }
-      final byte[] bytes = new byte[eolPos-buf.readerIndex()];
-      buf.readBytes(bytes);
-      buf.skipBytes(2); // skip \r\n
-      return new String(bytes, Charsets.UTF_8);
-    }
-    return "";
-  }
-
-  private static int findEol(final ByteBuf buf)
-  {
-    final int start = buf.readerIndex();
-    final int end = buf.writerIndex()-1;
-    for (int i = start; i<end; i++)
-    {
-      if (buf.getByte(i) == '\r' && buf.getByte(i+1) == '\n') return i;
-    }
-    return -1;
-  }
-
 }
@@ -0,0 +1,292 @@
+package net.jeffpoole.httpserver.parsing;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufProcessor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+
+
+/**
+ * An incremental HTTP/1.x request-head parser that works directly on the bytes in a ByteBuf.  Each
+ * complete line is consumed as soon as it is parsed, and how far the current (incomplete) line has
+ * been scanned is remembered, so partial reads never cause anything to be rescanned.
+ *
+ * Well-known methods, versions and header names are matched byte-by-byte against constants and
+ * returned as those constants, so the only Strings created are the target and header values.  Known
+ * header names are matched case-insensitively and always come back in their usual capitalization.
+ *
+ * One parser instance holds the state for one connection, so it is not thread-safe.
+ */
+public class HttpRequestParser
+{
+  // Anything bigger than this is an attack or a bug, not a GET request
+  static final int MAXIMUM_REQUEST_HEAD_SIZE = 64 * 1024;
+
+  static final String[] KNOWN_METHODS = {
+      "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "TRACE", "CONNECT", "PATCH" };
+
+  static final String[] KNOWN_VERSIONS = { "HTTP/1.1", "HTTP/1.0" };
+
+  static final String[] KNOWN_HEADER_NAMES = {
+      "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Authorization",
+      "Cache-Control", "Connection", "Content-Length", "Content-Type", "Cookie", "DNT", "Expect",
+      "From", "Host", "HTTP2-Settings", "If-Match", "If-Modified-Since", "If-None-Match", "If-Range",
+      "If-Unmodified-Since", "Keep-Alive", "Origin", "Pragma", "Range", "Referer", "TE",
+      "Transfer-Encoding", "Upgrade", "Upgrade-Insecure-Requests", "User-Agent", "Via",
+      "X-Forwarded-For", "X-Forwarded-Proto", "X-Requested-With" };
+
+  // Known header names grouped by length, so a lookup only compares against a couple of candidates
+  private static final String[][] HEADER_NAMES_BY_LENGTH;
+
+  static
+  {
+    int maxLength = 0;
+    for (String name : KNOWN_HEADER_NAMES)
+      maxLength = Math.max(maxLength, name.length());
+    HEADER_NAMES_BY_LENGTH = new String[maxLength + 1][0];
+    for (String name : KNOWN_HEADER_NAMES)
+    {
+      String[] current = HEADER_NAMES_BY_LENGTH[name.length()];
+      String[] grown = new String[current.length + 1];
+      System.arraycopy(current, 0, grown, 0, current.length);
+      grown[current.length] = name;
+      HEADER_NAMES_BY_LENGTH[name.length()] = grown;
+    }
+  }
+
+  private enum State { REQUEST_LINE, HEADERS }
+
+  private State state = State.REQUEST_LINE;
+  // How many bytes past the reader index have already been searched for the end of the line
+  private int scanned;
+  // How many bytes of the current request head have been consumed so far
+  private int headSize;
+  private String method;
+  private String target;
+  private String httpVersion;
+  private Map<String, String> headers;
+  // Reused for building Strings, so creating one doesn't need an intermediate decoding buffer
+  private char[] chars = new char[256];
+
+
+  /**
+   * Parses as much of a request head as the buffer holds.  Returns the request once its head is
+   * complete (leaving the reader index just past it), or null if more data is needed.
+   */
+  public HttpRequest parse(final ByteBuf buf) throws IOException
+  {
+    while (true)
+    {
+      final int lineStart = buf.readerIndex();
+      final int readable = buf.readableBytes();
+      final int lf = buf.forEachByte(lineStart + scanned, readable - scanned, ByteBufProcessor.FIND_LF);
+      if (lf < 0)
+      {
+        scanned = readable;
+        if (headSize + readable > MAXIMUM_REQUEST_HEAD_SIZE)
+          throw new IOException("Request head too large");
+        return null;
+      }
+      scanned = 0;
+      headSize += lf + 1 - lineStart;
+      if (headSize > MAXIMUM_REQUEST_HEAD_SIZE)
+        throw new IOException("Request head too large");
+
+      // Lines should end in CRLF, but a bare LF is accepted too, per RFC 7230 § 3.5
+      int lineEnd = lf;
+      if (lineEnd > lineStart && buf.getByte(lineEnd - 1) == '\r')
+        lineEnd--;
+
+      if (state == State.REQUEST_LINE)
+      {
+        // Empty lines before the request-line are ignored, per RFC 7230 § 3.5
+        if (lineEnd > lineStart)
+        {
+          parseRequestLine(buf, lineStart, lineEnd);
+          state = State.HEADERS;
+        }
+        buf.readerIndex(lf + 1);
+      }
+      else if (lineEnd == lineStart)
+      {
+        // an empty line ends the head
+        buf.readerIndex(lf + 1);
+        final HttpRequest request = new HttpRequest(method, target, httpVersion,
+            headers != null ? headers : new HashMap<>());
+        reset();
+        return request;
+      }
+      else
+      {
+        parseHeader(buf, lineStart, lineEnd);
+        buf.readerIndex(lf + 1);
+      }
+    }
+  }
+
+
+  private void reset()
+  {
+    state = State.REQUEST_LINE;
+    headSize = 0;
+    method = null;
+    target = null;
+    httpVersion = null;
+    headers = null;
+  }
+
+
+  private void parseRequestLine(final ByteBuf buf, final int start, final int end)
+      throws IOException
+  {
+    final int methodEnd = indexOfWhitespace(buf, start, end);
+    final int targetStart = skipWhitespace(buf, methodEnd, end);
+    final int targetEnd = indexOfWhitespace(buf, targetStart, end);
+    final int versionStart = skipWhitespace(buf, targetEnd, end);
+    final int versionEnd = trimEnd(buf, versionStart, end);
+    if (methodEnd == start || targetEnd == targetStart || versionEnd == versionStart)
+      throw new IOException("Invalid request-line");
+
+    method = known(KNOWN_METHODS, buf, start, methodEnd, false);
+    if (method == null)
+      method = string(buf, start, methodEnd);
+    target = targetString(buf, targetStart, targetEnd);
+    httpVersion = known(KNOWN_VERSIONS, buf, versionStart, versionEnd, false);
+    if (httpVersion == null)
+      httpVersion = string(buf, versionStart, versionEnd);
+  }
+
+
+  private void parseHeader(final ByteBuf buf, final int start, final int end) throws IOException
+  {
+    // No point supporting line continuation, since they are obsolete per RFC 7230 § 3.2.4
+    if (isWhitespace(buf.getByte(start)))
+      throw new IOException("Header continuation lines not supported");
+
+    final int colon = buf.indexOf(start, end, (byte) ':');
+    if (colon < 0)
+      throw new IOException("Invalid header line missing ':'");
+    if (colon == start || isWhitespace(buf.getByte(colon - 1)))
+      throw new IOException("Whitespace after header key not allowed");
+
+    final int nameLength = colon - start;
+    String fieldName = null;
+    if (nameLength < HEADER_NAMES_BY_LENGTH.length)
+      fieldName = known(HEADER_NAMES_BY_LENGTH[nameLength], buf, start, colon, true);
+    if (fieldName == null)
+      fieldName = string(buf, start, colon);
+
+    final int valueStart = skipWhitespace(buf, colon + 1, end);
+    String fieldValue = string(buf, valueStart, trimEnd(buf, valueStart, end));
+
+    if (headers == null)
+      headers = new HashMap<>();
+    // We will support repeated headers as if they contain a comma-separated list per RFC 7230 § 3.2.2
+    final String previous = headers.get(fieldName);
+    if (previous != null)
+      fieldValue = previous + "," + fieldValue;
+    headers.put(fieldName, fieldValue);
+  }
+
+
+  private static String known(final String[] candidates, final ByteBuf buf, final int start,
+      final int end, final boolean ignoreCase)
+  {
+    final int length = end - start;
+    candidateLoop:
+    for (String candidate : candidates)
+    {
+      if (candidate.length() != length)
+        continue;
+      for (int i = 0; i < length; i++)
+      {
+        int b = buf.getByte(start + i);
+        int c = candidate.charAt(i);
+        if (b != c && !(ignoreCase && toLowerCase(b) == toLowerCase(c)))
+          continue candidateLoop;
+      }
+      return candidate;
+    }
+    return null;
+  }
+
+
+  // The usual capitalization of a header name, or null if it isn't one of the known ones
+  public static String knownHeaderName(final String name)
+  {
+    if (name.length() >= HEADER_NAMES_BY_LENGTH.length)
+      return null;
+    for (String candidate : HEADER_NAMES_BY_LENGTH[name.length()])
+    {
+      if (candidate.equalsIgnoreCase(name))
+        return candidate;
+    }
+    return null;
+  }
+
+
+  // Header values are treated as ISO-8859-1, since RFC 7230 § 3.2.4 says other octets are opaque
+  private String string(final ByteBuf buf, final int start, final int end)
+  {
+    final int length = end - start;
+    if (chars.length < length)
+      chars = new char[Math.max(length, chars.length * 2)];
+    for (int i = 0; i < length; i++)
+    {
+      chars[i] = (char) (buf.getByte(start + i) & 0xFF);
+    }
+    return new String(chars, 0, length);
+  }
+
+
+  // Targets are normally plain ASCII, but some clients send raw UTF-8 rather than percent-encoding
+  private String targetString(final ByteBuf buf, final int start, final int end)
+  {
+    for (int i = start; i < end; i++)
+    {
+      if (buf.getByte(i) < 0)
+        return buf.toString(start, end - start, Charsets.UTF_8);
+    }
+    return string(buf, start, end);
+  }
+
+
+  private static int indexOfWhitespace(final ByteBuf buf, int index, final int end)
+  {
+    while (index < end && !isWhitespace(buf.getByte(index)))
+      index++;
+    return index;
+  }
+
+
+  private static int skipWhitespace(final ByteBuf buf, int index, final int end)
+  {
+    while (index < end && isWhitespace(buf.getByte(index)))
+      index++;
+    return index;
+  }
+
+
+  private static int trimEnd(final ByteBuf buf, final int start, int end)
+  {
+    while (end > start && isWhitespace(buf.getByte(end - 1)))
+      end--;
+    return end;
+  }
+
+
+  private static boolean isWhitespace(final byte b)
+  {
+    return b == ' ' || b == '\t';
+  }
+
+
+  private static int toLowerCase(final int c)
+  {
+    return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+  }
+}
@@ -1,5 +1,6 @@
 package net.jeffpoole.httpserver.parsing;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import lombok.Value;
@@ -29,6 +30,21 @@ public class HttpResponse
     return new HttpResponse("HTTP/1.1", 200, "OK", headers, resource);
   }
 
+  public static HttpResponse partialContent(DataResource resource, Map<String,String> headers,
+      HttpRequest req)
+  {
+    addDefaultHeaders(headers, req);
+    return new HttpResponse("HTTP/1.1", 206, "Partial Content", headers, resource);
+  }
+
+  // Content-Length is left off, since there is no body and it would otherwise describe the
+  // representation that wasn't sent
+  public static HttpResponse notModified(Map<String,String> headers, HttpRequest req)
+  {
+    addConnectionHeaders(headers, req);
+    return new HttpResponse("HTTP/1.1", 304, "Not Modified", headers, DataResource.NO_DATA);
+  }
+
   public static HttpResponse notFound(Map<String,String> headers, HttpRequest req)
   {
     addDefaultHeaders(headers, req);
@@ -41,17 +57,40 @@ public class HttpResponse
     return new HttpResponse("HTTP/1.1", 400, "Bad Request", headers, DataResource.NO_DATA);
   }
 
+  public static HttpResponse rangeNotSatisfiable(Map<String,String> headers, HttpRequest req)
+  {
+    addDefaultHeaders(headers, req);
+    return new HttpResponse("HTTP/1.1", 416, "Range Not Satisfiable", headers, DataResource.NO_DATA);
+  }
+
   public static HttpResponse notImplemented(Map<String,String> headers, HttpRequest req)
   {
     addDefaultHeaders(headers, req);
     return new HttpResponse("HTTP/1.1", 501, "Not Implemented", headers, DataResource.NO_DATA);
   }
 
+  // The same response, but telling the client the connection will be closed after it
+  public HttpResponse withConnectionClose()
+  {
+    if ("close".equals(headers.get("Connection")))
+      return this;
+    final Map<String,String> closeHeaders = new HashMap<>(headers);
+    closeHeaders.put("Connection", "close");
+    return new HttpResponse(httpVersion, statusCode, statusReason, closeHeaders, resource);
+  }
+
   private static void addDefaultHeaders(Map<String,String> headers, HttpRequest req)
   {
-    // This should only be the case for HEAD requests
-    if (!headers.containsKey("Content-Length")) headers.put("Content-Length", "0");
+    // This should only be the case for HEAD requests (or bodies sent with Transfer-Encoding, which
+    // MUST NOT have a Content-Length, per https://tools.ietf.org/html/rfc7230#section-3.3.2)
+    if (!headers.containsKey("Content-Length") && !headers.containsKey("Transfer-Encoding"))
+      headers.put("Content-Length", "0");
+
+    addConnectionHeaders(headers, req);
+  }
 
+  private static void addConnectionHeaders(Map<String,String> headers, HttpRequest req)
+  {
     if (!headers.containsKey("Server")) headers.put("Server", "jeffpoole-adobe");
 
     // Everything below here is to determine what Connection header we should send
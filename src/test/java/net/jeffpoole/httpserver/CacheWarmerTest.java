@@ -0,0 +1,70 @@
+package net.jeffpoole.httpserver;
+
+import static org.junit.Assert.*;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+
+import net.jeffpoole.httpserver.datasource.FileDataSource;
+import net.jeffpoole.httpserver.netty.ContentCache;
+
+
+public class CacheWarmerTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+
+  @Test
+  public void testReadPaths() throws Exception
+  {
+    final Path file = folder.newFile("access.log").toPath();
+    Files.write(file, Arrays.asList(
+        "127.0.0.1 - - [10/Oct/2015:13:55:36 -0700] \"GET /a.html HTTP/1.1\" 200 2326",
+        "127.0.0.1 - - [10/Oct/2015:13:55:37 -0700] \"GET /b.css HTTP/1.1\" 200 12 \"-\" \"curl\"",
+        "127.0.0.1 - - [10/Oct/2015:13:55:38 -0700] \"GET /b.css HTTP/1.1\" 304 0",
+        "127.0.0.1 - - [10/Oct/2015:13:55:39 -0700] \"GET /missing HTTP/1.1\" 404 0",
+        "127.0.0.1 - - [10/Oct/2015:13:55:39 -0700] \"GET /missing HTTP/1.1\" 404 0",
+        "127.0.0.1 - - [10/Oct/2015:13:55:40 -0700] \"POST /form HTTP/1.1\" 200 0",
+        "",
+        "/c.js",
+        "/a.html"), Charsets.UTF_8);
+
+    assertEquals(Arrays.asList("/a.html", "/b.css", "/c.js"), CacheWarmer.readPaths(file));
+  }
+
+
+  @Test
+  public void testWarm() throws Exception
+  {
+    final Path root = folder.newFolder("root").toPath();
+    final byte[] small = new byte[100];
+    Files.write(root.resolve("small"), small);
+    Files.write(root.resolve("big"), new byte[5000]);
+    Files.write(root.resolve("last"), small);
+    final ContentCache cache = new ContentCache(UnpooledByteBufAllocator.DEFAULT, 1024 * 1024, 1000);
+
+    // the big one is read but doesn't fit in the content cache, and the last is over budget
+    final CacheWarmer warmer = new CacheWarmer(new FileDataSource(root), cache, 5150, 10000, 1);
+    assertEquals(5100, warmer.warm(Arrays.asList("/small", "/big", "/missing", "/last")));
+
+    final File smallFile = root.resolve("small").toFile();
+    final ByteBuf cached = cache.get(smallFile, smallFile.lastModified());
+    assertNotNull(cached);
+    assertEquals(100, cached.readableBytes());
+    cached.release();
+    final File lastFile = root.resolve("last").toFile();
+    assertNull(cache.get(lastFile, lastFile.lastModified()));
+  }
+}
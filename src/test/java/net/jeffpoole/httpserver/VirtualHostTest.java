@@ -0,0 +1,67 @@
+package net.jeffpoole.httpserver;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+
+
+public class VirtualHostTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+
+  @Test
+  public void testRead() throws Exception
+  {
+    final Path file = folder.newFile("hosts").toPath();
+    Files.write(file, Arrays.asList(
+        "# names                        root            settings",
+        "example.com,www.example.com    /srv/example    resourceCacheSize=2000",
+        "",
+        "*.blog.example.org  blogs  compressionCacheBytes=0 resourceCacheSize=10"), Charsets.UTF_8);
+    final ServerConfig config = ServerConfig.builder().resourceCacheSize(500)
+        .compressionCacheBytes(1000).build();
+
+    final List<VirtualHost> hosts = VirtualHost.read(file, config);
+    assertEquals(2, hosts.size());
+    assertEquals(new VirtualHost(Arrays.asList("example.com", "www.example.com"),
+        Paths.get("/srv/example"), 2000, 1000), hosts.get(0));
+    assertEquals(new VirtualHost(Arrays.asList("*.blog.example.org"),
+        folder.getRoot().toPath().resolve("blogs"), 10, 0), hosts.get(1));
+  }
+
+
+  @Test
+  public void testInvalidLines() throws Exception
+  {
+    final Path file = folder.newFile("hosts").toPath();
+    for (String line : new String[] {
+        "example.com",
+        "example.com /srv/example resourceCacheSize=lots",
+        "example.com /srv/example contentCacheBytes=1" })
+    {
+      Files.write(file, Arrays.asList(line), Charsets.UTF_8);
+      try
+      {
+        VirtualHost.read(file, ServerConfig.builder().build());
+        fail("Read [" + line + "]");
+      }
+      catch (IOException e)
+      {
+        // expected
+      }
+    }
+  }
+}
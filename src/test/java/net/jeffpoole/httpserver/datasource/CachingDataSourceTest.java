@@ -0,0 +1,164 @@
+package net.jeffpoole.httpserver.datasource;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+
+import net.jeffpoole.httpserver.data.FileBlob;
+
+
+public class CachingDataSourceTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  DataSource delegate;
+  CachingDataSource cds;
+  File file;
+
+
+  @Before
+  public void setUp() throws Exception
+  {
+    file = folder.newFile("file.txt");
+    Files.write(file.toPath(), "abc\n".getBytes(Charsets.UTF_8));
+    delegate = mock(DataSource.class);
+    when(delegate.get("/file.txt")).thenReturn(new DataResource(
+        file.getPath(), true, "abc", Instant.now(), "text/plain", Optional.of(4L),
+        new FileBlob(file)));
+    when(delegate.get("/notfound")).thenReturn(DataResource.NO_DATA);
+    cds = new CachingDataSource(delegate, folder.getRoot().toPath(), 100);
+  }
+
+
+  @After
+  public void tearDown() throws Exception
+  {
+    cds.close();
+  }
+
+
+  @Test
+  public void testRepeatHitsAreCached() throws Exception
+  {
+    assertTrue(cds.get("/file.txt").isPresent());
+    assertTrue(cds.get("/file.txt").isPresent());
+    verify(delegate, times(1)).get("/file.txt");
+
+    // misses always go to the underlying source
+    assertFalse(cds.get("/notfound").isPresent());
+    assertFalse(cds.get("/notfound").isPresent());
+    verify(delegate, times(2)).get("/notfound");
+  }
+
+
+  @Test
+  public void testChangeInvalidates() throws Exception
+  {
+    cds.get("/file.txt");
+    Files.write(file.toPath(), "changed\n".getBytes(Charsets.UTF_8));
+
+    // the watcher runs on its own thread, so give it a little while to notice
+    long deadline = System.currentTimeMillis() + 10000;
+    while (System.currentTimeMillis() < deadline && cds.cache.size() > 0)
+    {
+      Thread.sleep(20);
+    }
+    cds.get("/file.txt");
+    verify(delegate, times(2)).get("/file.txt");
+  }
+
+
+  @Test
+  public void testNewFileIsFoundAfterNotFound() throws Exception
+  {
+    // remembered as not found for far longer than the test waits
+    final Path root = folder.getRoot().toPath();
+    final CachingDataSource files =
+        new CachingDataSource(new FileDataSource(root, 100, 1024, 1024, 100, 600), root, 100);
+    try
+    {
+      assertFalse(files.get("/late.txt").isPresent());
+      Files.write(folder.getRoot().toPath().resolve("late.txt"), "late".getBytes(Charsets.UTF_8));
+
+      long deadline = System.currentTimeMillis() + 10000;
+      while (System.currentTimeMillis() < deadline && !files.get("/late.txt").isPresent())
+      {
+        Thread.sleep(20);
+      }
+      assertTrue(files.get("/late.txt").isPresent());
+    }
+    finally
+    {
+      files.close();
+    }
+  }
+
+
+  @Test
+  public void testChangesDontForgetWhatIsMissing() throws Exception
+  {
+    final FileDataSource files =
+        spy(new FileDataSource(folder.getRoot().toPath(), 100, 1024, 1024, 100, 600));
+    final CachingDataSource caching =
+        new CachingDataSource(files, folder.getRoot().toPath(), 100);
+    try
+    {
+      assertFalse(caching.get("/missing.txt").isPresent());
+      // rewriting a file that's there can't make anything appear
+      Files.write(file.toPath(), "changed\n".getBytes(Charsets.UTF_8));
+      Files.write(folder.getRoot().toPath().resolve("new.txt"), "new".getBytes(Charsets.UTF_8));
+
+      // the creation is reported once the watcher gets to it
+      verify(files, timeout(10000)).created(folder.getRoot().toPath().resolve("new.txt"));
+      verify(files, never()).created(file.toPath());
+      verify(files, never()).created(null);
+    }
+    finally
+    {
+      caching.close();
+    }
+  }
+
+
+  @Test
+  public void testInvalidationIsIndexed() throws Exception
+  {
+    final String root = folder.getRoot().getPath();
+    for (String path : new String[] {"/dir", "/dir/a.txt", "/dir/sub/b.txt", "/dir-2/c.txt"})
+    {
+      when(delegate.get(path)).thenReturn(new DataResource(root + path, true, "abc",
+          Instant.now(), "text/plain", Optional.of(4L), new FileBlob(file)));
+      assertTrue(cds.get(path).isPresent());
+    }
+
+    // a change inside the directory drops the listing and what changed, and nothing else
+    cds.invalidate(folder.getRoot().toPath().resolve("dir/a.txt"));
+    assertNull(cds.cache.getIfPresent("/dir"));
+    assertNull(cds.cache.getIfPresent("/dir/a.txt"));
+    assertNotNull(cds.cache.getIfPresent("/dir/sub/b.txt"));
+    assertNotNull(cds.cache.getIfPresent("/dir-2/c.txt"));
+
+    // and a change to the directory drops everything inside it, but not a neighbour's
+    cds.invalidate(folder.getRoot().toPath().resolve("dir"));
+    assertNull(cds.cache.getIfPresent("/dir/sub/b.txt"));
+    assertNotNull(cds.cache.getIfPresent("/dir-2/c.txt"));
+
+    // whatever leaves the cache leaves the index too
+    cds.cache.invalidateAll();
+    assertTrue(cds.byPath.isEmpty());
+  }
+}
@@ -0,0 +1,123 @@
+package net.jeffpoole.httpserver.datasource;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class CoalescingDataSourceTest
+{
+  final ExecutorService executor = Executors.newCachedThreadPool();
+  final AtomicInteger loads = new AtomicInteger();
+  final CountDownLatch started = new CountDownLatch(1);
+  final CountDownLatch release = new CountDownLatch(1);
+
+  // Counts loads, and holds the first one up until released
+  final DataSource delegate = path -> {
+    if (loads.incrementAndGet() == 1)
+    {
+      started.countDown();
+      try
+      {
+        release.await();
+      }
+      catch (InterruptedException e)
+      {
+        throw new IllegalStateException(e);
+      }
+    }
+    if (path.equals("/broken"))
+    {
+      throw new IllegalStateException("broken");
+    }
+    return DataResource.NO_DATA.withPath(path);
+  };
+  final CoalescingDataSource cds = new CoalescingDataSource(delegate);
+
+
+  @After
+  public void tearDown() throws Exception
+  {
+    executor.shutdownNow();
+  }
+
+
+  // Starts a load that blocks, then asks for the same path from the other threads while it's going
+  private List<Future<DataResource>> concurrentGets(String path, int threads) throws Exception
+  {
+    final List<Future<DataResource>> results = new ArrayList<>();
+    results.add(executor.submit(() -> cds.get(path)));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    for (int i = 1; i < threads; i++)
+    {
+      results.add(executor.submit(() -> cds.get(path)));
+    }
+    // give the others a moment to find the load in progress
+    Thread.sleep(200);
+    release.countDown();
+    return results;
+  }
+
+
+  @Test
+  public void testConcurrentLoadsAreShared() throws Exception
+  {
+    final List<Future<DataResource>> results = concurrentGets("/a", 8);
+    final DataResource first = results.get(0).get(5, TimeUnit.SECONDS);
+    for (Future<DataResource> result : results)
+    {
+      assertSame(first, result.get(5, TimeUnit.SECONDS));
+    }
+    assertEquals(1, loads.get());
+    assertTrue(cds.inFlight.isEmpty());
+
+    // and once it's done, the next lookup loads again
+    assertEquals("/a", cds.get("/a").getPath());
+    assertEquals(2, loads.get());
+  }
+
+
+  @Test
+  public void testFailuresAreShared() throws Exception
+  {
+    for (Future<DataResource> result : concurrentGets("/broken", 4))
+    {
+      try
+      {
+        result.get(5, TimeUnit.SECONDS);
+        fail("Loaded /broken");
+      }
+      catch (ExecutionException e)
+      {
+        assertEquals("broken", e.getCause().getMessage());
+      }
+    }
+    assertEquals(1, loads.get());
+    assertTrue(cds.inFlight.isEmpty());
+  }
+
+
+  @Test
+  public void testForget() throws Exception
+  {
+    final Future<DataResource> before = executor.submit(() -> cds.get("/a"));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    cds.forget();
+    // a lookup after forget() doesn't wait for the one already going
+    assertEquals("/a", cds.get("/a").getPath());
+    assertEquals(2, loads.get());
+    release.countDown();
+    assertEquals("/a", before.get(5, TimeUnit.SECONDS).getPath());
+  }
+}
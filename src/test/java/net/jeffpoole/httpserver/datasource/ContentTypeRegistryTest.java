@@ -0,0 +1,43 @@
+package net.jeffpoole.httpserver.datasource;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+
+
+public class ContentTypeRegistryTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  ContentTypeRegistry registry = new ContentTypeRegistry(100);
+
+
+  @Test
+  public void testKnownExtension() throws Exception
+  {
+    assertEquals("text/html", registry.contentTypeFor(Paths.get("/a/index.html"), 0));
+    assertEquals("image/png", registry.contentTypeFor(Paths.get("/a/LOGO.PNG"), 0));
+    assertEquals(0, registry.detected.size());
+  }
+
+
+  @Test
+  public void testUnknownExtensionIsDetectedOnce() throws Exception
+  {
+    File file = folder.newFile("README");
+    Files.write(file.toPath(), "just some text\n".getBytes(Charsets.UTF_8));
+
+    assertEquals("text/plain", registry.contentTypeFor(file.toPath(), file.lastModified()));
+    assertEquals("text/plain", registry.contentTypeFor(file.toPath(), file.lastModified()));
+    assertEquals(1, registry.detected.size());
+  }
+}
@@ -2,16 +2,21 @@ package net.jeffpoole.httpserver.datasource;
 
 import static org.junit.Assert.*;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import lombok.extern.slf4j.Slf4j;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.google.common.base.Charsets;
 
 import net.jeffpoole.httpserver.data.ByteArrayBlob;
+import net.jeffpoole.httpserver.data.DirectoryListingBlob;
 import net.jeffpoole.httpserver.datasource.DataResource;
 import net.jeffpoole.httpserver.datasource.FileDataSource;
 
@@ -23,6 +28,9 @@ import net.jeffpoole.httpserver.datasource.FileDataSource;
 public class FileDataSourceTest
 {
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   FileDataSource fds;
   @Before
   public void setUp() throws Exception
@@ -50,4 +58,109 @@ public class FileDataSourceTest
     String content = new String(((ByteArrayBlob)res.getData()).getBytes(), Charsets.UTF_8);
     assertTrue(content.contains("jeffpoole/"));
   }
+
+
+  @Test
+  public void testDirectoryListings() throws Exception
+  {
+    final Path root = folder.getRoot().toPath();
+    Files.createDirectory(root.resolve("dir"));
+    for (int i = 0; i < 100; i++)
+    {
+      Files.createFile(root.resolve("dir").resolve("file" + i));
+    }
+    Files.createDirectory(root.resolve("dir").resolve("sub"));
+    Files.createFile(root.resolve("dir").resolve(".hidden"));
+
+    // rendered once, then reused until the directory changes
+    fds = new FileDataSource(root);
+    final DataResource listing = fds.get("/dir");
+    assertTrue(listing.getData() instanceof ByteArrayBlob);
+    final String content = new String(listing.getData().getBytes(), Charsets.UTF_8);
+    assertTrue(content.contains("<li><a href=\"/dir/file7\">/dir/file7</a></li>"));
+    assertTrue(content.contains("<li><a href=\"/dir/sub/\">/dir/sub/</a></li>"));
+    assertFalse(content.contains(".hidden"));
+    assertSame(listing.getData().getBytes(), fds.get("/dir").getData().getBytes());
+    assertNotEquals(listing.getEtag(), fds.get("/dir/").getEtag());
+
+    // too big to keep, so it's streamed instead
+    fds = new FileDataSource(root, 10000, 1000, 1024 * 1024, 10000, 5);
+    final DataResource streamed = fds.get("/dir");
+    assertTrue(streamed.getData() instanceof DirectoryListingBlob);
+    assertFalse(streamed.getSize().isPresent());
+    assertEquals(listing.getEtag(), streamed.getEtag());
+    assertEquals(content, new String(streamed.getData().getBytes(), Charsets.UTF_8));
+  }
+
+
+  @Test
+  public void testPathsOutsideTheRootAreNotFound() throws Exception
+  {
+    final Path root = folder.newFolder("root").toPath();
+    Files.write(root.resolve("inside.txt"), "inside".getBytes(Charsets.UTF_8));
+    Files.write(folder.getRoot().toPath().resolve("outside.txt"), "outside".getBytes(Charsets.UTF_8));
+    fds = new FileDataSource(root);
+
+    assertTrue(fds.get("/inside.txt").isPresent());
+    assertTrue(fds.get("/inside.txt?query=1").isPresent());
+    assertFalse(fds.get("/x/%2e%2e/%2e%2e/outside.txt").isPresent());
+    assertFalse(fds.get("/..%2foutside.txt").isPresent());
+    try
+    {
+      fds.get("/x/../../outside.txt");
+      fail("Expected the path to be rejected");
+    }
+    catch (RuntimeException e)
+    {
+      assertEquals("Invalid path", e.getMessage());
+    }
+  }
+
+
+  @Test
+  public void testNotFoundIsRemembered() throws Exception
+  {
+    final Path root = folder.getRoot().toPath();
+    fds = new FileDataSource(root);
+    assertFalse(fds.get("/late.txt").isPresent());
+
+    // still not found until it expires or its creation is reported
+    Files.write(root.resolve("late.txt"), "late".getBytes(Charsets.UTF_8));
+    assertFalse(fds.get("/late.txt").isPresent());
+    fds.created(root.resolve("late.txt"));
+    final DataResource found = fds.get("/late.txt");
+    assertTrue(found.isPresent());
+    assertEquals(4L, (long) found.getSize().get());
+    assertEquals(fds.calculateEtag(root.resolve("late.txt"),
+        Files.getLastModifiedTime(root.resolve("late.txt")).toMillis()), found.getEtag());
+  }
+
+
+  @Test
+  public void testCreationOnlyForgetsWhatItCovers() throws Exception
+  {
+    final Path root = folder.getRoot().toPath();
+    fds = new FileDataSource(root);
+    assertFalse(fds.get("/a.txt").isPresent());
+    assertFalse(fds.get("/b.txt").isPresent());
+    assertFalse(fds.get("/dir/c.txt").isPresent());
+    Files.write(root.resolve("a.txt"), "a".getBytes(Charsets.UTF_8));
+    Files.write(root.resolve("b.txt"), "b".getBytes(Charsets.UTF_8));
+    Files.createDirectory(root.resolve("dir"));
+    Files.write(root.resolve("dir/c.txt"), "c".getBytes(Charsets.UTF_8));
+
+    fds.created(root.resolve("a.txt"));
+    assertTrue(fds.get("/a.txt").isPresent());
+    assertFalse(fds.get("/b.txt").isPresent());
+    assertFalse(fds.get("/dir/c.txt").isPresent());
+
+    // a new directory covers everything under it
+    fds.created(root.resolve("dir"));
+    assertTrue(fds.get("/dir/c.txt").isPresent());
+    assertFalse(fds.get("/b.txt").isPresent());
+
+    // and without a path, anything could have appeared
+    fds.created(null);
+    assertTrue(fds.get("/b.txt").isPresent());
+  }
 }
@@ -3,8 +3,10 @@ package net.jeffpoole.httpserver.logic;
 import static org.mockito.Mockito.*;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.time.Instant;
 import java.util.Optional;
+import java.util.zip.GZIPInputStream;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -12,6 +14,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
 
 import net.jeffpoole.httpserver.data.ByteArrayBlob;
 import net.jeffpoole.httpserver.datasource.DataResource;
@@ -55,6 +59,12 @@ public class HttpServerTest
       "\r\n";
 
 
+  static final String REQUEST_GET_TXT_CONDITIONAL = "GET /file.txt HTTP/1.1\r\n" +
+      "Host: www.example.com\r\n" +
+      "%s: %s\r\n" +
+      "\r\n";
+
+
   @Before
   public void setUp() throws Exception
   {
@@ -63,7 +73,7 @@ public class HttpServerTest
         "/file.txt",
         true,
         "abc",
-        Instant.now(),
+        Instant.parse("2015-09-06T10:15:30.00Z"),
         "text/plain",
         Optional.of(4L),
         new ByteArrayBlob("abc\n".getBytes(Charsets.UTF_8))
@@ -111,4 +121,168 @@ public class HttpServerTest
   }
 
 
+  @Test
+  public void testRespondNotModified() throws Exception
+  {
+    HttpResponse matched = server.respond(HttpRequest.parse(
+        String.format(REQUEST_GET_TXT_CONDITIONAL, "If-None-Match", "\"xyz\", W/\"abc\"")));
+    assertEquals(304, matched.getStatusCode());
+    assertEquals("\"abc\"", matched.getHeaders().get("ETag"));
+    assertNull(matched.getResource().getData());
+    assertFalse(matched.getHeaders().containsKey("Content-Length"));
+
+    HttpResponse notMatched = server.respond(HttpRequest.parse(
+        String.format(REQUEST_GET_TXT_CONDITIONAL, "If-None-Match", "\"xyz\"")));
+    assertEquals(200, notMatched.getStatusCode());
+
+    HttpResponse notModifiedSince = server.respond(HttpRequest.parse(
+        String.format(REQUEST_GET_TXT_CONDITIONAL, "If-Modified-Since",
+            "Sun, 06 Sep 2015 10:15:30 GMT")));
+    assertEquals(304, notModifiedSince.getStatusCode());
+
+    HttpResponse modifiedSince = server.respond(HttpRequest.parse(
+        String.format(REQUEST_GET_TXT_CONDITIONAL, "If-Modified-Since",
+            "Sat, 05 Sep 2015 10:15:30 GMT")));
+    assertEquals(200, modifiedSince.getStatusCode());
+  }
+
+
+  @Test
+  public void testRespondRange() throws Exception
+  {
+    HttpResponse single = server.respond(HttpRequest.parse(
+        String.format(REQUEST_GET_TXT_CONDITIONAL, "Range", "bytes=1-2")));
+    assertEquals(206, single.getStatusCode());
+    assertEquals("bytes 1-2/4", single.getHeaders().get("Content-Range"));
+    assertEquals("2", single.getHeaders().get("Content-Length"));
+    assertEquals("bc", new String(single.getResource().getData().getBytes(), Charsets.UTF_8));
+
+    HttpResponse suffix = server.respond(HttpRequest.parse(
+        String.format(REQUEST_GET_TXT_CONDITIONAL, "Range", "bytes=-1")));
+    assertEquals("bytes 3-3/4", suffix.getHeaders().get("Content-Range"));
+
+    HttpResponse multiple = server.respond(HttpRequest.parse(
+        String.format(REQUEST_GET_TXT_CONDITIONAL, "Range", "bytes=0-0,2-")));
+    assertEquals(206, multiple.getStatusCode());
+    assertTrue(multiple.getHeaders().get("Content-Type").startsWith("multipart/byteranges"));
+    String body = new String(multiple.getResource().getData().getBytes(), Charsets.UTF_8);
+    assertTrue(body.contains("Content-Range: bytes 0-0/4\r\n\r\na"));
+    assertTrue(body.contains("Content-Range: bytes 2-3/4\r\n\r\nc\n"));
+    assertEquals(String.valueOf(body.length()), multiple.getHeaders().get("Content-Length"));
+
+    HttpResponse unsatisfiable = server.respond(HttpRequest.parse(
+        String.format(REQUEST_GET_TXT_CONDITIONAL, "Range", "bytes=10-")));
+    assertEquals(416, unsatisfiable.getStatusCode());
+    assertEquals("bytes */4", unsatisfiable.getHeaders().get("Content-Range"));
+
+    HttpResponse invalid = server.respond(HttpRequest.parse(
+        String.format(REQUEST_GET_TXT_CONDITIONAL, "Range", "lines=1-2")));
+    assertEquals(200, invalid.getStatusCode());
+  }
+
+
+  @Test
+  public void testRespondIfRange() throws Exception
+  {
+    HttpResponse matched = server.respond(HttpRequest.parse(
+        "GET /file.txt HTTP/1.1\r\nRange: bytes=1-2\r\nIf-Range: \"abc\"\r\n\r\n"));
+    assertEquals(206, matched.getStatusCode());
+
+    HttpResponse changed = server.respond(HttpRequest.parse(
+        "GET /file.txt HTTP/1.1\r\nRange: bytes=1-2\r\nIf-Range: \"old\"\r\n\r\n"));
+    assertEquals(200, changed.getStatusCode());
+  }
+
+
+  @Test
+  public void testRespondGzip() throws Exception
+  {
+    final byte[] text = Strings.repeat("compressible text\n", 100).getBytes(Charsets.UTF_8);
+    when(dataSource.get("/big.txt")).thenReturn(new DataResource("/big.txt", true, "big",
+        Instant.parse("2015-09-06T10:15:30.00Z"), "text/plain", Optional.of((long) text.length),
+        new ByteArrayBlob(text)));
+    when(dataSource.get("/big.txt.gz")).thenReturn(new DataResource("/big.txt.gz", false, null,
+        null, null, Optional.<Long> empty(), null));
+    server = new HttpServer(dataSource, new CompressedVariants(1024 * 1024, 1024 * 1024));
+
+    HttpResponse gzipped = server.respond(HttpRequest.parse(
+        "GET /big.txt HTTP/1.1\r\nAccept-Encoding: deflate, gzip\r\n\r\n"));
+    assertEquals(200, gzipped.getStatusCode());
+    assertEquals("gzip", gzipped.getHeaders().get("Content-Encoding"));
+    assertEquals("Accept-Encoding", gzipped.getHeaders().get("Vary"));
+    assertEquals("\"big-gzip\"", gzipped.getHeaders().get("ETag"));
+    final byte[] compressed = gzipped.getResource().getData().getBytes();
+    assertEquals(String.valueOf(compressed.length), gzipped.getHeaders().get("Content-Length"));
+    assertArrayEquals(text,
+        ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+
+    HttpResponse identity = server.respond(HttpRequest.parse(
+        "GET /big.txt HTTP/1.1\r\nAccept-Encoding: gzip;q=0\r\n\r\n"));
+    assertNull(identity.getHeaders().get("Content-Encoding"));
+    assertEquals("Accept-Encoding", identity.getHeaders().get("Vary"));
+    assertEquals("\"big\"", identity.getHeaders().get("ETag"));
+
+    HttpResponse notModified = server.respond(HttpRequest.parse(
+        "GET /big.txt HTTP/1.1\r\nAccept-Encoding: gzip\r\nIf-None-Match: \"big-gzip\"\r\n\r\n"));
+    assertEquals(304, notModified.getStatusCode());
+    assertEquals("\"big-gzip\"", notModified.getHeaders().get("ETag"));
+
+    // too small to be worth compressing
+    when(dataSource.get("/file.txt.gz")).thenReturn(DataResource.NO_DATA);
+    HttpResponse small = server.respond(HttpRequest.parse(
+        "GET /file.txt HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n"));
+    assertEquals(200, small.getStatusCode());
+    assertNull(small.getHeaders().get("Content-Encoding"));
+    assertEquals("\"abc\"", small.getHeaders().get("ETag"));
+    assertEquals("abc\n", new String(small.getResource().getData().getBytes(), Charsets.UTF_8));
+  }
+
+
+  @Test
+  public void testRespondGzipSidecar() throws Exception
+  {
+    final Instant modified = Instant.parse("2015-09-06T10:15:30.00Z");
+    final byte[] gzipped = "not really gzip".getBytes(Charsets.UTF_8);
+    when(dataSource.get("/app.js")).thenReturn(new DataResource("/app.js", true, "app", modified,
+        "application/javascript", Optional.of(1000L), new ByteArrayBlob(new byte[1000])));
+    when(dataSource.get("/app.js.gz")).thenReturn(new DataResource("/app.js.gz", true, "side",
+        modified.plusSeconds(1), "application/gzip", Optional.of((long) gzipped.length),
+        new ByteArrayBlob(gzipped)));
+    server = new HttpServer(dataSource, new CompressedVariants(1024 * 1024, 1024 * 1024));
+
+    HttpResponse response = server.respond(HttpRequest.parse(
+        "GET /app.js HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n"));
+    assertEquals(200, response.getStatusCode());
+    assertEquals("gzip", response.getHeaders().get("Content-Encoding"));
+    assertEquals("application/javascript", response.getHeaders().get("Content-Type"));
+    assertEquals("\"side-gzip\"", response.getHeaders().get("ETag"));
+    assertEquals(String.valueOf(gzipped.length), response.getHeaders().get("Content-Length"));
+    assertArrayEquals(gzipped, response.getResource().getData().getBytes());
+
+    // a sidecar older than the original is ignored, and the original compressed instead
+    when(dataSource.get("/app.js.gz")).thenReturn(new DataResource("/app.js.gz", true, "old",
+        modified.minusSeconds(1), "application/gzip", Optional.of((long) gzipped.length),
+        new ByteArrayBlob(gzipped)));
+    response = server.respond(HttpRequest.parse(
+        "GET /app.js HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n"));
+    assertEquals("\"app-gzip\"", response.getHeaders().get("ETag"));
+  }
+
+
+  @Test
+  public void testCompressedVariantsKeyedByPath() throws Exception
+  {
+    // Files with different contents can share an etag, and mustn't get each other's variant
+    final CompressedVariants variants = new CompressedVariants(1024 * 1024, 1024 * 1024);
+    final byte[] a = Strings.repeat("a", 1000).getBytes(Charsets.UTF_8);
+    final byte[] b = Strings.repeat("b", 1000).getBytes(Charsets.UTF_8);
+    final DataResource first = variants.compressed(new DataResource("/Aa.js", true, "same", null,
+        "application/javascript", Optional.of(1000L), new ByteArrayBlob(a))).get();
+    final DataResource second = variants.compressed(new DataResource("/BB.js", true, "same", null,
+        "application/javascript", Optional.of(1000L), new ByteArrayBlob(b))).get();
+    assertArrayEquals(a, ByteStreams.toByteArray(
+        new GZIPInputStream(new ByteArrayInputStream(first.getData().getBytes()))));
+    assertArrayEquals(b, ByteStreams.toByteArray(
+        new GZIPInputStream(new ByteArrayInputStream(second.getData().getBytes()))));
+  }
 }
@@ -20,4 +20,24 @@ public class HttpServerUtilsTest
         "Sun, 06 Sep 2015 10:15:30 GMT",
         HttpServerUtils.instantToHttpDate(Instant.parse("2015-09-06T10:15:30.00Z")));
   }
+
+
+  @Test
+  public void testHttpDateToInstant() throws Exception
+  {
+    assertEquals(
+        Instant.parse("2015-09-06T10:15:30.00Z"),
+        HttpServerUtils.httpDateToInstant("Sun, 06 Sep 2015 10:15:30 GMT").get());
+    assertFalse(HttpServerUtils.httpDateToInstant("yesterday").isPresent());
+  }
+
+
+  @Test
+  public void testEtagMatches() throws Exception
+  {
+    assertTrue(HttpServerUtils.etagMatches("\"abc\"", "abc"));
+    assertTrue(HttpServerUtils.etagMatches("\"x\", W/\"abc\"", "abc"));
+    assertTrue(HttpServerUtils.etagMatches("*", "abc"));
+    assertFalse(HttpServerUtils.etagMatches("\"abcd\"", "abc"));
+  }
 }
@@ -0,0 +1,72 @@
+package net.jeffpoole.httpserver.logic;
+
+import static org.junit.Assert.*;
+
+import java.util.Optional;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import net.jeffpoole.httpserver.datasource.DataResource;
+import net.jeffpoole.httpserver.parsing.HttpRequest;
+
+
+public class VirtualHostServerTest
+{
+  // Each site answers every path with its own name
+  private static HttpServer site(String name)
+  {
+    return new HttpServer(path -> new DataResource(path, true, name, null, "text/plain",
+        Optional.of(0L), null));
+  }
+
+
+  final HttpServer defaultSite = site("default");
+  final HttpServer example = site("example");
+  final HttpServer blogs = site("blogs");
+  final HttpServer dev = site("dev");
+  final VirtualHostServer server = new VirtualHostServer(ImmutableMap.of(
+      "example.com", example, "www.example.com", example, "*.example.com", blogs,
+      "*.dev.example.com", dev), defaultSite);
+
+
+  @Test
+  public void testLookup() throws Exception
+  {
+    assertSame(example, server.serverFor("example.com"));
+    assertSame(example, server.serverFor("www.example.com"));
+    // names are case-insensitive, and the port and any trailing dot don't matter
+    assertSame(example, server.serverFor("WWW.Example.com:8080"));
+    assertSame(example, server.serverFor("example.com.:80"));
+
+    // exact names first, then the longest wildcard that matches
+    assertSame(blogs, server.serverFor("alice.example.com"));
+    assertSame(blogs, server.serverFor("a.b.example.com"));
+    assertSame(dev, server.serverFor("a.dev.example.com"));
+    assertSame(blogs, server.serverFor("dev.example.com"));
+
+    assertSame(defaultSite, server.serverFor("example.org"));
+    assertSame(defaultSite, server.serverFor("[::1]:8080"));
+    assertSame(defaultSite, server.serverFor("badexample.com"));
+    assertSame(defaultSite, server.serverFor(null));
+  }
+
+
+  @Test
+  public void testRespond() throws Exception
+  {
+    assertEquals("blogs", server.respond(HttpRequest.parse(
+        "GET / HTTP/1.1\r\nHost: alice.example.com\r\n\r\n")).getResource().getEtag());
+    assertEquals("default", server.respond(HttpRequest.parse(
+        "GET / HTTP/1.0\r\n\r\n")).getResource().getEtag());
+  }
+
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRepeatedName() throws Exception
+  {
+    new VirtualHostServer(ImmutableMap.of("example.com", example, "Example.com.", blogs),
+        defaultSite);
+  }
+}
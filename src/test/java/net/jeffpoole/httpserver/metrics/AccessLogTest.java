@@ -0,0 +1,117 @@
+package net.jeffpoole.httpserver.metrics;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+
+import net.jeffpoole.httpserver.parsing.HttpRequest;
+
+
+public class AccessLogTest
+{
+  static final InetSocketAddress CLIENT = new InetSocketAddress("127.0.0.1", 51234);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+
+  @Test
+  public void testFormat() throws Exception
+  {
+    final Path file = folder.getRoot().toPath().resolve("access.log");
+    final AccessLog accessLog = new AccessLog(file, 16, 0, 0, new ServerMetrics(), false);
+    accessLog.log(CLIENT, HttpRequest.parse("GET /a.html HTTP/1.1\r\n\r\n"), 200, 2326,
+        TimeUnit.MICROSECONDS.toNanos(157));
+    accessLog.log(null, HttpRequest.parse("HEAD /listing/ HTTP/1.0\r\n\r\n"), 200, -1, 0);
+    // nothing is written until the writer gets to it
+    assertEquals(0, Files.size(file));
+    accessLog.close();
+
+    final List<String> lines = Files.readAllLines(file, Charsets.UTF_8);
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(0), lines.get(0).matches("127\\.0\\.0\\.1 - - \\[\\d\\d/\\w{3}/\\d{4}"
+        + ":\\d\\d:\\d\\d:\\d\\d [+-]\\d{4}\\] \"GET /a\\.html HTTP/1\\.1\" 200 2326 157"));
+    assertTrue(lines.get(1), lines.get(1).endsWith("\"HEAD /listing/ HTTP/1.0\" 200 - 0"));
+  }
+
+
+  @Test
+  public void testDropsWhenFull() throws Exception
+  {
+    final Path file = folder.getRoot().toPath().resolve("access.log");
+    final ServerMetrics metrics = new ServerMetrics();
+    final AccessLog accessLog = new AccessLog(file, 4, 0, 0, metrics, false);
+    final HttpRequest request = HttpRequest.parse("GET / HTTP/1.1\r\n\r\n");
+    for (int i = 0; i < 6; i++)
+    {
+      accessLog.log(CLIENT, request, 200, i, 0);
+    }
+    assertTrue(metrics.toPrometheus().contains("webserver_access_log_dropped_total 2\n"));
+
+    // once written, the slots can be used again
+    accessLog.drain();
+    accessLog.log(CLIENT, request, 404, 0, 0);
+    accessLog.close();
+    final List<String> lines = Files.readAllLines(file, Charsets.UTF_8);
+    assertEquals(5, lines.size());
+    assertTrue(lines.get(3).endsWith(" 200 3 0"));
+    assertTrue(lines.get(4).endsWith(" 404 0 0"));
+  }
+
+
+  @Test
+  public void testRotation() throws Exception
+  {
+    final Path file = folder.getRoot().toPath().resolve("access.log");
+    final AccessLog accessLog = new AccessLog(file, 16, 1, 2, new ServerMetrics(), false);
+    final HttpRequest request = HttpRequest.parse("GET / HTTP/1.1\r\n\r\n");
+    for (int i = 0; i < 4; i++)
+    {
+      accessLog.log(CLIENT, request, 200, i, 0);
+      accessLog.drain();
+    }
+    accessLog.close();
+
+    // every batch goes over the limit, so only the last two are kept (and the current one is new)
+    assertEquals(0, Files.size(file));
+    assertTrue(Files.readAllLines(accessLog.rotated(1), Charsets.UTF_8).get(0).endsWith(" 3 0"));
+    assertTrue(Files.readAllLines(accessLog.rotated(2), Charsets.UTF_8).get(0).endsWith(" 2 0"));
+    assertFalse(Files.exists(accessLog.rotated(3)));
+  }
+
+
+  @Test
+  public void testWriterThread() throws Exception
+  {
+    final Path file = folder.getRoot().toPath().resolve("access.log");
+    final AccessLog accessLog = new AccessLog(file, 1024, 0, 0, new ServerMetrics());
+    final HttpRequest request = HttpRequest.parse("GET / HTTP/1.1\r\n\r\n");
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++)
+    {
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 200; i++)
+        {
+          accessLog.log(CLIENT, request, 200, i, 0);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    accessLog.close();
+    assertEquals(800, Files.readAllLines(file, Charsets.UTF_8).size());
+  }
+}
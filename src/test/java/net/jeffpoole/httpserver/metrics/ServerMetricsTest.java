@@ -0,0 +1,85 @@
+package net.jeffpoole.httpserver.metrics;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+import net.jeffpoole.httpserver.parsing.HttpRequest;
+import net.jeffpoole.httpserver.parsing.HttpResponse;
+
+
+public class ServerMetricsTest
+{
+  @Test
+  public void testHistogramBuckets() throws Exception
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(TimeUnit.MICROSECONDS.toNanos(5));
+    histogram.record(TimeUnit.MICROSECONDS.toNanos(10));
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+    histogram.record(TimeUnit.SECONDS.toNanos(60));
+    assertEquals(4, histogram.count());
+
+    StringBuilder out = new StringBuilder();
+    histogram.writePrometheus(out, "test", "stage=\"x\"");
+    String text = out.toString();
+    // buckets are cumulative, and the bounds are inclusive
+    assertTrue(text.contains("test_bucket{stage=\"x\",le=\"1.0E-5\"} 2\n"));
+    assertTrue(text.contains("test_bucket{stage=\"x\",le=\"0.005\"} 3\n"));
+    assertTrue(text.contains("test_bucket{stage=\"x\",le=\"10.0\"} 3\n"));
+    assertTrue(text.contains("test_bucket{stage=\"x\",le=\"+Inf\"} 4\n"));
+    assertTrue(text.contains("test_count{stage=\"x\"} 4\n"));
+    assertTrue(text.contains("test_sum{stage=\"x\"} 60.003015\n"));
+  }
+
+
+  @Test
+  public void testPrometheusText() throws Exception
+  {
+    ServerMetrics metrics = new ServerMetrics();
+    metrics.record(ServerMetrics.Stage.DECODE, 1000);
+    metrics.response(200);
+    metrics.response(200);
+    metrics.response(404);
+    metrics.transfer(ServerMetrics.TransferMode.FILE_REGION, 100000);
+    metrics.bytesSent(100200);
+    metrics.connectionOpened();
+    metrics.connectionOpened();
+    metrics.connectionClosed();
+
+    String text = metrics.toPrometheus();
+    assertTrue(text.contains("# TYPE webserver_stage_duration_seconds histogram\n"));
+    assertTrue(text.contains("webserver_stage_duration_seconds_count{stage=\"decode\"} 1\n"));
+    assertTrue(text.contains("webserver_stage_duration_seconds_count{stage=\"send\"} 0\n"));
+    assertTrue(text.contains("webserver_responses_total{status=\"200\"} 2\n"));
+    assertTrue(text.contains("webserver_responses_total{status=\"404\"} 1\n"));
+    assertTrue(text.contains("webserver_transfers_total{mode=\"file_region\"} 1\n"));
+    assertTrue(text.contains("webserver_transfer_bytes_total{mode=\"file_region\"} 100000\n"));
+    assertTrue(text.contains("webserver_transfers_total{mode=\"heap\"} 0\n"));
+    assertTrue(text.contains("webserver_sent_bytes_total 100200\n"));
+    assertTrue(text.contains("webserver_connections_total 2\n"));
+    assertTrue(text.contains("webserver_connections_open 1\n"));
+  }
+
+
+  @Test
+  public void testEndpoint() throws Exception
+  {
+    MetricsEndpoint endpoint = new MetricsEndpoint("/_metrics", new ServerMetrics());
+    assertTrue(endpoint.matches(HttpRequest.parse("GET /_metrics HTTP/1.1\r\n\r\n")));
+    assertTrue(endpoint.matches(HttpRequest.parse("GET /_metrics?x=1 HTTP/1.1\r\n\r\n")));
+    assertFalse(endpoint.matches(HttpRequest.parse("GET /_metricsx HTTP/1.1\r\n\r\n")));
+    assertFalse(endpoint.matches(HttpRequest.parse("POST /_metrics HTTP/1.1\r\n\r\n")));
+
+    HttpResponse response = endpoint.respond(HttpRequest.parse("GET /_metrics HTTP/1.1\r\n\r\n"));
+    assertEquals(200, response.getStatusCode());
+    assertEquals(MetricsEndpoint.CONTENT_TYPE, response.getHeaders().get("Content-Type"));
+    String body = new String(response.getResource().getData().getBytes(), Charsets.UTF_8);
+    assertTrue(body.contains("webserver_connections_open 0\n"));
+    assertEquals(String.valueOf(body.length()), response.getHeaders().get("Content-Length"));
+  }
+}
@@ -0,0 +1,379 @@
+package net.jeffpoole.httpserver.netty;
+
+import static org.junit.Assert.*;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+import net.jeffpoole.httpserver.data.ByteArrayBlob;
+import net.jeffpoole.httpserver.datasource.DataResource;
+import net.jeffpoole.httpserver.logic.HttpServer;
+import net.jeffpoole.httpserver.metrics.ServerMetrics;
+import net.jeffpoole.httpserver.parsing.Hpack;
+import net.jeffpoole.httpserver.parsing.HpackDecoder;
+import net.jeffpoole.httpserver.parsing.HpackEncoder;
+
+
+public class Http2ConnectionHandlerTest
+{
+  HttpServer server;
+  EmbeddedChannel channel;
+  final HpackEncoder encoder = new HpackEncoder();
+  final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, 64 * 1024);
+  // Whatever has been written so far that hasn't been taken by a test yet
+  final ByteBuf outbound = Unpooled.buffer();
+
+
+  static class Frame
+  {
+    final int type;
+    final int flags;
+    final int streamId;
+    final ByteBuf payload;
+
+    Frame(int type, int flags, int streamId, ByteBuf payload)
+    {
+      this.type = type;
+      this.flags = flags;
+      this.streamId = streamId;
+      this.payload = payload;
+    }
+  }
+
+
+  @Before
+  public void setUp() throws Exception
+  {
+    server = new HttpServer(path -> NettyHttpServerOutboundHandlerTest.RESOURCE.withPath(path));
+    channel = newChannel(100);
+  }
+
+
+  // Requests are answered inline, and their responses written when the test runs pending tasks
+  private EmbeddedChannel newChannel(int maximumConcurrentStreams)
+  {
+    final ServerMetrics metrics = new ServerMetrics();
+    return new EmbeddedChannel(
+        new NettyHttpServerInboundDecoder(metrics, upgrade -> new Http2ConnectionHandler(server,
+            metrics, null, null, null, Runnable::run, maximumConcurrentStreams, Integer.MAX_VALUE,
+            upgrade)),
+        new NettyHttpServerInboundHandler(server, metrics, null, Runnable::run, Integer.MAX_VALUE,
+            Integer.MAX_VALUE),
+        new NettyHttpServerOutboundHandler());
+  }
+
+
+  private static ByteBuf frame(int type, int flags, int streamId, ByteBuf payload)
+  {
+    final ByteBuf buf = Unpooled.buffer();
+    Http2ConnectionHandler.writeFrameHeader(buf, payload.readableBytes(), type, flags, streamId);
+    return buf.writeBytes(payload);
+  }
+
+
+  private static ByteBuf settings(int... idsAndValues)
+  {
+    final ByteBuf payload = Unpooled.buffer();
+    for (int i = 0; i < idsAndValues.length; i += 2)
+      payload.writeShort(idsAndValues[i]).writeInt(idsAndValues[i + 1]);
+    return frame(Http2ConnectionHandler.SETTINGS, 0, 0, payload);
+  }
+
+
+  private ByteBuf request(int streamId, String path)
+  {
+    final ByteBuf block = Unpooled.buffer();
+    encoder.encode(block, ":method", "GET");
+    encoder.encode(block, ":scheme", "http");
+    encoder.encode(block, ":path", path);
+    encoder.encode(block, ":authority", "localhost");
+    return frame(Http2ConnectionHandler.HEADERS,
+        Http2ConnectionHandler.END_STREAM | Http2ConnectionHandler.END_HEADERS, streamId, block);
+  }
+
+
+  private static ByteBuf preface(ByteBuf... frames)
+  {
+    return Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(Http2ConnectionHandler.PREFACE),
+        Unpooled.wrappedBuffer(frames));
+  }
+
+
+  private void drain()
+  {
+    channel.runPendingTasks();
+    Object msg;
+    while ((msg = channel.readOutbound()) != null)
+    {
+      outbound.writeBytes((ByteBuf) msg);
+      ((ByteBuf) msg).release();
+    }
+  }
+
+
+  private List<Frame> readFrames()
+  {
+    drain();
+    final List<Frame> frames = new ArrayList<>();
+    while (outbound.readableBytes() >= Http2ConnectionHandler.FRAME_HEADER_LENGTH)
+    {
+      final int length = outbound.readUnsignedMedium();
+      frames.add(new Frame(outbound.readUnsignedByte(), outbound.readUnsignedByte(),
+          outbound.readInt(), outbound.readBytes(length)));
+    }
+    return frames;
+  }
+
+
+  private static Frame only(List<Frame> frames, int type, int streamId)
+  {
+    Frame found = null;
+    for (Frame frame : frames)
+    {
+      if (frame.type == type && frame.streamId == streamId)
+      {
+        assertNull("More than one frame of type " + type, found);
+        found = frame;
+      }
+    }
+    assertNotNull("No frame of type " + type + " on stream " + streamId, found);
+    return found;
+  }
+
+
+  private void assertResponse(List<Frame> frames, int streamId) throws Exception
+  {
+    final List<String[]> fields =
+        decoder.decode(only(frames, Http2ConnectionHandler.HEADERS, streamId).payload);
+    assertEquals(":status", fields.get(0)[0]);
+    assertEquals("200", fields.get(0)[1]);
+    for (String[] field : fields)
+      assertFalse(Http2ConnectionHandler.CONNECTION_HEADERS.contains(field[0]));
+    final Frame data = only(frames, Http2ConnectionHandler.DATA, streamId);
+    assertEquals(Http2ConnectionHandler.END_STREAM, data.flags);
+    assertEquals("abc\n", data.payload.toString(Charsets.UTF_8));
+  }
+
+
+  @Test
+  public void testPriorKnowledge() throws Exception
+  {
+    channel.writeInbound(preface(settings(), request(1, "/a")));
+    channel.writeInbound(request(3, "/b"));
+    final List<Frame> frames = readFrames();
+
+    assertEquals(Http2ConnectionHandler.SETTINGS, frames.get(0).type);
+    assertEquals(0, frames.get(0).flags);
+    assertEquals(Http2ConnectionHandler.SETTINGS, frames.get(1).type);
+    assertEquals(Http2ConnectionHandler.ACK, frames.get(1).flags);
+    assertResponse(frames, 1);
+    assertResponse(frames, 3);
+    assertNull(channel.pipeline().get(NettyHttpServerInboundHandler.class));
+    assertTrue(channel.isOpen());
+  }
+
+
+  @Test
+  public void testUpgrade() throws Exception
+  {
+    // HTTP2-Settings holds SETTINGS_MAX_CONCURRENT_STREAMS = 100, base64url encoded
+    channel.writeInbound(Unpooled.copiedBuffer("GET /a HTTP/1.1\r\nHost: localhost\r\n"
+        + "Connection: Upgrade, HTTP2-Settings\r\nUpgrade: h2c\r\n"
+        + "HTTP2-Settings: AAMAAABk\r\n\r\n", Charsets.US_ASCII));
+    drain();
+    final byte[] switching = NettyHttpServerInboundDecoder.SWITCHING_PROTOCOLS;
+    assertEquals(new String(switching, Charsets.US_ASCII),
+        outbound.readBytes(switching.length).toString(Charsets.US_ASCII));
+
+    // the upgrade request is answered as stream 1 before the client's preface even arrives
+    channel.writeInbound(preface(settings(), request(3, "/b")));
+    final List<Frame> frames = readFrames();
+    assertEquals(Http2ConnectionHandler.SETTINGS, frames.get(0).type);
+    assertResponse(frames, 1);
+    assertResponse(frames, 3);
+  }
+
+
+  @Test
+  public void testHttp1IsUnaffected() throws Exception
+  {
+    channel.writeInbound(Unpooled.copiedBuffer("GET /a HTTP/1.1\r\n\r\n", Charsets.US_ASCII));
+    drain();
+    assertTrue(outbound.toString(Charsets.UTF_8).startsWith("HTTP/1.1 200 OK\r\n"));
+    assertNotNull(channel.pipeline().get(NettyHttpServerInboundHandler.class));
+  }
+
+
+  @Test
+  public void testFlowControl() throws Exception
+  {
+    channel.writeInbound(preface(
+        settings(Http2ConnectionHandler.SETTINGS_INITIAL_WINDOW_SIZE, 3), request(1, "/a")));
+    List<Frame> frames = readFrames();
+    Frame data = only(frames, Http2ConnectionHandler.DATA, 1);
+    assertEquals("abc", data.payload.toString(Charsets.UTF_8));
+    assertEquals(0, data.flags);
+
+    channel.writeInbound(frame(Http2ConnectionHandler.WINDOW_UPDATE, 0, 1,
+        Unpooled.buffer().writeInt(10)));
+    frames = readFrames();
+    data = only(frames, Http2ConnectionHandler.DATA, 1);
+    assertEquals("\n", data.payload.toString(Charsets.UTF_8));
+    assertEquals(Http2ConnectionHandler.END_STREAM, data.flags);
+  }
+
+
+  @Test
+  public void testRefusesStreamsOverTheLimit() throws Exception
+  {
+    channel = newChannel(1);
+    // the second request arrives before the first is answered
+    channel.writeInbound(preface(settings(), request(1, "/a"), request(3, "/b")));
+    final List<Frame> frames = readFrames();
+    assertResponse(frames, 1);
+    final Frame reset = only(frames, Http2ConnectionHandler.RST_STREAM, 3);
+    assertEquals(Http2ConnectionHandler.REFUSED_STREAM, reset.payload.readInt());
+
+    // and once it has been, there's room for another
+    channel.writeInbound(request(5, "/c"));
+    assertResponse(readFrames(), 5);
+  }
+
+
+  @Test
+  public void testConnectionErrors() throws Exception
+  {
+    // anything but SETTINGS first is a PROTOCOL_ERROR
+    channel.writeInbound(preface(request(1, "/a")));
+    final Frame goAway = only(readFrames(), Http2ConnectionHandler.GOAWAY, 0);
+    goAway.payload.skipBytes(4);
+    assertEquals(Http2ConnectionHandler.PROTOCOL_ERROR, goAway.payload.readInt());
+    assertFalse(channel.isOpen());
+  }
+
+
+  @Test
+  public void testNotIdleWhileSending() throws Exception
+  {
+    final NettyHttpServerInboundHandlerTest.SlowClient client =
+        new NettyHttpServerInboundHandlerTest.SlowClient();
+    channel.pipeline().addFirst(client);
+    channel.writeInbound(preface(settings(), request(1, "/a")));
+    channel.runPendingTasks();
+    // the stream is done, but its frames haven't gone out yet
+    channel.pipeline().fireUserEventTriggered(IdleStateEvent.READER_IDLE_STATE_EVENT);
+    client.release();
+    final List<Frame> frames = readFrames();
+    assertResponse(frames, 1);
+    for (Frame frame : frames)
+      assertNotEquals(Http2ConnectionHandler.GOAWAY, frame.type);
+
+    channel.pipeline().fireUserEventTriggered(IdleStateEvent.READER_IDLE_STATE_EVENT);
+    only(readFrames(), Http2ConnectionHandler.GOAWAY, 0);
+  }
+
+
+  @Test
+  public void testPing() throws Exception
+  {
+    channel.writeInbound(preface(settings(),
+        frame(Http2ConnectionHandler.PING, 0, 0, Unpooled.buffer().writeLong(42))));
+    final Frame pong = only(readFrames(), Http2ConnectionHandler.PING, 0);
+    assertEquals(Http2ConnectionHandler.ACK, pong.flags);
+    assertEquals(42, pong.payload.readLong());
+  }
+
+
+  @Test
+  public void testSlowDownloadOutlastsWriteTimeout() throws Exception
+  {
+    // One 1MB DATA frame, which keeps the channel unwritable until it has nearly all gone, for a
+    // client reading 8KB every 10ms, with a much shorter write timeout
+    final int length = 1024 * 1024;
+    final DataResource resource = new DataResource("/large", true, "large", Instant.now(),
+        "application/octet-stream", Optional.of((long) length),
+        new ByteArrayBlob(new byte[length]));
+    final HttpServer largeServer = new HttpServer(path -> resource);
+    final EventLoopGroup group = new NioEventLoopGroup(1);
+    try
+    {
+      final Channel serverChannel = new ServerBootstrap()
+          .group(group)
+          .channel(NioServerSocketChannel.class)
+          .childOption(ChannelOption.SO_SNDBUF, 8192)
+          .childHandler(new ChannelInitializer<SocketChannel>()
+          {
+            @Override
+            protected void initChannel(SocketChannel ch)
+            {
+              final ServerMetrics metrics = new ServerMetrics();
+              ch.pipeline()
+                  .addLast(new IdleStateHandler(0, 200, 0, TimeUnit.MILLISECONDS))
+                  .addLast(new NettyHttpServerInboundDecoder(metrics,
+                      upgrade -> new Http2ConnectionHandler(largeServer, metrics, null, null, null,
+                          Runnable::run, 100, Integer.MAX_VALUE, upgrade)))
+                  .addLast(new NettyHttpServerInboundHandler(largeServer, metrics, null,
+                      Runnable::run, Integer.MAX_VALUE, Integer.MAX_VALUE))
+                  .addLast(new NettyHttpServerOutboundHandler());
+            }
+          })
+          .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+      try (Socket client = new Socket())
+      {
+        client.setReceiveBufferSize(8192);
+        client.setSoTimeout(10000);
+        client.connect(serverChannel.localAddress());
+        final ByteBuf hello = preface(
+            settings(Http2ConnectionHandler.SETTINGS_INITIAL_WINDOW_SIZE, 2 * length,
+                Http2ConnectionHandler.SETTINGS_MAX_FRAME_SIZE, 2 * length),
+            frame(Http2ConnectionHandler.WINDOW_UPDATE, 0, 0, Unpooled.buffer().writeInt(length)),
+            request(1, "/large"));
+        final byte[] bytes = new byte[hello.readableBytes()];
+        hello.readBytes(bytes).release();
+        client.getOutputStream().write(bytes);
+        final InputStream in = client.getInputStream();
+        final byte[] buffer = new byte[8192];
+        long received = 0;
+        int read;
+        // settings and headers come first, so once this many have arrived the body is nearly there
+        while (received < length && (read = in.read(buffer)) >= 0)
+        {
+          received += read;
+          Thread.sleep(10);
+        }
+        assertTrue(received >= length);
+      }
+      serverChannel.close().sync();
+    }
+    finally
+    {
+      group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+  }
+}
@@ -0,0 +1,361 @@
+package net.jeffpoole.httpserver.netty;
+
+import static org.junit.Assert.*;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import net.jeffpoole.httpserver.data.FileBlob;
+import net.jeffpoole.httpserver.datasource.DataResource;
+import net.jeffpoole.httpserver.logic.HttpServer;
+import net.jeffpoole.httpserver.metrics.ServerMetrics;
+import net.jeffpoole.httpserver.parsing.HttpRequest;
+
+
+public class NettyHttpServerInboundHandlerTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  final AtomicInteger flushes = new AtomicInteger();
+  HttpServer server;
+  EmbeddedChannel channel;
+
+
+  // Holds on to everything written, as a slow client would, until release() sends it all (and
+  // anything after it)
+  static class SlowClient extends ChannelOutboundHandlerAdapter
+  {
+    final List<Object> messages = new ArrayList<>();
+    final List<ChannelPromise> promises = new ArrayList<>();
+    ChannelHandlerContext ctx;
+    boolean released;
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception
+    {
+      this.ctx = ctx;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+    {
+      if (released)
+      {
+        ctx.write(msg, promise);
+        return;
+      }
+      messages.add(msg);
+      promises.add(promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx)
+    {
+      if (released)
+        ctx.flush();
+    }
+
+    void release()
+    {
+      released = true;
+      for (int i = 0; i < messages.size(); i++)
+      {
+        ctx.write(messages.get(i), promises.get(i));
+      }
+      messages.clear();
+      promises.clear();
+      ctx.flush();
+    }
+  }
+
+
+  @Before
+  public void setUp() throws Exception
+  {
+    server = new HttpServer(
+        path -> NettyHttpServerOutboundHandlerTest.RESOURCE.withPath(path));
+    // Running requests inline keeps everything on the test thread
+    channel = new EmbeddedChannel(
+        new ChannelOutboundHandlerAdapter()
+        {
+          @Override
+          public void flush(ChannelHandlerContext ctx) throws Exception
+          {
+            flushes.incrementAndGet();
+            super.flush(ctx);
+          }
+        },
+        new NettyHttpServerOutboundHandler(),
+        new NettyHttpServerInboundHandler(server, new ServerMetrics(), null, Runnable::run,
+            Integer.MAX_VALUE, Integer.MAX_VALUE));
+  }
+
+
+  private String readOutbound()
+  {
+    StringBuilder sb = new StringBuilder();
+    ByteBuf buf;
+    while ((buf = (ByteBuf) channel.readOutbound()) != null)
+    {
+      sb.append(buf.toString(Charsets.UTF_8));
+      buf.release();
+    }
+    return sb.toString();
+  }
+
+
+  @Test
+  public void testPipelinedResponsesShareAFlush() throws Exception
+  {
+    channel.writeInbound(HttpRequest.parse("GET /a HTTP/1.1\r\n\r\n"),
+        HttpRequest.parse("GET /b HTTP/1.1\r\n\r\n"),
+        HttpRequest.parse("GET /c HTTP/1.1\r\n\r\n"));
+    channel.runPendingTasks();
+
+    final String responses = readOutbound();
+    assertEquals(3, responses.split("HTTP/1.1 200 OK\r\n", -1).length - 1);
+    assertEquals(1, flushes.get());
+  }
+
+
+  @Test
+  public void testFlushesLongPipelines() throws Exception
+  {
+    final HttpRequest[] requests =
+        new HttpRequest[NettyHttpServerInboundHandler.MAXIMUM_UNFLUSHED_RESPONSES * 2 + 1];
+    for (int i = 0; i < requests.length; i++)
+    {
+      requests[i] = HttpRequest.parse("GET /" + i + " HTTP/1.1\r\n\r\n");
+    }
+    channel.writeInbound((Object[]) requests);
+    channel.runPendingTasks();
+
+    final String responses = readOutbound();
+    assertEquals(requests.length, responses.split("HTTP/1.1 200 OK\r\n", -1).length - 1);
+    assertEquals(3, flushes.get());
+  }
+
+
+  @Test
+  public void testStopsReadingWhenTooManyRequestsArePending() throws Exception
+  {
+    // Requests are only answered when the test runs the queued tasks
+    final List<Runnable> queued = Lists.newArrayList();
+    final ServerMetrics metrics = new ServerMetrics();
+    channel = new EmbeddedChannel(new NettyHttpServerOutboundHandler(),
+        new NettyHttpServerInboundHandler(server, metrics, null, queued::add, 2,
+            Integer.MAX_VALUE));
+
+    channel.writeInbound(HttpRequest.parse("GET /a HTTP/1.1\r\n\r\n"));
+    assertTrue(channel.config().isAutoRead());
+    channel.writeInbound(HttpRequest.parse("GET /b HTTP/1.1\r\n\r\n"));
+    assertFalse(channel.config().isAutoRead());
+    assertTrue(metrics.toPrometheus().contains("webserver_read_pauses_total 1\n"));
+
+    queued.forEach(Runnable::run);
+    channel.runPendingTasks();
+    assertTrue(channel.config().isAutoRead());
+    assertEquals(2, readOutbound().split("HTTP/1.1 200 OK\r\n", -1).length - 1);
+  }
+
+
+  @Test
+  public void testPipelinedReadStopsAtMaximumPending() throws Exception
+  {
+    // One read with five requests in it; the last three wait in the decoder
+    final List<Runnable> queued = Lists.newArrayList();
+    channel = new EmbeddedChannel(new NettyHttpServerOutboundHandler(),
+        new NettyHttpServerInboundDecoder(),
+        new NettyHttpServerInboundHandler(server, new ServerMetrics(), null, queued::add, 2,
+            Integer.MAX_VALUE));
+    final StringBuilder requests = new StringBuilder();
+    for (String path : new String[] { "/a", "/b", "/c", "/d", "/e" })
+      requests.append("GET ").append(path).append(" HTTP/1.1\r\n\r\n");
+    channel.writeInbound(Unpooled.copiedBuffer(requests, Charsets.US_ASCII));
+    assertEquals(2, queued.size());
+    assertFalse(channel.config().isAutoRead());
+
+    // Answering them decodes the rest without anything more being read
+    int answered = 0;
+    while (answered < queued.size())
+    {
+      queued.get(answered++).run();
+      channel.runPendingTasks();
+      assertTrue(queued.size() - answered <= 2);
+    }
+    assertEquals(5, answered);
+    assertEquals(5, readOutbound().split("HTTP/1.1 200 OK\r\n", -1).length - 1);
+  }
+
+
+  @Test
+  public void testClosesAfterMaximumRequests() throws Exception
+  {
+    final ServerMetrics metrics = new ServerMetrics();
+    channel = new EmbeddedChannel(new NettyHttpServerOutboundHandler(),
+        new NettyHttpServerInboundHandler(server, metrics, null, Runnable::run, Integer.MAX_VALUE,
+            2));
+    channel.writeInbound(HttpRequest.parse("GET /a HTTP/1.1\r\n\r\n"),
+        HttpRequest.parse("GET /b HTTP/1.1\r\n\r\n"),
+        HttpRequest.parse("GET /c HTTP/1.1\r\n\r\n"));
+    channel.runPendingTasks();
+
+    final String[] responses = readOutbound().split("HTTP/1.1 200 OK\r\n");
+    assertEquals(3, responses.length);
+    assertFalse(responses[1].contains("Connection: close"));
+    assertTrue(responses[2].contains("\r\nConnection: close\r\n"));
+    assertFalse(channel.isOpen());
+    assertTrue(metrics.toPrometheus().contains(
+        "webserver_server_closes_total{reason=\"request_limit\"} 1\n"));
+  }
+
+
+  @Test
+  public void testClosesIdleConnections() throws Exception
+  {
+    // Not idle while a request is being worked on
+    final List<Runnable> queued = Lists.newArrayList();
+    final ServerMetrics metrics = new ServerMetrics();
+    channel = new EmbeddedChannel(new NettyHttpServerOutboundHandler(),
+        new NettyHttpServerInboundHandler(server, metrics, null, queued::add, Integer.MAX_VALUE,
+            Integer.MAX_VALUE));
+    channel.writeInbound(HttpRequest.parse("GET /a HTTP/1.1\r\n\r\n"));
+    channel.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+    assertTrue(channel.isOpen());
+
+    queued.forEach(Runnable::run);
+    channel.runPendingTasks();
+    channel.pipeline().fireUserEventTriggered(IdleStateEvent.READER_IDLE_STATE_EVENT);
+    assertFalse(channel.isOpen());
+    assertTrue(metrics.toPrometheus().contains(
+        "webserver_server_closes_total{reason=\"read_idle\"} 1\n"));
+  }
+
+
+  @Test
+  public void testNotIdleWhileSending() throws Exception
+  {
+    // The response has been handed over, but its body is still going out past the read timeout
+    final SlowClient client = new SlowClient();
+    channel = new EmbeddedChannel(client, new NettyHttpServerOutboundHandler(),
+        new NettyHttpServerInboundHandler(server, new ServerMetrics(), null, Runnable::run,
+            Integer.MAX_VALUE, Integer.MAX_VALUE));
+    channel.writeInbound(HttpRequest.parse("GET /a HTTP/1.1\r\n\r\n"));
+    channel.runPendingTasks();
+    assertFalse(client.messages.isEmpty());
+    channel.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+    channel.pipeline().fireUserEventTriggered(IdleStateEvent.READER_IDLE_STATE_EVENT);
+    assertTrue(channel.isOpen());
+
+    // once it has all been sent, the connection is idle
+    client.release();
+    channel.pipeline().fireUserEventTriggered(IdleStateEvent.READER_IDLE_STATE_EVENT);
+    assertFalse(channel.isOpen());
+  }
+
+
+  @Test
+  public void testSlowDownloadOutlastsWriteTimeout() throws Exception
+  {
+    // As a FileRegion, and in chunks as with TLS, where the IdleStateHandler only sees the one
+    // ChunkedNioFile write and the chunks keep the channel unwritable
+    downloadSlowly(true);
+    downloadSlowly(false);
+  }
+
+
+  // Fetches a file that takes a client reading 8KB every 10ms over a second to get, with a much
+  // shorter write timeout
+  private void downloadSlowly(boolean zeroCopy) throws Exception
+  {
+    final File file = folder.newFile("large-" + zeroCopy + ".bin");
+    Files.write(file.toPath(), new byte[1024 * 1024]);
+    final DataResource resource = new DataResource(file.getPath(), true, "large", Instant.now(),
+        "application/octet-stream", Optional.of(file.length()), new FileBlob(file));
+    final HttpServer largeServer = new HttpServer(path -> resource);
+    final EventLoopGroup group = new NioEventLoopGroup(1);
+    try
+    {
+      final Channel serverChannel = new ServerBootstrap()
+          .group(group)
+          .channel(NioServerSocketChannel.class)
+          .childOption(ChannelOption.SO_SNDBUF, 8192)
+          .childHandler(new ChannelInitializer<SocketChannel>()
+          {
+            @Override
+            protected void initChannel(SocketChannel ch)
+            {
+              if (!zeroCopy)
+                ch.pipeline().addLast(new ChunkedWriteHandler());
+              ch.pipeline()
+                  .addLast(new IdleStateHandler(0, 200, 0, TimeUnit.MILLISECONDS))
+                  .addLast(new NettyHttpServerInboundDecoder())
+                  .addLast(new NettyHttpServerInboundHandler(largeServer, new ServerMetrics(),
+                      null, Runnable::run, Integer.MAX_VALUE, Integer.MAX_VALUE))
+                  .addLast(new NettyHttpServerOutboundHandler(null, new ServerMetrics(),
+                      zeroCopy));
+            }
+          })
+          .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+      try (Socket client = new Socket())
+      {
+        client.setReceiveBufferSize(8192);
+        client.setSoTimeout(10000);
+        client.connect(serverChannel.localAddress());
+        client.getOutputStream().write("GET /large HTTP/1.1\r\n\r\n".getBytes(Charsets.UTF_8));
+        final InputStream in = client.getInputStream();
+        final byte[] buffer = new byte[8192];
+        long received = 0;
+        int read;
+        // the head comes first, so once this many have arrived the body is nearly all there
+        while (received < file.length() && (read = in.read(buffer)) >= 0)
+        {
+          received += read;
+          Thread.sleep(10);
+        }
+        assertTrue(received >= file.length());
+      }
+      serverChannel.close().sync();
+    }
+    finally
+    {
+      group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+  }
+}
@@ -0,0 +1,300 @@
+package net.jeffpoole.httpserver.netty;
+
+import static org.junit.Assert.*;
+
+import io.netty.buffer.AbstractByteBufAllocator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+import net.jeffpoole.httpserver.data.Blob;
+import net.jeffpoole.httpserver.data.ByteArrayBlob;
+import net.jeffpoole.httpserver.data.CompositeBlob;
+import net.jeffpoole.httpserver.data.DirectoryListingBlob;
+import net.jeffpoole.httpserver.data.FileBlob;
+import net.jeffpoole.httpserver.data.FileRangeBlob;
+import net.jeffpoole.httpserver.datasource.DataResource;
+import net.jeffpoole.httpserver.datasource.DataSource;
+import net.jeffpoole.httpserver.logic.HttpServer;
+import net.jeffpoole.httpserver.metrics.ServerMetrics;
+import net.jeffpoole.httpserver.parsing.HttpRequest;
+
+
+public class NettyHttpServerOutboundHandlerTest
+{
+  static final DataResource RESOURCE = new DataResource(
+      "/file.txt",
+      true,
+      "abc",
+      Instant.parse("2015-09-06T10:15:30.00Z"),
+      "text/plain",
+      Optional.of(4L),
+      new ByteArrayBlob("abc\n".getBytes(Charsets.UTF_8)));
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  HttpServer server;
+  EmbeddedChannel channel;
+
+
+  @Before
+  public void setUp() throws Exception
+  {
+    final DataSource dataSource = path -> RESOURCE;
+    server = new HttpServer(dataSource);
+    channel = new EmbeddedChannel(new NettyHttpServerOutboundHandler());
+  }
+
+
+  // The body of a response with chunked transfer coding, without the chunk framing
+  private static String decodeChunked(String response)
+  {
+    int position = response.indexOf("\r\n\r\n") + 4;
+    final StringBuilder body = new StringBuilder();
+    while (true)
+    {
+      final int lineEnd = response.indexOf("\r\n", position);
+      final int size = Integer.parseInt(response.substring(position, lineEnd), 16);
+      if (size == 0)
+      {
+        assertEquals(lineEnd + 4, response.length());
+        return body.toString();
+      }
+      body.append(response, lineEnd + 2, lineEnd + 2 + size);
+      position = lineEnd + 2 + size + 2;
+    }
+  }
+
+
+  private String write(String request) throws Exception
+  {
+    channel.writeOutbound(server.respond(HttpRequest.parse(request)));
+    StringBuilder sb = new StringBuilder();
+    ByteBuf buf;
+    while ((buf = (ByteBuf) channel.readOutbound()) != null)
+    {
+      sb.append(buf.toString(Charsets.UTF_8));
+      buf.release();
+    }
+    return sb.toString();
+  }
+
+
+  @Test
+  public void testWriteResponse() throws Exception
+  {
+    String response = write("GET /file.txt HTTP/1.1\r\n\r\n");
+    assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+    assertTrue(response.contains("\r\nContent-Type: text/plain\r\n"));
+    assertTrue(response.contains("\r\nETag: \"abc\"\r\n"));
+    assertTrue(response.contains("\r\nLast-Modified: Sun, 06 Sep 2015 10:15:30 GMT\r\n"));
+    assertTrue(response.contains("\r\nContent-Length: 4\r\n"));
+    assertTrue(response.contains("\r\nDate: "));
+    assertTrue(response.endsWith("\r\n\r\nabc\n"));
+  }
+
+
+  @Test
+  public void testWritePartialResponse() throws Exception
+  {
+    String response = write("GET /file.txt HTTP/1.1\r\nRange: bytes=1-2\r\n\r\n");
+    assertTrue(response.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+    assertTrue(response.contains("\r\nContent-Length: 2\r\n"));
+    assertTrue(response.contains("\r\nContent-Range: bytes 1-2/4\r\n"));
+    assertTrue(response.endsWith("\r\n\r\nbc"));
+  }
+
+
+  @Test
+  public void testWriteFromContentCache() throws Exception
+  {
+    final File file = folder.newFile("cached.txt");
+    Files.write(file.toPath(), "cached\n".getBytes(Charsets.UTF_8));
+    final DataResource resource = RESOURCE.withPath(file.getPath())
+        .withEtag("cached")
+        .withModifiedTimestamp(Instant.ofEpochMilli(file.lastModified()))
+        .withSize(Optional.of(file.length()))
+        .withData(new FileBlob(file));
+    server = new HttpServer(path -> resource);
+    final ContentCache contentCache = new ContentCache(UnpooledByteBufAllocator.DEFAULT, 1024, 1024);
+    channel = new EmbeddedChannel(new NettyHttpServerOutboundHandler(contentCache));
+
+    assertTrue(write("GET /cached.txt HTTP/1.1\r\n\r\n").endsWith("\r\n\r\ncached\n"));
+    assertEquals(1, contentCache.cache.size());
+    // served from the cache, even though the file is gone
+    assertTrue(file.delete());
+    assertTrue(write("GET /cached.txt HTTP/1.1\r\n\r\n").endsWith("\r\n\r\ncached\n"));
+    assertTrue(write("GET /cached.txt HTTP/1.1\r\nRange: bytes=1-2\r\n\r\n").endsWith("\r\n\r\nac"));
+  }
+
+
+  @Test
+  public void testWriteChunkedWithoutZeroCopy() throws Exception
+  {
+    final File file = folder.newFile("large.txt");
+    final String content = Strings.repeat("0123456789abcdef", 4096);
+    Files.write(file.toPath(), content.getBytes(Charsets.UTF_8));
+    final DataResource resource = RESOURCE.withPath(file.getPath())
+        .withModifiedTimestamp(Instant.ofEpochMilli(file.lastModified()))
+        .withSize(Optional.of(file.length()))
+        .withData(new FileBlob(file));
+    server = new HttpServer(path -> resource);
+    final ServerMetrics metrics = new ServerMetrics();
+    channel = new EmbeddedChannel(new ChunkedWriteHandler(),
+        new NettyHttpServerOutboundHandler(null, metrics, false));
+
+    assertTrue(write("GET /large.txt HTTP/1.1\r\n\r\n").endsWith("\r\n\r\n" + content));
+    assertTrue(metrics.toPrometheus().contains("webserver_transfers_total{mode=\"chunked\"} 1\n"));
+    assertTrue(metrics.toPrometheus().contains(
+        "webserver_transfers_total{mode=\"file_region\"} 0\n"));
+  }
+
+
+  @Test
+  public void testWriteStreamedDirectoryListing() throws Exception
+  {
+    final Path dir = folder.newFolder("dir").toPath();
+    for (int i = 0; i < 1000; i++)
+    {
+      Files.createFile(dir.resolve("file" + i));
+    }
+    final DirectoryListingBlob blob = new DirectoryListingBlob(dir, "/dir");
+    final DataResource resource = RESOURCE.withContentType("text/html")
+        .withEtag("listing")
+        .withSize(Optional.empty())
+        .withData(blob);
+    server = new HttpServer(path -> resource);
+
+    final String response = write("GET /dir HTTP/1.1\r\n\r\n");
+    assertTrue(response.contains("\r\nTransfer-Encoding: chunked\r\n"));
+    assertFalse(response.contains("Content-Length"));
+    final String body = decodeChunked(response);
+    assertEquals(new String(blob.getBytes(), Charsets.UTF_8), body);
+    // sent as more than one chunk
+    final int sizeStart = response.indexOf("\r\n\r\n") + 4;
+    assertTrue(Integer.parseInt(response.substring(sizeStart, response.indexOf("\r\n", sizeStart)),
+        16) < body.length());
+
+    // HTTP/1.0 clients can't take chunks
+    final String http10 = write("GET /dir HTTP/1.0\r\n\r\n");
+    assertFalse(http10.contains("Transfer-Encoding"));
+    assertTrue(http10.endsWith("</ul></body></html>"));
+  }
+
+
+  @Test
+  public void testWriteGeneratedBlob() throws Exception
+  {
+    final String content = Strings.repeat("generated\n", 10000);
+    // only readable as a stream, like a body generated on the fly
+    final Blob generated = new Blob()
+    {
+      @Override
+      public byte[] getBytes()
+      {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public ReadableByteChannel open() throws IOException
+      {
+        return Channels.newChannel(new ByteArrayInputStream(content.getBytes(Charsets.UTF_8)));
+      }
+    };
+    final DataResource resource = RESOURCE.withEtag("generated")
+        .withSize(Optional.empty())
+        .withData(generated);
+    server = new HttpServer(path -> resource);
+
+    final String response = write("GET /generated HTTP/1.1\r\n\r\n");
+    assertTrue(response.contains("\r\nTransfer-Encoding: chunked\r\n"));
+    assertEquals(content, decodeChunked(response));
+  }
+
+
+  @Test
+  public void testFailedPartClosesConnection() throws Exception
+  {
+    // The head and the first part have been written by the time the missing file is found
+    final File large = folder.newFile("large.txt");
+    Files.write(large.toPath(), new byte[10000]);
+    final File missing = new File(folder.getRoot(), "missing.txt");
+    final DataResource resource = RESOURCE.withSize(Optional.of(20000L)).withData(new CompositeBlob(
+        Arrays.asList(new FileRangeBlob(large, 0, 10000), new FileBlob(missing))));
+    server = new HttpServer(path -> resource);
+    final List<ByteBuf> allocated = new ArrayList<>();
+    final ByteBufAllocator tracking = new AbstractByteBufAllocator()
+    {
+      @Override
+      protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity)
+      {
+        final ByteBuf buf = Unpooled.buffer(initialCapacity, maxCapacity);
+        allocated.add(buf);
+        return buf;
+      }
+
+      @Override
+      protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity)
+      {
+        final ByteBuf buf = Unpooled.directBuffer(initialCapacity, maxCapacity);
+        allocated.add(buf);
+        return buf;
+      }
+
+      @Override
+      public boolean isDirectBufferPooled()
+      {
+        return false;
+      }
+    };
+    channel.config().setAllocator(tracking);
+
+    try
+    {
+      write("GET /parts HTTP/1.1\r\n\r\n");
+      fail("Wrote a missing file");
+    }
+    catch (FileNotFoundException e)
+    {
+      // expected
+    }
+    assertFalse(channel.isOpen());
+    ByteBuf buf;
+    while ((buf = (ByteBuf) channel.readOutbound()) != null)
+    {
+      buf.release();
+    }
+    assertFalse(allocated.isEmpty());
+    // everything was released exactly once (a second release would have thrown)
+    for (ByteBuf released : allocated)
+    {
+      assertEquals(0, released.refCnt());
+    }
+  }
+}
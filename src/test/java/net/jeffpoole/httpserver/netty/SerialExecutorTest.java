@@ -0,0 +1,88 @@
+package net.jeffpoole.httpserver.netty;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+
+public class SerialExecutorTest
+{
+  final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+
+  @After
+  public void tearDown() throws Exception
+  {
+    pool.shutdownNow();
+  }
+
+
+  @Test
+  public void testRunsInOrderOneAtATime() throws Exception
+  {
+    SerialExecutor executor = new SerialExecutor(pool);
+    List<Integer> order = new CopyOnWriteArrayList<>();
+    AtomicInteger running = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(100);
+    for (int i = 0; i < 100; i++)
+    {
+      final int n = i;
+      executor.execute(() -> {
+        assertEquals(1, running.incrementAndGet());
+        order.add(n);
+        running.decrementAndGet();
+        done.countDown();
+      });
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(100, order.size());
+    for (int i = 0; i < 100; i++)
+    {
+      assertEquals(i, (int) order.get(i));
+    }
+  }
+
+
+  @Test
+  public void testBlockingDoesNotHoldUpOtherExecutors() throws Exception
+  {
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    List<String> order = new CopyOnWriteArrayList<>();
+    SerialExecutor blocked = new SerialExecutor(pool);
+    blocked.execute(() -> {
+      try
+      {
+        release.await();
+        order.add("blocked");
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    });
+    blocked.execute(() -> {
+      order.add("after blocked");
+      done.countDown();
+    });
+
+    CountDownLatch other = new CountDownLatch(1);
+    new SerialExecutor(pool).execute(other::countDown);
+    assertTrue(other.await(10, TimeUnit.SECONDS));
+
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(ImmutableList.of("blocked", "after blocked"), order);
+  }
+}
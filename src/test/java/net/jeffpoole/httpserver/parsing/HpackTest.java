@@ -0,0 +1,149 @@
+package net.jeffpoole.httpserver.parsing;
+
+import static org.junit.Assert.*;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.io.BaseEncoding;
+
+
+public class HpackTest
+{
+  private static ByteBuf hex(String s)
+  {
+    return Unpooled.wrappedBuffer(BaseEncoding.base16().lowerCase().decode(s.replace(" ", "")));
+  }
+
+
+  private static void assertFields(List<String[]> fields, String... expected)
+  {
+    assertEquals(expected.length / 2, fields.size());
+    for (int i = 0; i < fields.size(); i++)
+    {
+      assertEquals(expected[i * 2], fields.get(i)[0]);
+      assertEquals(expected[i * 2 + 1], fields.get(i)[1]);
+    }
+  }
+
+
+  @Test
+  public void testHuffmanStrings() throws Exception
+  {
+    // RFC 7541 C.4
+    final ByteBuf buf = Unpooled.buffer();
+    Hpack.writeString(buf, "www.example.com");
+    assertEquals("8cf1e3c2e5f23a6ba0ab90f4ff", ByteBufUtil.hexDump(buf));
+    assertEquals("www.example.com", Hpack.readString(buf));
+
+    buf.clear();
+    Hpack.writeString(buf, "custom-value");
+    assertEquals("8925a849e95bb8e8b4bf", ByteBufUtil.hexDump(buf));
+    assertEquals("custom-value", Hpack.readString(buf));
+  }
+
+
+  @Test
+  public void testDecodeRequests() throws Exception
+  {
+    // RFC 7541 C.4, where each request builds on the dynamic table left by the one before
+    final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, 64 * 1024);
+    assertFields(decoder.decode(hex("828684418cf1e3c2e5f23a6ba0ab90f4ff")),
+        ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+    assertFields(decoder.decode(hex("828684be5886a8eb10649cbf")),
+        ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+        "cache-control", "no-cache");
+    assertFields(decoder.decode(hex("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf")),
+        ":method", "GET", ":scheme", "https", ":path", "/index.html",
+        ":authority", "www.example.com", "custom-key", "custom-value");
+    assertEquals(164, decoder.table.size);
+  }
+
+
+  @Test
+  public void testEncoderIndexesRepeatedHeaders() throws Exception
+  {
+    final HpackEncoder encoder = new HpackEncoder();
+    final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, 64 * 1024);
+    final int[] lengths = new int[2];
+    for (int i = 0; i < 2; i++)
+    {
+      final ByteBuf block = Unpooled.buffer();
+      encoder.encode(block, ":status", "200");
+      encoder.encode(block, "server", "jeffpoole-adobe");
+      encoder.encode(block, "content-type", "text/html");
+      encoder.encode(block, "content-length", String.valueOf(1000 + i));
+      lengths[i] = block.readableBytes();
+      assertFields(decoder.decode(block), ":status", "200", "server", "jeffpoole-adobe",
+          "content-type", "text/html", "content-length", String.valueOf(1000 + i));
+    }
+    // the second time, everything but the length is a one byte index
+    assertEquals(3 + 6, lengths[1]);
+    assertTrue(lengths[0] > 20);
+  }
+
+
+  @Test
+  public void testTableSizeUpdate() throws Exception
+  {
+    final HpackEncoder encoder = new HpackEncoder();
+    final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, 64 * 1024);
+    ByteBuf block = Unpooled.buffer();
+    encoder.encode(block, "server", "jeffpoole-adobe");
+    decoder.decode(block);
+
+    // A size of 0 empties both tables, so the header has to be sent as a literal again
+    encoder.setMaximumTableSize(0);
+    block = Unpooled.buffer();
+    encoder.encode(block, "server", "jeffpoole-adobe");
+    assertEquals(0x20, block.getUnsignedByte(0));
+    assertFields(decoder.decode(block), "server", "jeffpoole-adobe");
+    assertEquals(0, decoder.table.length());
+  }
+
+
+  @Test
+  public void testInvalidBlocks() throws Exception
+  {
+    final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, 100);
+    for (String block : new String[] {
+        // index past the end of the tables
+        "be",
+        // size update bigger than allowed
+        "3fe21f",
+        // size update after a field
+        "8220",
+        // string longer than the block
+        "4088ff",
+        // Huffman padding that isn't the EOS prefix
+        "4081fe" })
+    {
+      try
+      {
+        decoder.decode(hex(block));
+        fail("Decoded " + block);
+      }
+      catch (IOException e)
+      {
+        // expected
+      }
+    }
+
+    // fields of 42 bytes each soon add up to more than the 100 allowed
+    try
+    {
+      decoder.decode(hex("8282828282828282"));
+      fail("Decoded too many fields");
+    }
+    catch (IOException e)
+    {
+      assertEquals("Header list too big", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package net.jeffpoole.httpserver.parsing;
+
+import static org.junit.Assert.*;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+
+public class HttpRequestParserTest
+{
+  static final String REQUEST = "GET /file.txt HTTP/1.1\r\n" +
+      "host: www.example.com\r\n" +
+      "Accept-Language: en, mi\r\n" +
+      "X-Custom:  some value \r\n" +
+      "\r\n";
+
+  HttpRequestParser parser = new HttpRequestParser();
+
+
+  @Test
+  public void testParse() throws Exception
+  {
+    HttpRequest request = parser.parse(Unpooled.copiedBuffer(REQUEST, Charsets.US_ASCII));
+    assertSame("GET", request.getMethod());
+    assertEquals("/file.txt", request.getTarget());
+    assertSame("HTTP/1.1", request.getHttpVersion());
+    // known header names come back in their usual capitalization
+    assertEquals("www.example.com", request.getHeaders().get("Host"));
+    assertEquals("en, mi", request.getHeaders().get("Accept-Language"));
+    assertEquals("some value", request.getHeaders().get("X-Custom"));
+  }
+
+
+  @Test
+  public void testParseFragmented() throws Exception
+  {
+    ByteBuf buf = Unpooled.buffer();
+    byte[] bytes = REQUEST.getBytes(Charsets.US_ASCII);
+    HttpRequest request = null;
+    for (int i = 0; i < bytes.length; i++)
+    {
+      assertNull(request);
+      buf.writeByte(bytes[i]);
+      request = parser.parse(buf);
+    }
+    assertNotNull(request);
+    assertEquals("/file.txt", request.getTarget());
+    assertEquals(3, request.getHeaders().size());
+    assertFalse(buf.isReadable());
+  }
+
+
+  @Test
+  public void testParsePipelined() throws Exception
+  {
+    ByteBuf buf = Unpooled.copiedBuffer(
+        REQUEST + "\r\nHEAD /other HTTP/1.0\nConnection: close\n\nGET /partial", Charsets.US_ASCII);
+    assertEquals("/file.txt", parser.parse(buf).getTarget());
+    HttpRequest second = parser.parse(buf);
+    assertEquals("HEAD", second.getMethod());
+    assertEquals("HTTP/1.0", second.getHttpVersion());
+    assertEquals("close", second.getHeaders().get("Connection"));
+    assertNull(parser.parse(buf));
+  }
+
+
+  @Test(expected = IOException.class)
+  public void testContinuationRejected() throws Exception
+  {
+    parser.parse(Unpooled.copiedBuffer("GET / HTTP/1.1\r\nHost: a\r\n  b\r\n\r\n", Charsets.US_ASCII));
+  }
+
+
+  @Test(expected = IOException.class)
+  public void testInvalidRequestLine() throws Exception
+  {
+    parser.parse(Unpooled.copiedBuffer("GET\r\n\r\n", Charsets.US_ASCII));
+  }
+}